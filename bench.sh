@@ -0,0 +1,5 @@
+#!/bin/sh
+
+# Runs the JMH benchmarks and saves the results to bench.json for comparison across commits.
+# Build first: (cd tools && mvn install) && (cd benchmarks && mvn package)
+java -jar benchmarks/target/benchmarks.jar -rf json -rff bench.json $@
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how fast we generate test input. Each operation is one byte, so throughput comes out
+ * in bytes/us, which is MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(GeneratorBenchmark.SIZE)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GeneratorBenchmark {
+
+  static final int SIZE = 64 * 1024;
+
+  private final byte[] buffer = new byte[SIZE];
+  private NonMatchingDigits nonMatchingDigits;
+  private Corpus.Input corpus;
+
+  @Setup public void setUp() {
+    nonMatchingDigits = new NonMatchingDigits(0);
+    corpus = new Corpus.Input(0, Long.MAX_VALUE);
+  }
+
+  /** One long run of digits without a card #. */
+  @Benchmark public byte[] nonMatchingDigits() {
+    nonMatchingDigits.fill(buffer, 0, SIZE);
+    return buffer;
+  }
+
+  /** Log lines with card #s, as streamed by throughput mode. */
+  @Benchmark public byte[] corpus() {
+    int read = 0;
+    while (read < SIZE) read += corpus.read(buffer, read, SIZE - read);
+    return buffer;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures the Luhn helpers the test generators use, in ns/op. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LuhnBenchmark {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private LuhnyBinTests tests;
+  private String allButLast;
+  private String longNumber;
+  private byte[] longNumberBytes;
+
+  @Setup public void setUp() {
+    tests = new LuhnyBinTests();
+    allButLast = LuhnyBinTests.randomNumber(16).substring(0, 15);
+    longNumber = LuhnyBinTests.randomNumber(1000);
+    longNumberBytes = longNumber.getBytes(ASCII);
+  }
+
+  @Benchmark public char computeLast() {
+    return LuhnyBinTests.computeLast(allButLast);
+  }
+
+  /** Validates 1000 digits, eight at a time. */
+  @Benchmark public boolean isValidBytes() {
+    return LuhnChecksum.isValid(longNumberBytes, 0, longNumberBytes.length);
+  }
+
+  @Benchmark public boolean isValidString() {
+    return LuhnChecksum.isValid(longNumber);
+  }
+
+  /** Validates 1000 digits one at a time with a lookup table, for comparison. */
+  @Benchmark public boolean isValidOneAtATime() {
+    int sum = 0;
+    boolean doubled = false;
+    for (int i = longNumberBytes.length - 1; i >= 0; i--) {
+      int value = longNumberBytes[i] - '0';
+      sum += doubled ? LuhnChecksum.DOUBLED[value] : value;
+      doubled = !doubled;
+    }
+    return sum % 10 == 0;
+  }
+
+  /** Generates the 1000-digit sequence from "long sequence of digits with no matches". */
+  @Benchmark public String nonMatchingSequence() {
+    return tests.nonMatchingSequence(1000);
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link LuhnMasker} on inputs of different shapes. Each operation is one byte, so
+ * throughput comes out in bytes/us, which is MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(MaskerBenchmark.SIZE)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MaskerBenchmark {
+
+  static final int SIZE = 64 * 1024;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /** Shapes of input. */
+  public enum Shape {
+    /** Text without any digits. */
+    NON_DIGITS,
+    /** Lines of 1000 digits without a card #. */
+    NO_MATCHES,
+    /** Lines of 1000 digits where every run of 16 is a card #. */
+    OVERLAPPING,
+    /** Log lines with card #s formatted with spaces and hyphens. */
+    FORMATTED
+  }
+
+  @Param({ "NON_DIGITS", "NO_MATCHES", "OVERLAPPING", "FORMATTED" })
+  Shape shape;
+
+  private final LuhnMasker masker = new LuhnMasker();
+  private byte[] input;
+  private byte[] buffer;
+  private ByteBuffer direct;
+
+  @Setup public void setUp() {
+    input = input(shape);
+    buffer = new byte[SIZE];
+    direct = ByteBuffer.allocateDirect(SIZE);
+  }
+
+  /** Includes copying the input, since masking overwrites it. */
+  @Benchmark public int maskArray() {
+    System.arraycopy(input, 0, buffer, 0, SIZE);
+    int done = masker.mask(buffer, 0, SIZE);
+    masker.reset();
+    return done;
+  }
+
+  /** Includes copying the input, since masking overwrites it. */
+  @Benchmark public int maskDirectBuffer() {
+    direct.clear();
+    direct.put(input).flip();
+    int done = masker.mask(direct);
+    masker.reset();
+    return done;
+  }
+
+  /** Generates SIZE bytes of input with the given shape. */
+  static byte[] input(Shape shape) {
+    LuhnyBinTests tests = new LuhnyBinTests();
+    Random random = new Random(0);
+    StringBuilder s = new StringBuilder(SIZE + 1024);
+    while (s.length() < SIZE) {
+      switch (shape) {
+        case NON_DIGITS:
+          for (int i = 0; i < 100; i++) s.append((char) (random.nextInt(68) + ':'));
+          break;
+        case NO_MATCHES:
+          s.append(tests.nonMatchingSequence(1000));
+          break;
+        case OVERLAPPING:
+          s.append(LuhnyBinTests.overlappingMatches(1000));
+          break;
+        case FORMATTED:
+          char delimiter = random.nextBoolean() ? ' ' : '-';
+          s.append("java.lang.FakeException: ")
+              .append(LuhnyBinTests.formatNumber(LuhnyBinTests.randomNumber(16), delimiter))
+              .append(" is a card #.");
+          break;
+        default:
+          throw new AssertionError();
+      }
+      s.append('\n');
+    }
+    s.setLength(SIZE);
+    return s.toString().getBytes(ASCII);
+  }
+}
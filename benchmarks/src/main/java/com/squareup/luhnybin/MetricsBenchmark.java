@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what {@link MaskerMetrics} cost, masking the {@link LuhnyBinTests} suite with and
+ * without them. Masking a line at a time publishes once per line, which is the worst case. Run
+ * with {@code -t} to see whether threads sharing the counters slow each other down.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+
+  @Param({ "false", "true" })
+  boolean metrics;
+
+  /** Shared by every thread, like the daemon's. */
+  private static final MaskerMetrics SHARED = new MaskerMetrics();
+
+  private LuhnMasker masker;
+  private byte[] input;
+  private byte[] buffer;
+
+  /** Offsets just past each line feed. */
+  private int[] lineEnds;
+
+  @Setup public void setUp() throws IOException {
+    masker = metrics ? new LuhnMasker(SHARED) : new LuhnMasker();
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    new LuhnyBinTests().writeTo(bout);
+    input = bout.toByteArray();
+    buffer = new byte[input.length];
+
+    int lines = 0;
+    for (byte b : input) if (b == '\n') lines++;
+    lineEnds = new int[lines];
+    for (int i = 0, line = 0; i < input.length; i++) {
+      if (input[i] == '\n') lineEnds[line++] = i + 1;
+    }
+  }
+
+  /** The whole suite in one call, like a file or a busy stream. */
+  @Benchmark public int wholeSuite() {
+    System.arraycopy(input, 0, buffer, 0, input.length);
+    int done = masker.mask(buffer, 0, buffer.length);
+    masker.reset();
+    return done;
+  }
+
+  /** One call per line, like a stream that writes a line at a time. */
+  @Benchmark public int lineAtATime() {
+    System.arraycopy(input, 0, buffer, 0, input.length);
+    int start = 0;
+    for (int end : lineEnds) start += masker.mask(buffer, start, end - start);
+    masker.reset();
+    return start;
+  }
+}
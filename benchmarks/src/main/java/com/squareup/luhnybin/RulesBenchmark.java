@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link LuhnMasker} under the default {@link CardRules} and wider ones, on the same
+ * input. Throughput should be the same for all of them. Each operation is one byte, so throughput
+ * comes out in bytes/us, which is MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(RulesBenchmark.SIZE)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RulesBenchmark {
+
+  static final int SIZE = 64 * 1024;
+
+  /** Rule sets. */
+  public enum Rules {
+    /** 14-16 digits, separated by spaces or hyphens. */
+    DEFAULT(CardRules.DEFAULT),
+    /** Every length and 6 separators. */
+    WIDEST(new CardRules(CardRules.MIN_LENGTH, CardRules.MAX_LENGTH, " -./_:",
+        Collections.<String>emptyList(), true)),
+    /** Every length, with the major brands' prefixes. */
+    BRANDS(new CardRules(CardRules.MIN_LENGTH, CardRules.MAX_LENGTH, " -",
+        Arrays.asList("34", "37", "4", "51-55", "2221-2720", "6011", "644-649", "65",
+            "3528-3589", "62"), true));
+
+    final CardRules rules;
+
+    Rules(CardRules rules) {
+      this.rules = rules;
+    }
+  }
+
+  /** Shapes of input. */
+  public enum Shape {
+    /** Generated log lines, as in throughput mode. */
+    LOGS,
+    /** One run of digits without a card # under the rules. */
+    DIGITS
+  }
+
+  @Param({ "DEFAULT", "WIDEST", "BRANDS" })
+  Rules rules;
+
+  @Param({ "LOGS", "DIGITS" })
+  Shape shape;
+
+  private LuhnMasker masker;
+  private byte[] input;
+  private byte[] buffer;
+
+  @Setup public void setUp() throws IOException {
+    masker = new LuhnMasker(rules.rules);
+    input = new byte[SIZE];
+    if (shape == Shape.LOGS) {
+      Corpus.Input corpus = new Corpus.Input(0, Long.MAX_VALUE);
+      int read = 0;
+      while (read < SIZE) read += corpus.read(input, read, SIZE - read);
+    } else {
+      new NonMatchingDigits(0, rules.rules).fill(input, 0, SIZE);
+    }
+    buffer = new byte[SIZE];
+  }
+
+  /** Includes copying the input, since masking overwrites it. */
+  @Benchmark public int maskArray() {
+    System.arraycopy(input, 0, buffer, 0, SIZE);
+    int done = masker.mask(buffer, 0, SIZE);
+    masker.reset();
+    return done;
+  }
+}
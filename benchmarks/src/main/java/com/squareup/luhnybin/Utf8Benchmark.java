@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares masking UTF-8 logs as bytes with decoding them to chars and encoding them back first,
+ * as a masker that works on text would have to. Each operation is one byte, so throughput comes
+ * out in bytes/us, which is MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(Utf8Benchmark.SIZE)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Utf8Benchmark {
+
+  static final int SIZE = 64 * 1024;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Words to build log lines from: Chinese, Japanese, emoji and ASCII. */
+  private static final String[] WORDS = {
+    "\u652f\u4ed8", "\u5931\u8d25", "\u30ab\u30fc\u30c9", "\u6c7a\u6e08", "\ud83d\udcb3",
+    "\ud83d\ude80", "user", "=", "order", "-", ":",
+  };
+
+  private final LuhnMasker masker = new LuhnMasker();
+  private final CharsetDecoder decoder = UTF_8.newDecoder();
+  private final CharsetEncoder encoder = UTF_8.newEncoder();
+  private byte[] input;
+  private byte[] buffer;
+  private CharBuffer chars;
+  private ByteBuffer encoded;
+
+  @Setup public void setUp() {
+    input = input();
+    buffer = new byte[SIZE];
+    chars = CharBuffer.allocate(SIZE);
+    encoded = ByteBuffer.allocate(SIZE);
+  }
+
+  /** Includes copying the input, since masking overwrites it. */
+  @Benchmark public int maskBytes() {
+    System.arraycopy(input, 0, buffer, 0, SIZE);
+    int done = masker.mask(buffer, 0, SIZE);
+    masker.reset();
+    return done;
+  }
+
+  /** Decodes and encodes the input instead of copying it, then masks the same bytes. */
+  @Benchmark public int decodeEncodeThenMask() {
+    chars.clear();
+    decoder.reset();
+    decoder.decode(ByteBuffer.wrap(input), chars, true);
+    decoder.flush(chars);
+    chars.flip();
+    encoded.clear();
+    encoder.reset();
+    encoder.encode(chars, encoded, true);
+    encoder.flush(encoded);
+    int done = masker.mask(encoded.array(), 0, encoded.position());
+    masker.reset();
+    return done;
+  }
+
+  /** Generates SIZE bytes of log lines in several scripts, with card #s. */
+  static byte[] input() {
+    Random random = new Random(0);
+    StringBuilder s = new StringBuilder(SIZE);
+    byte[] b;
+    do {
+      for (int i = 0; i < 12; i++) s.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      s.append(LuhnyBinTests.formatNumber(LuhnyBinTests.randomNumber(16), ' ')).append('\n');
+      b = s.toString().getBytes(UTF_8);
+    } while (b.length < SIZE);
+
+    // Cut at a line feed so the input stays valid UTF-8, then pad it out with ASCII.
+    int end = SIZE;
+    while (b[end - 1] != '\n') end--;
+    byte[] result = new byte[SIZE];
+    System.arraycopy(b, 0, result, 0, end);
+    for (int i = end; i < SIZE - 1; i++) result[i] = 'x';
+    result[SIZE - 1] = '\n';
+    return result;
+  }
+}
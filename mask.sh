@@ -1,4 +1,4 @@
 #!/bin/sh
 
-# Call your program here instead of cat.
-cat
+# Masks card #s in standard input using the in-process Java filter in tools/.
+exec java -cp tools/target/luhnybin-1.0-SNAPSHOT.jar com.squareup.luhnybin.LuhnMasker
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * One run's results, saved so later runs can be compared against it: every measured iteration
+ * time, every per-test time when the target times tests, the suite size for throughput, and a
+ * fingerprint of the host. Stored as a properties file.
+ *
+ * <p>A run regresses if its median iteration time is more than the threshold slower than the
+ * baseline's and a Mann-Whitney test says the slowdown probably isn't noise, or if its 99th
+ * percentile is more than the threshold slower. Mann-Whitney only sees shifts in the middle, so
+ * the 99th percentile goes by the threshold alone, once both runs have enough iterations that it
+ * isn't just the slowest one.
+ */
+final class Baseline {
+
+  private static final int VERSION = 1;
+
+  /** Slowdowns less likely than this to be noise count as regressions. */
+  static final double SIGNIFICANCE = 0.01;
+
+  /** With fewer iterations on either side, no slowdown reaches {@link #SIGNIFICANCE}. */
+  static final int MIN_ITERATIONS = 8;
+
+  /** With fewer iterations on either side, the 99th percentile is one outlier away from max. */
+  static final int MIN_P99_ITERATIONS = 100;
+
+  /** Number of slower tests to list. */
+  private static final int SLOWER_TESTS = 5;
+
+  final String target;
+  final String host;
+  final int warmup;
+  final long suiteBytes;
+
+  /** Measured iteration times in us. */
+  final long[] times;
+
+  /** Times in ns for each test that was timed, by index. */
+  final Map<Integer, long[]> testTimes;
+  final Map<Integer, String> descriptions;
+
+  Baseline(String target, String host, int warmup, long suiteBytes, long[] times,
+      Map<Integer, long[]> testTimes, Map<Integer, String> descriptions) {
+    if (times.length == 0) throw new IllegalArgumentException("No iterations.");
+    this.target = target;
+    this.host = host;
+    this.warmup = warmup;
+    this.suiteBytes = suiteBytes;
+    this.times = times;
+    this.testTimes = testTimes;
+    this.descriptions = descriptions;
+  }
+
+  /** Captures a run of {@code tests} through {@code target} on this host. */
+  static Baseline of(Main.Target target, TestSuite tests, int warmup, long[] times,
+      TestTimings timings) {
+    long suiteBytes = 0;
+    for (TestCase test : tests.testCases()) suiteBytes += test.size();
+    Map<Integer, long[]> testTimes = new TreeMap<Integer, long[]>();
+    Map<Integer, String> descriptions = new TreeMap<Integer, String>();
+    if (target.timesTests()) {
+      for (TestTimings.TestStats test : timings.stats()) {
+        testTimes.put(test.test.index, test.times());
+        descriptions.put(test.test.index, test.test.description);
+      }
+    }
+    return new Baseline(target.toString(), host(), warmup, suiteBytes, times, testTimes,
+        descriptions);
+  }
+
+  /** Returns MB/s at the median iteration time. */
+  double throughput() {
+    return (double) suiteBytes / Math.max(new Stats(times).median(), 1);
+  }
+
+  void write(File file) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("version", Integer.toString(VERSION));
+    properties.setProperty("target", target);
+    properties.setProperty("host", host);
+    properties.setProperty("warmup", Integer.toString(warmup));
+    properties.setProperty("suiteBytes", Long.toString(suiteBytes));
+    properties.setProperty("throughput", String.format(Locale.US, "%.1f", throughput()));
+    properties.setProperty("times", join(times));
+    for (Map.Entry<Integer, long[]> test : testTimes.entrySet()) {
+      properties.setProperty("test." + test.getKey(), join(test.getValue()));
+      properties.setProperty("test." + test.getKey() + ".description",
+          descriptions.get(test.getKey()));
+    }
+    OutputStream out = new FileOutputStream(file);
+    try {
+      properties.store(out, "Iteration times in us, test times in ns, throughput in MB/s");
+    } finally {
+      out.close();
+    }
+  }
+
+  static Baseline read(File file) throws IOException {
+    Properties properties = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    if (!Integer.toString(VERSION).equals(properties.getProperty("version"))) {
+      throw new IOException("Not a baseline: " + file);
+    }
+    try {
+      Map<Integer, long[]> testTimes = new TreeMap<Integer, long[]>();
+      Map<Integer, String> descriptions = new TreeMap<Integer, String>();
+      for (String name : properties.stringPropertyNames()) {
+        if (name.startsWith("test.") && !name.endsWith(".description")) {
+          int index = Integer.parseInt(name.substring("test.".length()));
+          testTimes.put(index, split(properties.getProperty(name)));
+          descriptions.put(index, properties.getProperty(name + ".description", ""));
+        }
+      }
+      return new Baseline(properties.getProperty("target"), properties.getProperty("host"),
+          Integer.parseInt(properties.getProperty("warmup")),
+          Long.parseLong(properties.getProperty("suiteBytes")),
+          split(properties.getProperty("times")), testTimes, descriptions);
+    } catch (RuntimeException e) {
+      throw new IOException("Corrupt baseline: " + file, e);
+    }
+  }
+
+  /** Compares this run against {@code baseline}. {@code threshold} is a fraction, like 0.1. */
+  Comparison compareTo(Baseline baseline, double threshold) {
+    return new Comparison(baseline, this, threshold);
+  }
+
+  /**
+   * Describes this machine: host name, OS, CPU model and count, max heap and JVM. Timings from
+   * different hosts aren't comparable.
+   */
+  static String host() {
+    String name;
+    try {
+      name = InetAddress.getLocalHost().getHostName();
+    } catch (IOException e) {
+      name = "unknown host";
+    }
+    Runtime runtime = Runtime.getRuntime();
+    return String.format("%s, %s %s %s, %d x %s, %dMB heap, Java %s", name,
+        System.getProperty("os.name"), System.getProperty("os.version"),
+        System.getProperty("os.arch"), runtime.availableProcessors(), cpuModel(),
+        runtime.maxMemory() >> 20, System.getProperty("java.version"));
+  }
+
+  private static String cpuModel() {
+    File cpuinfo = new File("/proc/cpuinfo");
+    try {
+      for (String line : Files.readLines(cpuinfo, Charsets.US_ASCII)) {
+        if (line.startsWith("model name")) {
+          return line.substring(line.indexOf(':') + 1).trim().replaceAll("\\s+", " ");
+        }
+      }
+    } catch (IOException e) { /* not Linux */ }
+    return "unknown CPU";
+  }
+
+  private static String join(long[] values) {
+    StringBuilder s = new StringBuilder();
+    for (long value : values) {
+      if (s.length() > 0) s.append(',');
+      s.append(value);
+    }
+    return s.toString();
+  }
+
+  private static long[] split(String s) {
+    String[] parts = s.split(",");
+    long[] values = new long[parts.length];
+    for (int i = 0; i < parts.length; i++) values[i] = Long.parseLong(parts[i].trim());
+    return values;
+  }
+
+  /** How one run compares with a baseline. */
+  static final class Comparison {
+    final Baseline before;
+    final Baseline after;
+    final double threshold;
+    final Stats beforeStats;
+    final Stats afterStats;
+
+    /** Chance that {@code after}'s median is only slower by noise. */
+    final double p;
+
+    Comparison(Baseline before, Baseline after, double threshold) {
+      this.before = before;
+      this.after = after;
+      this.threshold = threshold;
+      beforeStats = new Stats(before.times);
+      afterStats = new Stats(after.times);
+      p = Stats.mannWhitney(before.times, after.times);
+    }
+
+    /** Returns how much slower the median is, as a fraction. Negative if it's faster. */
+    double medianChange() {
+      return change(beforeStats.median(), afterStats.median());
+    }
+
+    double p99Change() {
+      return change(beforeStats.percentile(99), afterStats.percentile(99));
+    }
+
+    boolean sameHost() {
+      return before.host.equals(after.host);
+    }
+
+    boolean sameTarget() {
+      return before.target.equals(after.target);
+    }
+
+    boolean regressed() {
+      return medianRegressed() || p99Regressed();
+    }
+
+    boolean medianRegressed() {
+      return medianChange() > threshold && p < SIGNIFICANCE;
+    }
+
+    boolean p99Regressed() {
+      return checksP99() && p99Change() > threshold;
+    }
+
+    /** Returns true if both runs have enough iterations to go by their 99th percentiles. */
+    boolean checksP99() {
+      return Math.min(before.times.length, after.times.length) >= MIN_P99_ITERATIONS;
+    }
+
+    private static double change(double before, double after) {
+      return (after - before) / Math.max(before, 1);
+    }
+
+    void print(PrintStream out) {
+      out.printf("Compared with baseline of %s (%d iterations):%n", before.target,
+          before.times.length);
+      if (!sameTarget()) {
+        out.printf("  Warning: the baseline was recorded against %s, not %s.%n", before.target,
+            after.target);
+      }
+      if (!sameHost()) {
+        out.printf("  Warning: the baseline was recorded on a different host.%n"
+            + "    Baseline: %s%n    This run: %s%n", before.host, after.host);
+      }
+      out.println();
+      out.printf("%-12s %14s %14s %9s%n", "", "Baseline", "This run", "Change");
+      out.printf("%-12s %,12dus %,12dus %+8.1f%%%n", "Median", beforeStats.median(),
+          afterStats.median(), 100 * medianChange());
+      out.printf("%-12s %,12dus %,12dus %+8.1f%%%n", "99th pct", beforeStats.percentile(99),
+          afterStats.percentile(99), 100 * p99Change());
+      out.printf("%-12s %,9.1f MB/s %,9.1f MB/s %+8.1f%%%n", "Throughput",
+          before.throughput(), after.throughput(),
+          100 * change(before.throughput(), after.throughput()));
+      out.printf("%nMann-Whitney p = %.4f that this run's median is only slower by chance.%n", p);
+      if (!checksP99()) {
+        out.printf("The 99th percentile isn't checked with fewer than %d iterations.%n",
+            MIN_P99_ITERATIONS);
+      }
+
+      List<String> slower = slowerTests();
+      if (!slower.isEmpty()) {
+        out.printf("%nTests with medians more than %.0f%% slower:%n", 100 * threshold);
+        for (String test : slower) out.println(test);
+      }
+
+      out.println();
+      if (medianRegressed()) {
+        out.printf("Regression: median slower than the baseline by more than %.0f%% (p < %s).%n",
+            100 * threshold, SIGNIFICANCE);
+      }
+      if (p99Regressed()) {
+        out.printf("Regression: 99th percentile slower than the baseline by more than %.0f%%.%n",
+            100 * threshold);
+      }
+      if (!regressed()) {
+        out.println("No regression.");
+      }
+    }
+
+    /** Describes up to {@link #SLOWER_TESTS} tests that slowed down most past the threshold. */
+    List<String> slowerTests() {
+      final Map<Integer, Double> changes = new TreeMap<Integer, Double>();
+      for (Map.Entry<Integer, long[]> test : after.testTimes.entrySet()) {
+        long[] beforeTimes = before.testTimes.get(test.getKey());
+        if (beforeTimes == null) continue;
+        double change = change(new Stats(beforeTimes).median(),
+            new Stats(test.getValue()).median());
+        if (change > threshold) changes.put(test.getKey(), change);
+      }
+      List<Integer> indexes = new ArrayList<Integer>(changes.keySet());
+      Collections.sort(indexes, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Double.compare(changes.get(b), changes.get(a));
+        }
+      });
+
+      List<String> result = new ArrayList<String>();
+      for (int index : indexes.subList(0, Math.min(SLOWER_TESTS, indexes.size()))) {
+        result.add(String.format("  #%-3d %-45s %,10.1fus -> %,10.1fus %+8.1f%%", index,
+            after.descriptions.get(index),
+            new Stats(before.testTimes.get(index)).median() / 1000.0,
+            new Stats(after.testTimes.get(index)).median() / 1000.0,
+            100 * changes.get(index)));
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * What counts as a card #: how many digits it has, which characters may separate them, which
+ * issuer prefixes (IINs) it may start with, and whether it must pass the Luhn check.
+ *
+ * <p>Rules are compiled once into bit sets: of separators, of lengths and of allowed 6-digit
+ * starts. {@link LuhnMasker} does the same work per byte whether the
+ * rules allow 3 lengths or 8, 2 separators or 10, and 1 prefix or 500.
+ *
+ * <p>Rules can be read from a properties file. All keys are optional:
+ * <pre>
+ * # 12 to 19 digits.
+ * lengths=12-19
+ * # Characters that may separate digits. Escape a leading space.
+ * separators=\ -
+ * # Prefixes and ranges of prefixes, up to 6 digits each. None means any.
+ * prefixes=34,37,4,51-55,2221-2720
+ * luhn=true
+ * </pre>
+ */
+public final class CardRules {
+
+  /** The fewest and most digits any rules may allow. */
+  static final int MIN_LENGTH = 12;
+  static final int MAX_LENGTH = 19;
+
+  /** Prefixes are looked up by the first this many digits. */
+  static final int PREFIX_DIGITS = 6;
+
+  private static final int PREFIX_VALUES = 1000000; // 10^PREFIX_DIGITS
+
+  /** 14-16 digits, separated by spaces or hyphens, with any prefix, that pass the Luhn check. */
+  public static final CardRules DEFAULT = new CardRules(LuhnMasker.MIN_DIGITS,
+      LuhnMasker.MAX_DIGITS, " -", Collections.<String>emptyList(), true);
+
+  final int minDigits;
+  final int maxDigits;
+  final String separators;
+
+  /** Prefixes and ranges as given, like "51-55". Empty if any prefix will do. */
+  final List<String> prefixRanges;
+
+  /** Every allowed prefix, with ranges expanded. Empty if any prefix will do. */
+  final List<String> prefixes;
+
+  final boolean luhn;
+
+  /** Bit c is set if c is a separator, for c below 64 and then from 64 to 127. */
+  final long separatorsLow;
+  final long separatorsHigh;
+
+  /** Bit 4 * (k - MIN_LENGTH) is set if a card # may have k digits: one nibble per length. */
+  final long lengthNibbles;
+
+  /** Bit n is set if the 6-digit string n starts with an allowed prefix. Null for any. */
+  final long[] prefixTable;
+
+  CardRules(int minDigits, int maxDigits, String separators, List<String> prefixRanges,
+      boolean luhn) {
+    if (minDigits < MIN_LENGTH || maxDigits > MAX_LENGTH || minDigits > maxDigits) {
+      throw new IllegalArgumentException(String.format(
+          "Lengths must be within %d-%d: %d-%d", MIN_LENGTH, MAX_LENGTH, minDigits, maxDigits));
+    }
+    this.minDigits = minDigits;
+    this.maxDigits = maxDigits;
+    this.separators = separators;
+    this.prefixRanges = Collections.unmodifiableList(new ArrayList<String>(prefixRanges));
+    this.luhn = luhn;
+
+    long separatorsLow = 0;
+    long separatorsHigh = 0;
+    for (char c : separators.toCharArray()) {
+      // Bytes of multi-byte UTF-8 characters are 0x80 and up, so separators must be ASCII.
+      boolean duplicate = isSeparator(c, separatorsLow, separatorsHigh);
+      if (c >= 0x80 || c == '\n' || c >= '0' && c <= '9' || duplicate) {
+        throw new IllegalArgumentException("Invalid separator: '" + c + "'");
+      }
+      if (c < 64) {
+        separatorsLow |= 1L << c;
+      } else {
+        separatorsHigh |= 1L << c;
+      }
+    }
+    this.separatorsLow = separatorsLow;
+    this.separatorsHigh = separatorsHigh;
+
+    long lengthNibbles = 0;
+    for (int length = minDigits; length <= maxDigits; length++) {
+      lengthNibbles |= 1L << 4 * (length - MIN_LENGTH);
+    }
+    this.lengthNibbles = lengthNibbles;
+
+    List<String> prefixes = new ArrayList<String>();
+    for (String range : prefixRanges) prefixes.addAll(expand(range));
+    this.prefixes = Collections.unmodifiableList(prefixes);
+    if (prefixes.isEmpty()) {
+      prefixTable = null;
+    } else {
+      BitSet table = new BitSet(PREFIX_VALUES);
+      for (String prefix : prefixes) {
+        int scale = (int) Math.pow(10, PREFIX_DIGITS - prefix.length());
+        int value = Integer.parseInt(prefix);
+        table.set(value * scale, (value + 1) * scale);
+      }
+      prefixTable = Arrays.copyOf(table.toLongArray(), (PREFIX_VALUES + 63) / 64);
+    }
+  }
+
+  /** Expands "51-55" to 51, 52, 53, 54 and 55. Keeps leading zeros. */
+  private static List<String> expand(String range) {
+    String[] ends = range.split("-", -1);
+    if (ends.length > 2 || ends[0].isEmpty() || ends[0].length() > PREFIX_DIGITS
+        || ends[ends.length - 1].length() != ends[0].length()) {
+      throw new IllegalArgumentException("Invalid prefix: " + range);
+    }
+    int low;
+    int high;
+    try {
+      low = Integer.parseInt(ends[0]);
+      high = Integer.parseInt(ends[ends.length - 1]);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid prefix: " + range);
+    }
+    if (low > high || ends[0].charAt(0) == '+' || ends[0].charAt(0) == '-') {
+      throw new IllegalArgumentException("Invalid prefix: " + range);
+    }
+    List<String> result = new ArrayList<String>();
+    for (int i = low; i <= high; i++) {
+      result.add(String.format("%0" + ends[0].length() + "d", i));
+    }
+    return result;
+  }
+
+  /** Reads rules from a properties file. */
+  public static CardRules read(File file) throws IOException {
+    Properties properties = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    try {
+      return parse(properties);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid rules in " + file + ": " + e.getMessage(), e);
+    }
+  }
+
+  /** Reads rules from properties, using the defaults for missing keys. */
+  static CardRules parse(Properties properties) {
+    for (String name : properties.stringPropertyNames()) {
+      if (!Arrays.asList("lengths", "separators", "prefixes", "luhn").contains(name)) {
+        throw new IllegalArgumentException("Unknown rule: " + name);
+      }
+    }
+    int minDigits = DEFAULT.minDigits;
+    int maxDigits = DEFAULT.maxDigits;
+    String lengths = properties.getProperty("lengths");
+    if (lengths != null) {
+      String[] ends = lengths.trim().split("-", -1);
+      try {
+        minDigits = Integer.parseInt(ends[0].trim());
+        maxDigits = Integer.parseInt(ends[ends.length - 1].trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid lengths: " + lengths);
+      }
+      if (ends.length > 2) throw new IllegalArgumentException("Invalid lengths: " + lengths);
+    }
+    List<String> prefixes = new ArrayList<String>();
+    String prefixList = properties.getProperty("prefixes", "").trim();
+    if (!prefixList.isEmpty()) {
+      for (String prefix : prefixList.split(",")) prefixes.add(prefix.trim());
+    }
+    String luhn = properties.getProperty("luhn", "true").trim();
+    if (!luhn.equals("true") && !luhn.equals("false")) {
+      throw new IllegalArgumentException("Expected true or false for luhn: " + luhn);
+    }
+    return new CardRules(minDigits, maxDigits,
+        properties.getProperty("separators", DEFAULT.separators), prefixes,
+        luhn.equals("true"));
+  }
+
+  /** Returns true if {@code digits}, without separators, is a card #. */
+  boolean matches(CharSequence digits) {
+    return digits.length() >= minDigits && digits.length() <= maxDigits
+        && hasAllowedPrefix(digits) && (!luhn || LuhnChecksum.isValid(digits));
+  }
+
+  /** Returns true if {@code digits} starts with an allowed prefix. */
+  boolean hasAllowedPrefix(CharSequence digits) {
+    if (prefixes.isEmpty()) return true;
+    String s = digits.toString();
+    for (String prefix : prefixes) {
+      if (s.startsWith(prefix)) return true;
+    }
+    return false;
+  }
+
+  boolean isSeparator(char c) {
+    return isSeparator(c, separatorsLow, separatorsHigh);
+  }
+
+  private static boolean isSeparator(char c, long low, long high) {
+    return c < 0x80 && ((c < 64 ? low : high) >>> c & 1) != 0;
+  }
+
+  /** Returns the most bytes a single card # can span, separators included. */
+  int maxSpan() {
+    return maxDigits * 2 - 1;
+  }
+
+  /** Returns the most bytes a masker holds back waiting for more input. */
+  int maxPending() {
+    return (maxDigits - 1) * 2;
+  }
+
+  @Override public String toString() {
+    StringBuilder s = new StringBuilder();
+    s.append(minDigits).append('-').append(maxDigits).append(" digits");
+    s.append(separators.isEmpty() ? ", no separators" : ", separated by '" + separators + "'");
+    if (!prefixRanges.isEmpty()) s.append(", starting with ").append(prefixRanges);
+    s.append(luhn ? ", passing the Luhn check" : ", without a Luhn check");
+    return s.toString();
+  }
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Checks that masking time grows linearly with line length. The tests' adversarial lines, like
+ * "sequence of zeros", are about 1,000 characters: too short to tell a masker that rescans the
+ * line from each digit from one that doesn't. Here, each family of adversarial input is sent as
+ * one line of 1KB, 4KB... up to 64MB. A least-squares fit of log time against log size gives the
+ * exponent of the growth: about 1 for a linear masker, 2 for a quadratic one.
+ *
+ * <p>Times under a millisecond are mostly pipes and system calls, which flatten the curve, so
+ * they're left out of the fit. Each size is timed a few times and the fastest kept. A size that
+ * takes longer than {@link #RUN_LIMIT_MS} is cut short, and the family stops growing there.
+ */
+final class ComplexityCheck {
+
+  static final int MIN_SIZE = 1 << 10;
+  static final long MAX_SIZE = 64 << 20;
+
+  /** Each size is this many times the last. */
+  static final int GROWTH = 4;
+
+  /** Growth exponents above this fail. Leaves room for noise and cache misses. */
+  static final double MAX_SLOPE = 1.25;
+
+  /** Shorter times are left out of the fit. */
+  static final long MIN_FIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** Give up on a size after this long. */
+  static final long RUN_LIMIT_MS = 30 * 1000;
+
+  /** Time each size at least this many times, and until this much time has passed. */
+  private static final int MIN_RUNS = 3;
+  private static final int MAX_RUNS = 100;
+  private static final long MIN_TOTAL_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final byte MASK = 'X';
+
+  /** The adversarial families, each one long line of its kind. */
+  static final List<Family> FAMILIES = Arrays.asList(
+      new Family("sequence of zeros", true, true) {
+        @Override void fill(byte[] b, int len) {
+          Arrays.fill(b, 0, len, (byte) '0');
+        }
+      },
+      new Family("overlapping, valid #s", true, true) {
+        @Override void fill(byte[] b, int len) {
+          // Every run of 16 digits is a card #.
+          byte[] first = LuhnyBinTests.randomNumber(16).getBytes(ASCII);
+          System.arraycopy(first, 0, b, 0, Math.min(first.length, len));
+          for (int i = first.length; i < len; i++) {
+            b[i] = (byte) LuhnChecksum.checkDigit(b, i - 15, 15);
+          }
+        }
+      },
+      new Family("digits with no matches", false, true) {
+        @Override void fill(byte[] b, int len) {
+          new NonMatchingDigits(0).fill(b, 0, len);
+        }
+      },
+      new Family("hex", false, true) {
+        @Override void fill(byte[] b, int len) {
+          // Digit runs are pieces of one run with no matches, so none of them match either.
+          NonMatchingDigits digits = new NonMatchingDigits(1);
+          Random random = new Random(1);
+          for (int i = 0; i < len; i++) {
+            int nibble = random.nextInt(16);
+            if (nibble < 10) {
+              digits.fill(b, i, 1);
+            } else {
+              b[i] = (byte) ('a' + nibble - 10);
+            }
+          }
+        }
+      },
+      new Family("digits with no matches, no newline", false, false) {
+        @Override void fill(byte[] b, int len) {
+          new NonMatchingDigits(2).fill(b, 0, len);
+        }
+      });
+
+  private final Runner runner;
+  private final Executor executor;
+  private final long maxSize;
+  private final long runLimitMillis;
+
+  ComplexityCheck(Runner runner, Executor executor, long maxSize) {
+    this(runner, executor, maxSize, RUN_LIMIT_MS);
+  }
+
+  ComplexityCheck(Runner runner, Executor executor, long maxSize, long runLimitMillis) {
+    if (maxSize < MIN_SIZE || maxSize > Integer.MAX_VALUE - 1) {
+      throw new IllegalArgumentException("Max size out of range: " + maxSize);
+    }
+    this.runner = runner;
+    this.executor = executor;
+    this.maxSize = maxSize;
+    this.runLimitMillis = runLimitMillis;
+  }
+
+  /** Returns the sizes to time: MIN_SIZE, growing by GROWTH up to the max. */
+  List<Integer> sizes() {
+    List<Integer> sizes = new ArrayList<Integer>();
+    for (long size = MIN_SIZE; size <= maxSize; size *= GROWTH) sizes.add((int) size);
+    return sizes;
+  }
+
+  /** Checks every family, printing each as it finishes. Returns true if all are linear. */
+  boolean run(PrintStream out) throws IOException {
+    List<Result> superLinear = new ArrayList<Result>();
+    for (Family family : FAMILIES) {
+      Result result = check(family);
+      result.print(out);
+      out.println();
+      if (result.superLinear()) superLinear.add(result);
+    }
+    if (superLinear.isEmpty()) {
+      out.printf("Masking time grows linearly in every family.%n");
+      return true;
+    }
+    for (Result result : superLinear) {
+      out.printf("Super-linear: %s grows as size^%.2f.%n", result.family, result.slope());
+    }
+    return false;
+  }
+
+  /** Times each size of {@code family} in turn. Throws if the output is wrong. */
+  Result check(Family family) throws IOException {
+    List<Integer> sizes = sizes();
+    int largest = sizes.get(sizes.size() - 1);
+    byte[] input = new byte[largest];
+    family.fill(input, largest);
+
+    Result result = new Result(family);
+    for (int size : sizes) {
+      long best = Long.MAX_VALUE;
+      long start = System.nanoTime();
+      for (int run = 0; run < MAX_RUNS
+          && (run < MIN_RUNS || System.nanoTime() - start < MIN_TOTAL_NANOS); run++) {
+        long time = time(family, input, size);
+        if (time == -1) {
+          // We know it takes at least this long. That may already be enough to fail it.
+          result.add(size, TimeUnit.MILLISECONDS.toNanos(runLimitMillis));
+          result.gaveUpAt = size;
+          return result;
+        }
+        best = Math.min(best, time);
+      }
+      result.add(size, best);
+    }
+    return result;
+  }
+
+  /** Returns ns to mask {@code size} bytes of {@code input}, or -1 if it took too long. */
+  private long time(final Family family, final byte[] input, final int size)
+      throws IOException {
+    final Check check = new Check(family, input, size);
+    FutureTask<Long> run = new FutureTask<Long>(new Callable<Long>() {
+      public Long call() throws IOException {
+        runner.prepare();
+        long start = System.nanoTime();
+        runner.mask(input, size, family.newline, check);
+        check.finish();
+        return System.nanoTime() - start;
+      }
+    });
+    executor.execute(run);
+    try {
+      return run.get(runLimitMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      runner.cancel();
+      return -1;
+    } catch (ExecutionException e) {
+      runner.cancel();
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Returns the least-squares slope of log {@code times} against log {@code sizes}: the exponent
+   * k in time = c * size^k.
+   */
+  static double slope(long[] sizes, long[] times) {
+    if (sizes.length < 2) throw new IllegalArgumentException("Need two points.");
+    double meanX = 0;
+    double meanY = 0;
+    for (int i = 0; i < sizes.length; i++) {
+      meanX += Math.log(sizes[i]);
+      meanY += Math.log(times[i]);
+    }
+    meanX /= sizes.length;
+    meanY /= sizes.length;
+    double covariance = 0;
+    double variance = 0;
+    for (int i = 0; i < sizes.length; i++) {
+      double dx = Math.log(sizes[i]) - meanX;
+      covariance += dx * (Math.log(times[i]) - meanY);
+      variance += dx * dx;
+    }
+    return covariance / variance;
+  }
+
+  /** Formats a size that's a whole number of KB, like "64 MB". */
+  static String formatSize(long size) {
+    return size % (1 << 20) == 0
+        ? String.format("%,d MB", size >> 20) : String.format("%,d KB", size >> 10);
+  }
+
+  /** A kind of adversarial line. */
+  abstract static class Family {
+    final String description;
+
+    /** True if every byte should come back masked, false if it should come back unchanged. */
+    final boolean masked;
+
+    /** False to end the input without a newline, so only EOF gets it back. */
+    final boolean newline;
+
+    Family(String description, boolean masked, boolean newline) {
+      this.description = description;
+      this.masked = masked;
+      this.newline = newline;
+    }
+
+    /** Fills {@code b} with {@code len} bytes. Any prefix of 16 bytes or more is typical. */
+    abstract void fill(byte[] b, int len);
+
+    @Override public String toString() {
+      return description;
+    }
+  }
+
+  /** Masks one line at a time for timing. */
+  interface Runner {
+
+    /** Gets ready to mask a line, so that start-up isn't timed. */
+    void prepare() throws IOException;
+
+    /**
+     * Masks the first {@code len} bytes of {@code b}, then a newline if {@code newline}, into
+     * {@code out}. Returns once all the output is in. Without a newline, ends the input so the
+     * masker knows the line is over.
+     */
+    void mask(byte[] b, int len, boolean newline, OutputStream out) throws IOException;
+
+    /** Abandons the run in progress, from another thread. */
+    void cancel();
+
+    void close();
+  }
+
+  /** Masks lines with a masker in this process. */
+  static final class InProcessRunner implements Runner {
+    private final Masker masker;
+
+    /** Identifies the run in progress. Runs that aren't it have been given up on. */
+    private volatile Object current;
+
+    InProcessRunner(Masker masker) {
+      this.masker = masker;
+    }
+
+    public void prepare() {}
+
+    public void mask(final byte[] b, final int len, boolean newline, final OutputStream out)
+        throws IOException {
+      // A masker that keeps going after we give up would slow down the next family.
+      final Object run = new Object();
+      current = run;
+      final int end = newline ? len + 1 : len;
+      masker.mask(new InputStream() {
+        int position;
+
+        @Override public int read() throws IOException {
+          byte[] one = new byte[1];
+          return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override public int read(byte[] buffer, int off, int count) throws IOException {
+          checkCancelled(run);
+          if (position == end) return -1;
+          count = Math.min(count, end - position);
+          int fromB = Math.max(Math.min(count, len - position), 0);
+          System.arraycopy(b, position, buffer, off, fromB);
+          if (fromB < count) buffer[off + fromB] = '\n';
+          position += count;
+          return count;
+        }
+      }, new OutputStream() {
+        @Override public void write(int b) throws IOException {
+          checkCancelled(run);
+          out.write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+          checkCancelled(run);
+          out.write(b, off, len);
+        }
+      });
+    }
+
+    private void checkCancelled(Object run) throws IOException {
+      if (current != run) throw new IOException("Cancelled.");
+    }
+
+    public void cancel() {
+      current = null;
+    }
+
+    public void close() {}
+
+    @Override public String toString() {
+      return masker.getClass().getName() + " in process";
+    }
+  }
+
+  /**
+   * Masks lines with mask.sh, reusing one process for as long as the lines end in newlines. Times
+   * start once the process has masked a first line, so they leave out start-up.
+   */
+  static final class ProcessRunner implements Runner {
+    private static final byte[] WARM_UP = "warming up\n".getBytes(ASCII);
+    private static final int CHUNK = 64 * 1024;
+
+    private final Executor executor;
+    private final File directory;
+    private volatile Process process;
+
+    ProcessRunner(Executor executor, File directory) {
+      this.executor = executor;
+      this.directory = directory;
+    }
+
+    public void mask(final byte[] b, final int len, final boolean newline, OutputStream out)
+        throws IOException {
+      final Process process = this.process;
+      executor.execute(new Runnable() {
+        public void run() {
+          OutputStream in = process.getOutputStream();
+          try {
+            for (int off = 0; off < len; off += CHUNK) {
+              in.write(b, off, Math.min(CHUNK, len - off));
+            }
+            if (newline) {
+              in.write('\n');
+              in.flush();
+            } else {
+              in.close();
+            }
+          } catch (IOException e) {
+            // mask.sh quit or we gave up on it. The reader will see its output end early.
+          }
+        }
+      });
+
+      if (newline) {
+        read(process.getInputStream(), out, len + 1);
+      } else {
+        read(process.getInputStream(), out, Long.MAX_VALUE);
+        // That's all this process will mask.
+        close();
+      }
+    }
+
+    /** Starts mask.sh if it isn't running and waits for it to mask a line. */
+    public void prepare() throws IOException {
+      if (process != null) return;
+      final Process started = new ProcessBuilder("sh", "mask.sh").directory(directory)
+          .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+      process = started;
+      OutputStream in = started.getOutputStream();
+      in.write(WARM_UP);
+      in.flush();
+      byte[] warmUp = new byte[WARM_UP.length];
+      for (int read = 0; read < warmUp.length; ) {
+        int count = started.getInputStream().read(warmUp, read, warmUp.length - read);
+        if (count == -1) throw new EOFException("mask.sh exited on start-up.");
+        read += count;
+      }
+    }
+
+    /** Copies up to {@code length} bytes, or until EOF if that comes first. */
+    private static void read(InputStream in, OutputStream out, long length) throws IOException {
+      byte[] buffer = new byte[CHUNK];
+      for (long read = 0; read < length; ) {
+        int count = in.read(buffer, 0, (int) Math.min(buffer.length, length - read));
+        if (count == -1) {
+          if (length == Long.MAX_VALUE) return;
+          throw new EOFException("mask.sh's output ended early.");
+        }
+        out.write(buffer, 0, count);
+        read += count;
+      }
+    }
+
+    public void cancel() {
+      close();
+    }
+
+    public void close() {
+      Process process = this.process;
+      this.process = null;
+      if (process == null) return;
+      try {
+        process.getOutputStream().close();
+      } catch (IOException e) { /* already closed */ }
+      process.destroy();
+    }
+
+    @Override public String toString() {
+      return "mask.sh";
+    }
+  }
+
+  /** Checks the masked line against the input as it comes back. */
+  private static final class Check extends OutputStream {
+    /** Expected past the end of the line. Outside the byte range, so no byte matches it. */
+    private static final int NOTHING = 256;
+
+    private final Family family;
+    private final byte[] input;
+    private final int size;
+    private long position;
+
+    Check(Family family, byte[] input, int size) {
+      this.family = family;
+      this.input = input;
+      this.size = size;
+    }
+
+    @Override public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      for (int i = 0; i < len; i++, position++) {
+        if ((b[off + i] & 0xff) != expected(position)) {
+          throw mismatch("Unexpected output at byte " + position + ".", b, off + i, len - i);
+        }
+      }
+    }
+
+    private int expected(long index) {
+      if (index == size && family.newline) return '\n';
+      if (index >= size) return NOTHING;
+      return family.masked ? MASK : input[(int) index];
+    }
+
+    void finish() throws IOException {
+      long length = family.newline ? size + 1 : size;
+      if (position < length) throw mismatch("Output ended early.", new byte[0], 0, 0);
+    }
+
+    /** Shows 40 bytes of the line from where it went wrong. */
+    private Corpus.Mismatch mismatch(String message, byte[] b, int off, int len) {
+      int from = (int) Math.min(position, size);
+      int to = Math.min(from + 40, size);
+      StringBuilder expected = new StringBuilder();
+      for (long i = from; i < to; i++) expected.append((char) expected(i));
+      return new Corpus.Mismatch(String.format("%s In a %s line of %s.", message,
+          formatSize(size), family), 1, new String(input, from, to - from, ASCII),
+          expected.toString(), Corpus.Mismatch.actual(b, off, Math.min(len, 40)));
+    }
+  }
+
+  /** How one family's time grew. */
+  static final class Result {
+    final Family family;
+    final List<Long> sizes = new ArrayList<Long>();
+    final List<Long> times = new ArrayList<Long>();
+
+    /** The size we stopped at because it took too long, or 0. */
+    long gaveUpAt;
+
+    Result(Family family) {
+      this.family = family;
+    }
+
+    void add(long size, long nanos) {
+      sizes.add(size);
+      times.add(nanos);
+    }
+
+    /** Returns the growth exponent, or NaN if fewer than 3 sizes took long enough to fit. */
+    double slope() {
+      List<Long> fitSizes = new ArrayList<Long>();
+      List<Long> fitTimes = new ArrayList<Long>();
+      for (int i = 0; i < sizes.size(); i++) {
+        if (times.get(i) >= MIN_FIT_NANOS) {
+          fitSizes.add(sizes.get(i));
+          fitTimes.add(times.get(i));
+        }
+      }
+      if (fitSizes.size() < 3) return Double.NaN;
+      long[] x = new long[fitSizes.size()];
+      long[] y = new long[fitTimes.size()];
+      for (int i = 0; i < x.length; i++) {
+        x[i] = fitSizes.get(i);
+        y[i] = fitTimes.get(i);
+      }
+      return ComplexityCheck.slope(x, y);
+    }
+
+    /** Returns true if the time clearly grew faster than the size. */
+    boolean superLinear() {
+      return slope() > MAX_SLOPE;
+    }
+
+    void print(PrintStream out) {
+      out.printf("%s:%n", family);
+      out.printf("%12s %14s %14s%n", "Size", "Time", "Throughput");
+      for (int i = 0; i < sizes.size(); i++) {
+        long size = sizes.get(i);
+        long micros = TimeUnit.NANOSECONDS.toMicros(times.get(i));
+        out.printf("%12s %,12dus %,9.1f MB/s%s%n", formatSize(size), micros,
+            (double) size / Math.max(micros, 1), size == gaveUpAt ? " (gave up)" : "");
+      }
+      double slope = slope();
+      if (Double.isNaN(slope)) {
+        out.printf("Too fast to fit: fewer than 3 sizes took %,dms or more.%n",
+            TimeUnit.NANOSECONDS.toMillis(MIN_FIT_NANOS));
+      } else {
+        out.printf("Time grows as size^%.2f: %s.%n", slope,
+            superLinear() ? "super-linear" : "linear");
+      }
+      if (gaveUpAt != 0 && !superLinear()) {
+        out.printf("Gave up at %s; it took more than %,ds.%n", formatSize(gaveUpAt),
+            TimeUnit.NANOSECONDS.toSeconds(times.get(times.size() - 1)));
+      }
+    }
+  }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Generates realistic log lines with card #s mixed in, one line at a time, along with the
+ * expected masked version of each line. The same seed always generates the same lines, so one
+ * generator can feed a masker while another checks its output, in constant memory, for corpora
+ * far larger than the heap.
+ */
+final class Corpus {
+
+  /** No line is longer than this, including its line feed. */
+  static final int MAX_LINE = 256;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private static final byte[][] LEVELS = bytes("INFO  ", "INFO  ", "INFO  ", "WARN  ", "ERROR ");
+  private static final byte[][] THREADS = bytes("main", "http-8080-", "worker-", "scheduler-");
+  private static final byte[][] MESSAGES = bytes(
+      "Handled request ", "Cache miss for key ", "Retrying upstream call to shard ",
+      "Flushed batch of ", "Connection reset by peer on port ");
+
+  private final Random random;
+
+  /** The current line, as sent to the masker. */
+  final byte[] input = new byte[MAX_LINE];
+
+  /** The current line, as expected back from the masker. */
+  final byte[] expected = new byte[MAX_LINE];
+
+  /** Length of the current line. */
+  int length;
+
+  /** Number of the current line, starting at 1. */
+  long lineNumber;
+
+  private final StringBuilder digits = new StringBuilder(LuhnMasker.MAX_DIGITS);
+  private final NonMatchingDigits nonMatchingDigits;
+
+  Corpus(long seed) {
+    random = new Random(seed);
+    nonMatchingDigits = new NonMatchingDigits(random.nextLong());
+  }
+
+  /** Generates the next line. */
+  void next() {
+    length = 0;
+    lineNumber++;
+
+    timestamp();
+    append(LEVELS[random.nextInt(LEVELS.length)]);
+    append('[');
+    byte[] thread = THREADS[random.nextInt(THREADS.length)];
+    append(thread);
+    if (thread[thread.length - 1] == '-') number(random.nextInt(16));
+    append("] ");
+
+    switch (random.nextInt(8)) {
+      case 0:
+        append("Payment declined for card ");
+        cardNumber();
+        append(": insufficient funds");
+        break;
+      case 1:
+        append("java.lang.FakeException: ");
+        cardNumber();
+        append(" is a card #.");
+        break;
+      case 2:
+        append("Order ");
+        nonMatchingNumber();
+        append(" shipped");
+        break;
+      default:
+        append(MESSAGES[random.nextInt(MESSAGES.length)]);
+        number(random.nextInt(100000));
+        append(" in ");
+        number(random.nextInt(1000));
+        append("ms");
+    }
+    append('\n');
+  }
+
+  /** Appends a time of day derived from the line number, like "17:58:01.123 ". */
+  private void timestamp() {
+    long millis = lineNumber * 7 % 86400000L;
+    twoDigits(millis / 3600000);
+    append(':');
+    twoDigits(millis / 60000 % 60);
+    append(':');
+    twoDigits(millis / 1000 % 60);
+    append('.');
+    append((char) ('0' + millis / 100 % 10));
+    twoDigits(millis % 100);
+    append(' ');
+  }
+
+  private void twoDigits(long value) {
+    append((char) ('0' + value / 10));
+    append((char) ('0' + value % 10));
+  }
+
+  private void number(int value) {
+    int start = length;
+    do {
+      append((char) ('0' + value % 10));
+      value /= 10;
+    } while (value != 0);
+    reverse(start, length);
+  }
+
+  private void reverse(int from, int to) {
+    for (int i = from, j = to - 1; i < j; i++, j--) {
+      byte b = input[i];
+      input[i] = input[j];
+      input[j] = b;
+      b = expected[i];
+      expected[i] = expected[j];
+      expected[j] = b;
+    }
+  }
+
+  /** Appends a valid 14-16 digit card #, possibly formatted, and masks it in the expectation. */
+  private void cardNumber() {
+    digits.setLength(0);
+    int count = LuhnMasker.MIN_DIGITS
+        + random.nextInt(LuhnMasker.MAX_DIGITS - LuhnMasker.MIN_DIGITS + 1);
+    for (int i = 0; i < count - 1; i++) digits.append(randomDigit());
+    digits.append(LuhnChecksum.checkDigit(digits));
+
+    char separator = count == 16 ? " -\0".charAt(random.nextInt(3)) : '\0';
+    for (int i = 0; i < count; i++) {
+      if (separator != '\0' && i > 0 && i % 4 == 0) append(separator);
+      input[length] = (byte) digits.charAt(i);
+      expected[length++] = 'X';
+    }
+  }
+
+  /** Appends 16 digits without a card # in them. */
+  private void nonMatchingNumber() {
+    nonMatchingDigits.reset();
+    nonMatchingDigits.fill(input, length, LuhnMasker.MAX_DIGITS);
+    System.arraycopy(input, length, expected, length, LuhnMasker.MAX_DIGITS);
+    length += LuhnMasker.MAX_DIGITS;
+  }
+
+  private char randomDigit() {
+    return (char) ('0' + random.nextInt(10));
+  }
+
+  private void append(char c) {
+    input[length] = (byte) c;
+    expected[length++] = (byte) c;
+  }
+
+  private void append(CharSequence s) {
+    for (int i = 0; i < s.length(); i++) append(s.charAt(i));
+  }
+
+  private void append(byte[] b) {
+    System.arraycopy(b, 0, input, length, b.length);
+    System.arraycopy(b, 0, expected, length, b.length);
+    length += b.length;
+  }
+
+  private static byte[][] bytes(String... strings) {
+    byte[][] result = new byte[strings.length][];
+    for (int i = 0; i < strings.length; i++) result[i] = strings[i].getBytes(ASCII);
+    return result;
+  }
+
+  /** Streams a corpus to a masker. */
+  abstract static class Source extends InputStream {
+    /** Ends the stream at the end of the current line. Safe to call from any thread. */
+    abstract void stop();
+
+    /** Returns the number of bytes read so far. */
+    abstract long bytes();
+  }
+
+  /** Checks a masker's output against a corpus. */
+  abstract static class Checker extends OutputStream {
+    /** Returns the number of lines checked so far. Safe to call from any thread. */
+    abstract long lines();
+
+    /** Returns the number of bytes checked so far. Safe to call from any thread. */
+    abstract long bytes();
+
+    /** Throws unless we've seen exactly {@code size} bytes of output, ending with a whole line. */
+    abstract void finish(long size) throws IOException;
+  }
+
+  /** Streams whole lines until at least {@code size} bytes have been read, or until stopped. */
+  static class Input extends Source {
+    private final Corpus corpus;
+    private final long size;
+    private long read;
+    private int offset;
+    private volatile boolean stopped;
+
+    Input(long seed, long size) {
+      this.corpus = new Corpus(seed);
+      this.size = size;
+    }
+
+    @Override void stop() {
+      stopped = true;
+    }
+
+    @Override long bytes() {
+      return read;
+    }
+
+    @Override public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override public int read(byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      int total = 0;
+      while (total < len) {
+        if (offset == corpus.length) {
+          if (read >= size || stopped) break;
+          corpus.next();
+          offset = 0;
+        }
+        int count = Math.min(len - total, corpus.length - offset);
+        System.arraycopy(corpus.input, offset, b, off + total, count);
+        offset += count;
+        total += count;
+        read += count;
+      }
+      return total == 0 ? -1 : total;
+    }
+  }
+
+  /** Checks masked output against the lines {@link Input} generates for the same seed. */
+  static class Verifier extends Checker {
+    private final Corpus corpus;
+    private int offset;
+
+    /** Totals as of the end of the last write, for other threads to sample. */
+    private volatile long bytes;
+    private volatile long lines;
+
+    Verifier(long seed) {
+      this.corpus = new Corpus(seed);
+    }
+
+    @Override long lines() {
+      return lines;
+    }
+
+    @Override long bytes() {
+      return bytes;
+    }
+
+    @Override public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      for (int i = 0; i < len; i++) {
+        if (offset == corpus.length) {
+          corpus.next();
+          offset = 0;
+        }
+        if (b[off + i] != corpus.expected[offset]) {
+          // Show the actual line from its start, or from the start of this write if earlier.
+          int lineStart = Math.max(off, off + i - offset);
+          throw new Mismatch("Unexpected output.", corpus, b, lineStart, off + len - lineStart);
+        }
+        offset++;
+      }
+      bytes += len;
+      lines = corpus.lineNumber;
+    }
+
+    @Override void finish(long size) throws IOException {
+      if (bytes > size) {
+        throw new Mismatch("Too much output.", corpus, new byte[0], 0, 0);
+      }
+      if (offset != corpus.length || bytes < size) {
+        throw new Mismatch("Output ended early.", corpus, new byte[0], 0, 0);
+      }
+    }
+  }
+
+  /** Thrown when the masked output doesn't match the corpus. */
+  static class Mismatch extends IOException {
+    private static final long serialVersionUID = 0;
+
+    final long lineNumber;
+    final String input;
+    final String expected;
+    final String actual;
+
+    /** Captures the current line and the actual bytes written from {@code off}. */
+    Mismatch(String message, Corpus corpus, byte[] b, int off, int len) {
+      this(message, corpus.lineNumber, new String(corpus.input, 0, corpus.length, ASCII),
+          new String(corpus.expected, 0, corpus.length, ASCII), actual(b, off, len));
+    }
+
+    Mismatch(String message, long lineNumber, String input, String expected, String actual) {
+      super(message + " Line " + lineNumber + ".");
+      this.lineNumber = lineNumber;
+      this.input = input;
+      this.expected = expected;
+      this.actual = actual;
+    }
+
+    /** Returns the actual bytes written from {@code off}, up to the end of the line. */
+    static String actual(byte[] b, int off, int len) {
+      int end = off;
+      while (end < off + len && end - off < MAX_LINE && b[end] != '\n') end++;
+      return new String(b, off, end - off, ASCII);
+    }
+  }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A corpus saved to disk, so runs can stream it instead of generating it. Holds cases, each with
+ * a description, input bytes and the expected masked bytes. All the input comes first, then all
+ * the expected output, so streaming the input to a masker is one sequential pass over a memory
+ * mapping, and checking what comes back is another. Neither copies the corpus onto the heap, so
+ * corpora can be far larger than it.
+ *
+ * <p>{@link #cachedLogs} keys files by seed, size and a {@link #fingerprint} of the generator, and
+ * only generates a file when there's none for the current generator.
+ *
+ * <p>Layout: a fixed-size header, the input, the expected output, then a table of cases.
+ */
+final class CorpusFile implements Closeable {
+
+  private static final int MAGIC = 0x4c42434f; // "LBCO"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 64;
+
+  /** Generated log lines per case, roughly. Mismatches report the case they're in. */
+  static final int CASE_SIZE = 1 << 20;
+
+  /** How much of the file to map at a time. Mappings are limited to 2GB. */
+  static final int WINDOW_SIZE = 256 << 20;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /** Classes whose changes change what we generate. */
+  private static final Class<?>[] GENERATOR = { Corpus.class, NonMatchingDigits.class,
+      LuhnChecksum.class, CardRules.class, LuhnMasker.class, CorpusFile.class };
+
+  /** Bump to regenerate cached corpora after a change the generator's class files don't show. */
+  private static final int GENERATOR_VERSION = 1;
+
+  private final File file;
+  private final FileChannel channel;
+  private final int windowSize;
+  final long seed;
+  final String fingerprint;
+
+  /** Total input bytes, which is also total expected bytes. */
+  final long size;
+
+  private final String[] descriptions;
+
+  /** Where each case starts within the input, and so within the expected output. */
+  private final long[] offsets;
+
+  private CorpusFile(File file, int windowSize) throws IOException {
+    this.file = file;
+    this.windowSize = windowSize;
+    channel = new RandomAccessFile(file, "r").getChannel();
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header) != -1) {}
+      header.flip();
+      if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC
+          || header.getInt() != FORMAT_VERSION) {
+        throw new IOException("Not a corpus: " + file);
+      }
+      byte[] fingerprintBytes = new byte[header.get()];
+      header.get(fingerprintBytes);
+      fingerprint = new String(fingerprintBytes, ASCII);
+      header.position(32);
+      seed = header.getLong();
+      size = header.getLong();
+      long tableOffset = header.getLong();
+      int cases = header.getInt();
+      if (size < 0 || tableOffset != HEADER_SIZE + 2 * size || cases < 0
+          || tableOffset > channel.size()) {
+        throw new IOException("Corrupt corpus: " + file);
+      }
+
+      DataInputStream table = new DataInputStream(new BufferedInputStream(
+          Channels.newInputStream(channel.position(tableOffset))));
+      descriptions = new String[cases];
+      offsets = new long[cases];
+      for (int i = 0; i < cases; i++) {
+        descriptions[i] = table.readUTF();
+        offsets[i] = table.readLong();
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /** Opens a corpus file. Throws if it isn't one. */
+  static CorpusFile open(File file) throws IOException {
+    return new CorpusFile(file, WINDOW_SIZE);
+  }
+
+  static CorpusFile open(File file, int windowSize) throws IOException {
+    return new CorpusFile(file, windowSize);
+  }
+
+  /**
+   * Returns the {@link Corpus generated logs} for {@code seed} and {@code size}, cached in
+   * {@code directory}. Generates them if there's no file for the current generator, and deletes
+   * files from older generators.
+   */
+  static CorpusFile cachedLogs(File directory, long seed, long size) throws IOException {
+    File file = logsFile(directory, seed, size);
+    if (file.exists()) {
+      try {
+        return open(file);
+      } catch (IOException e) {
+        // Half-written or from a bad disk. Make it again.
+      }
+    }
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Couldn't create " + directory);
+    }
+    String prefix = "logs-" + seed + "-" + size + "-";
+    File[] old = directory.listFiles();
+    if (old != null) {
+      for (File stale : old) {
+        if (stale.getName().startsWith(prefix) && !stale.equals(file)) stale.delete();
+      }
+    }
+    writeLogs(file, seed, size);
+    return open(file);
+  }
+
+  /** Returns where {@link #cachedLogs} keeps the logs for {@code seed} and {@code size}. */
+  static File logsFile(File directory, long seed, long size) {
+    return new File(directory, "logs-" + seed + "-" + size + "-" + fingerprint() + ".corpus");
+  }
+
+  /** Writes the lines {@link Corpus.Input} would stream for {@code seed} and {@code size}. */
+  static void writeLogs(File file, long seed, long size) throws IOException {
+    Corpus corpus = new Corpus(seed);
+    byte[] input = new byte[CASE_SIZE + Corpus.MAX_LINE];
+    byte[] expected = new byte[CASE_SIZE + Corpus.MAX_LINE];
+    Writer writer = new Writer(file, seed);
+    try {
+      long written = 0;
+      int length = 0;
+      long firstLine = 1;
+      while (written < size) {
+        corpus.next();
+        System.arraycopy(corpus.input, 0, input, length, corpus.length);
+        System.arraycopy(corpus.expected, 0, expected, length, corpus.length);
+        length += corpus.length;
+        written += corpus.length;
+        if (length >= CASE_SIZE || written >= size) {
+          writer.add(String.format("generated lines %,d-%,d", firstLine, corpus.lineNumber),
+              input, expected, length);
+          firstLine = corpus.lineNumber + 1;
+          length = 0;
+        }
+      }
+      writer.finish();
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Returns a hash of {@link #GENERATOR_VERSION} and the class files of the generator, the rules
+   * it follows and their nested classes. It changes whenever we change how we generate, so we
+   * never stream a corpus the current code wouldn't have made.
+   */
+  static String fingerprint() {
+    try {
+      MessageDigest md5 = MessageDigest.getInstance("MD5");
+      md5.update(Integer.toString(GENERATOR_VERSION).getBytes(ASCII));
+      List<Class<?>> classes = new ArrayList<Class<?>>();
+      for (Class<?> c : GENERATOR) {
+        classes.add(c);
+        classes.addAll(Arrays.asList(c.getDeclaredClasses()));
+      }
+      for (Class<?> c : classes) {
+        // Nested classes are Outer$Inner.class.
+        String name = c.getName().substring(c.getName().lastIndexOf('.') + 1);
+        InputStream in = c.getResourceAsStream(name + ".class");
+        if (in == null) throw new IllegalStateException("Can't find " + c);
+        try {
+          md5.update(ByteStreams.toByteArray(in));
+        } finally {
+          in.close();
+        }
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : Arrays.copyOf(md5.digest(), 8)) hex.append(String.format("%02x", b));
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  int cases() {
+    return descriptions.length;
+  }
+
+  String description(int index) {
+    return descriptions[index];
+  }
+
+  /** Returns where case {@code index} starts in the input. */
+  long offset(int index) {
+    return offsets[index];
+  }
+
+  /** Returns the case that holds input byte {@code offset}. */
+  int caseAt(long offset) {
+    int index = Arrays.binarySearch(offsets, offset);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  /** Streams the input. */
+  Input input() {
+    return new Input();
+  }
+
+  /** Checks output against the expected bytes. */
+  Verifier verifier() {
+    return new Verifier();
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  @Override public String toString() {
+    return file.getPath();
+  }
+
+  /** Reads a region of the file through a window that slides forward as it goes. */
+  private final class Window {
+    private final long start;
+    private final long end;
+    private MappedByteBuffer buffer;
+    private long bufferStart;
+
+    Window(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    /** Returns a buffer positioned at {@code offset} within the region, with bytes remaining. */
+    MappedByteBuffer at(long offset) throws IOException {
+      long position = start + offset;
+      if (buffer == null || position < bufferStart || position >= bufferStart + buffer.limit()) {
+        bufferStart = position;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+            Math.min(windowSize, end - position));
+      }
+      buffer.position((int) (position - bufferStart));
+      return buffer;
+    }
+
+    /** Returns the byte at {@code offset} within the region without moving the window. */
+    byte get(long offset) throws IOException {
+      ByteBuffer one = ByteBuffer.allocate(1);
+      channel.read(one, start + offset);
+      return one.get(0);
+    }
+
+    /** Reads the line around {@code offset} for error messages. */
+    String lineAround(long offset) throws IOException {
+      long from = offset;
+      while (from > 0 && offset - from < Corpus.MAX_LINE && get(from - 1) != '\n') from--;
+      long to = offset;
+      while (to < end - start && to - from < Corpus.MAX_LINE && get(to) != '\n') to++;
+      ByteBuffer line = ByteBuffer.allocate((int) (to - from));
+      channel.read(line, start + from);
+      return new String(line.array(), 0, line.position(), ASCII);
+    }
+  }
+
+  /** Streams the input straight from the mapping. */
+  final class Input extends Corpus.Source {
+    private final Window window = new Window(HEADER_SIZE, HEADER_SIZE + size);
+    private long limit = size;
+    private volatile long read;
+    private volatile boolean stopped;
+
+    @Override void stop() {
+      stopped = true;
+    }
+
+    @Override long bytes() {
+      return read;
+    }
+
+    @Override public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (stopped && limit == size) {
+        // Finish the line we're in. Only this thread moves read, so it can't move under us.
+        limit = read;
+        while (limit > 0 && limit < size && window.get(limit - 1) != '\n') limit++;
+      }
+      if (read >= limit) return -1;
+      MappedByteBuffer buffer = window.at(read);
+      int count = (int) Math.min(Math.min(len, buffer.remaining()), limit - read);
+      buffer.get(b, off, count);
+      read += count;
+      return count;
+    }
+  }
+
+  /** Compares output with the expected bytes in the mapping. */
+  final class Verifier extends Corpus.Checker {
+    private final Window window = new Window(HEADER_SIZE + size, HEADER_SIZE + 2 * size);
+    private final Window inputWindow = new Window(HEADER_SIZE, HEADER_SIZE + size);
+    private long position;
+    private long lineCount;
+    private boolean lineEnded = true;
+
+    /** Totals as of the end of the last write, for other threads to sample. */
+    private volatile long bytes;
+    private volatile long lines;
+
+    @Override long lines() {
+      return lines;
+    }
+
+    @Override long bytes() {
+      return bytes;
+    }
+
+    @Override public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      int i = 0;
+      while (i < len) {
+        if (position == size) {
+          throw mismatch("Too much output.", b, off + i, len - i);
+        }
+        MappedByteBuffer expected = window.at(position);
+        int count = Math.min(len - i, expected.remaining());
+        int base = expected.position();
+        for (int j = 0; j < count; j++) {
+          byte actual = b[off + i + j];
+          if (actual != expected.get(base + j)) {
+            position += j;
+            // Show the actual line from its start, or from the start of this write if earlier.
+            int lineStart = off + i + j;
+            while (lineStart > off && b[lineStart - 1] != '\n') lineStart--;
+            throw mismatch("Unexpected output.", b, lineStart, off + len - lineStart);
+          }
+          if (actual == '\n') lineCount++;
+        }
+        position += count;
+        i += count;
+      }
+      lineEnded = len == 0 ? lineEnded : b[off + len - 1] == '\n';
+      bytes = position;
+      lines = lineCount;
+    }
+
+    @Override void finish(long length) throws IOException {
+      if (position > length) throw mismatch("Too much output.", new byte[0], 0, 0);
+      if (position < length || !lineEnded) {
+        throw mismatch("Output ended early.", new byte[0], 0, 0);
+      }
+    }
+
+    private Corpus.Mismatch mismatch(String message, byte[] b, int off, int len)
+        throws IOException {
+      long at = Math.min(position, Math.max(size - 1, 0));
+      String in = size == 0 ? "" : inputWindow.lineAround(at);
+      String expected = size == 0 ? "" : window.lineAround(at);
+      String description = size == 0 ? "" : " In " + descriptions[caseAt(at)] + ".";
+      return new Corpus.Mismatch(message + description, lineCount + 1, in, expected,
+          Corpus.Mismatch.actual(b, off, len));
+    }
+  }
+
+  /**
+   * Writes a corpus file. Writes input in place and expected output to a temporary file, then
+   * appends the expected output and table and renames the result into place, so readers never
+   * see half a corpus.
+   */
+  static final class Writer implements Closeable {
+    private final File file;
+    private final File temp;
+    private final File expectedTemp;
+    private final long seed;
+    private final FileChannel out;
+    private final FileChannel expectedOut;
+    private final List<String> descriptions = new ArrayList<String>();
+    private final List<Long> offsets = new ArrayList<Long>();
+    private long size;
+
+    Writer(File file, long seed) throws IOException {
+      this.file = file;
+      this.seed = seed;
+      temp = new File(file.getPath() + ".tmp");
+      expectedTemp = new File(file.getPath() + ".expected.tmp");
+      out = new RandomAccessFile(temp, "rw").getChannel();
+      out.truncate(0);
+      out.position(HEADER_SIZE);
+      expectedOut = new RandomAccessFile(expectedTemp, "rw").getChannel();
+      expectedOut.truncate(0);
+    }
+
+    /** Adds a case with {@code length} bytes of input and expected output. */
+    void add(String description, byte[] input, byte[] expected, int length) throws IOException {
+      descriptions.add(description);
+      offsets.add(size);
+      write(out, ByteBuffer.wrap(input, 0, length));
+      write(expectedOut, ByteBuffer.wrap(expected, 0, length));
+      size += length;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer bytes) throws IOException {
+      while (bytes.hasRemaining()) channel.write(bytes);
+    }
+
+    void finish() throws IOException {
+      for (long copied = 0; copied < size; ) {
+        copied += expectedOut.transferTo(copied, size - copied, out);
+      }
+
+      ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+      DataOutputStream table = new DataOutputStream(tableBytes);
+      for (int i = 0; i < descriptions.size(); i++) {
+        table.writeUTF(descriptions.get(i));
+        table.writeLong(offsets.get(i));
+      }
+      table.flush();
+      write(out, ByteBuffer.wrap(tableBytes.toByteArray()));
+
+      byte[] fingerprint = fingerprint().getBytes(ASCII);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(FORMAT_VERSION).put((byte) fingerprint.length).put(fingerprint);
+      header.position(32);
+      header.putLong(seed).putLong(size).putLong(HEADER_SIZE + 2 * size)
+          .putInt(descriptions.size());
+      header.rewind();
+      out.position(0);
+      write(out, header);
+      out.force(true);
+      out.close();
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void close() throws IOException {
+      try {
+        out.close();
+        expectedOut.close();
+      } finally {
+        temp.delete();
+        expectedTemp.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Masks files through memory maps, either in place or into a separate file. Masking never
+ * changes the length of the input, so the output is preallocated and mapped up front.
+ */
+final class FileMasker {
+
+  private static final long REGION_SIZE = 256L << 20;
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  private final LuhnMasker masker;
+
+  /** Bytes mapped at a time. */
+  private final long regionSize;
+
+  /** Bytes copied and then masked at a time, so they're still in cache when we mask them. */
+  private final int blockSize;
+
+  FileMasker() {
+    this(null);
+  }
+
+  /** Counts what we mask in {@code metrics}, unless it's null. */
+  FileMasker(MaskerMetrics metrics) {
+    this(REGION_SIZE, BLOCK_SIZE, metrics);
+  }
+
+  FileMasker(long regionSize, int blockSize) {
+    this(regionSize, blockSize, null);
+  }
+
+  private FileMasker(long regionSize, int blockSize, MaskerMetrics metrics) {
+    if (blockSize <= LuhnMasker.MAX_PENDING || regionSize < blockSize) {
+      throw new IllegalArgumentException("Region and block sizes are too small.");
+    }
+    this.regionSize = regionSize;
+    this.blockSize = blockSize;
+    this.masker = new LuhnMasker(metrics);
+  }
+
+  /** Masks {@code file} in place and returns its length. */
+  long mask(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      return mask(raf.getChannel(), raf.getChannel());
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Masks {@code input} into {@code output}, replacing it, and returns the input's length. */
+  long mask(File input, File output) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(input, "r");
+    try {
+      RandomAccessFile out = new RandomAccessFile(output, "rw");
+      try {
+        out.setLength(in.length());
+        return mask(in.getChannel(), out.getChannel());
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Masks {@code in} into {@code out} and returns the number of bytes masked. If the channels are
+   * the same, masks in place.
+   */
+  long mask(FileChannel in, FileChannel out) throws IOException {
+    boolean inPlace = in == out;
+    long size = in.size();
+    long position = 0; // The first byte that isn't final.
+    long copied = inPlace ? size : 0;
+    try {
+      while (position < size) {
+        long length = Math.min(regionSize, size - position);
+        MappedByteBuffer source = inPlace ? null : in.map(FileChannel.MapMode.READ_ONLY,
+            position, length);
+        MappedByteBuffer target = out.map(FileChannel.MapMode.READ_WRITE, position, length);
+
+        // Pending bytes from the last region were already copied.
+        int start = 0;
+        int end;
+        do {
+          end = (int) Math.min(length, start + blockSize);
+          if (copied < position + end) {
+            int from = (int) (copied - position);
+            source.limit(end).position(from);
+            target.limit(end).position(from);
+            target.put(source);
+            copied = position + end;
+          }
+
+          target.limit(end).position(start);
+          start += masker.mask(target);
+        } while (end < length);
+
+        // Pending bytes at the end of the file are final.
+        position = position + length == size ? size : position + start;
+      }
+      return size;
+    } finally {
+      masker.reset();
+    }
+  }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Masks gzipped logs into gzipped logs, decompressing, masking, compressing and writing on
+ * separate threads. The stages pass a fixed set of blocks around through bounded queues, so
+ * memory stays flat however big the log is.
+ *
+ * <p>Each block is compressed into its own gzip member, so several threads can compress at once;
+ * gzip and {@link GZIPInputStream} read the members back as one stream. The writer puts them back
+ * in order. Smaller blocks compress a little worse, since each member starts with an empty
+ * dictionary.
+ */
+final class GzipPipeline {
+
+  static final int BLOCK_SIZE = 1 << 20;
+
+  /** Every gzip member starts with this: no name, no timestamp. */
+  private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0,
+      0, 0 };
+
+  private final int compressors;
+  private final int blockSize;
+  private final MaskerMetrics metrics;
+
+  GzipPipeline() {
+    this(Runtime.getRuntime().availableProcessors(), BLOCK_SIZE, null);
+  }
+
+  /** Counts what we mask in {@code metrics}, unless it's null. */
+  GzipPipeline(int compressors, int blockSize, MaskerMetrics metrics) {
+    if (compressors < 1 || blockSize < 1) throw new IllegalArgumentException();
+    this.compressors = compressors;
+    this.blockSize = blockSize;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Masks gzipped {@code in} into gzipped {@code out} and returns what each stage did. Doesn't
+   * close either stream.
+   */
+  Report mask(final InputStream in, final OutputStream out) throws IOException {
+    // Enough blocks that every stage can have one in hand and one waiting.
+    int blocks = 2 * (compressors + 3);
+    final BlockingQueue<Block> free = new ArrayBlockingQueue<Block>(blocks);
+    final BlockingQueue<Block> decompressed = new ArrayBlockingQueue<Block>(blocks);
+    final BlockingQueue<Block> masked = new ArrayBlockingQueue<Block>(blocks);
+    final BlockingQueue<Block> compressed = new ArrayBlockingQueue<Block>(blocks);
+    for (int i = 0; i < blocks; i++) free.add(new Block(blockSize));
+
+    final Report report = new Report(compressors);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    ExecutorService executor = Executors.newFixedThreadPool(compressors + 3);
+    try {
+      executor.execute(new Stage(report.decompress, failure, executor) {
+        @Override void run(Timer timer) throws Exception {
+          decompress(new GZIPInputStream(in, 64 * 1024), free, decompressed, timer);
+        }
+      });
+      executor.execute(new Stage(report.mask, failure, executor) {
+        @Override void run(Timer timer) throws Exception {
+          mask(decompressed, masked, timer);
+        }
+      });
+      for (int i = 0; i < compressors; i++) {
+        executor.execute(new Stage(report.compress, failure, executor) {
+          @Override void run(Timer timer) throws Exception {
+            compress(masked, compressed, timer);
+          }
+        });
+      }
+      Future<?> writer = executor.submit(new Stage(report.write, failure, executor) {
+        @Override void run(Timer timer) throws Exception {
+          write(compressed, free, out, timer);
+        }
+      });
+
+      try {
+        writer.get();
+      } catch (ExecutionException e) {
+        throw new AssertionError(e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted");
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Throwable t = failure.get();
+    if (t instanceof IOException) throw (IOException) t;
+    if (t instanceof RuntimeException) throw (RuntimeException) t;
+    if (t != null) throw new AssertionError(t);
+    report.finish();
+    return report;
+  }
+
+  /** Fills blocks with decompressed bytes, leaving room in front for pending bytes. */
+  private void decompress(InputStream in, BlockingQueue<Block> free,
+      BlockingQueue<Block> decompressed, Timer timer) throws Exception {
+    for (long sequence = 0; ; sequence++) {
+      Block block = timer.wait(free);
+      int count = 0;
+      int read = 0;
+      while (count < blockSize && (read = in.read(block.data, Block.HEADROOM + count,
+          blockSize - count)) != -1) {
+        count += read;
+      }
+      block.sequence = sequence;
+      block.off = Block.HEADROOM;
+      block.len = count;
+      block.last = read == -1;
+      timer.add(count);
+      timer.put(decompressed, block);
+      if (block.last) return;
+    }
+  }
+
+  /**
+   * Masks blocks in order. Moves the bytes the masker holds back at the end of a block to the
+   * front of the next one.
+   */
+  private void mask(BlockingQueue<Block> decompressed, BlockingQueue<Block> masked, Timer timer)
+      throws Exception {
+    LuhnMasker masker = new LuhnMasker(metrics);
+    byte[] carry = new byte[LuhnMasker.MAX_PENDING];
+    int carried = 0;
+    while (true) {
+      Block block = timer.wait(decompressed);
+      block.off -= carried;
+      System.arraycopy(carry, 0, block.data, block.off, carried);
+      block.len += carried;
+      int done = masker.mask(block.data, block.off, block.len);
+      // Once we hand the block on, it may be written, recycled and refilled before we look again.
+      boolean last = block.last;
+      if (last) {
+        masker.reset();
+      } else {
+        carried = block.len - done;
+        System.arraycopy(block.data, block.off + done, carry, 0, carried);
+        block.len = done;
+      }
+      timer.add(block.len);
+      timer.put(masked, block);
+      if (last) {
+        // Tell the other compressors to stop too.
+        for (int i = 1; i < compressors; i++) timer.put(masked, Block.END);
+        return;
+      }
+    }
+  }
+
+  /** Compresses each block into a gzip member. */
+  private static void compress(BlockingQueue<Block> masked, BlockingQueue<Block> compressed,
+      Timer timer) throws Exception {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    CRC32 crc = new CRC32();
+    try {
+      while (true) {
+        Block block = timer.wait(masked);
+        if (block == Block.END) return;
+        block.compress(deflater, crc);
+        boolean last = block.last;
+        timer.add(block.len);
+        timer.put(compressed, block);
+        if (last) return;
+      }
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Writes members in order and recycles their blocks. */
+  private static void write(BlockingQueue<Block> compressed, BlockingQueue<Block> free,
+      OutputStream out, Timer timer) throws Exception {
+    Map<Long, Block> early = new HashMap<Long, Block>();
+    for (long next = 0; ; next++) {
+      Block block = early.remove(next);
+      while (block == null) {
+        Block arrived = timer.wait(compressed);
+        if (arrived.sequence == next) {
+          block = arrived;
+        } else {
+          early.put(arrived.sequence, arrived);
+        }
+      }
+      out.write(block.compressed, 0, block.compressedLength);
+      timer.add(block.len);
+      timer.addCompressed(block.compressedLength);
+      if (block.last) {
+        out.flush();
+        return;
+      }
+      free.put(block);
+    }
+  }
+
+  /** Runs one thread of a stage and records its time. Stops every stage if it fails. */
+  private abstract static class Stage implements Runnable {
+    final Report.StageStats stats;
+    final AtomicReference<Throwable> failure;
+    final ExecutorService executor;
+
+    Stage(Report.StageStats stats, AtomicReference<Throwable> failure,
+        ExecutorService executor) {
+      this.stats = stats;
+      this.failure = failure;
+      this.executor = executor;
+    }
+
+    public final void run() {
+      Timer timer = new Timer();
+      try {
+        run(timer);
+      } catch (InterruptedException e) {
+        // Another stage failed.
+      } catch (Throwable t) {
+        failure.compareAndSet(null, t);
+        executor.shutdownNow();
+      } finally {
+        timer.finish(stats);
+      }
+    }
+
+    abstract void run(Timer timer) throws Exception;
+  }
+
+  /** Splits one thread's time into waiting on queues and working. */
+  private static final class Timer {
+    final long start = System.nanoTime();
+    long waiting;
+    long bytes;
+    long compressedBytes;
+
+    Block wait(BlockingQueue<Block> queue) throws InterruptedException {
+      long start = System.nanoTime();
+      Block block = queue.take();
+      waiting += System.nanoTime() - start;
+      return block;
+    }
+
+    void put(BlockingQueue<Block> queue, Block block) throws InterruptedException {
+      long start = System.nanoTime();
+      queue.put(block);
+      waiting += System.nanoTime() - start;
+    }
+
+    void add(long bytes) {
+      this.bytes += bytes;
+    }
+
+    void addCompressed(long bytes) {
+      compressedBytes += bytes;
+    }
+
+    void finish(Report.StageStats stats) {
+      stats.busyNanos.addAndGet(System.nanoTime() - start - waiting);
+      stats.bytes.addAndGet(bytes);
+      stats.compressedBytes.addAndGet(compressedBytes);
+    }
+  }
+
+  /** A buffer that moves from stage to stage. */
+  private static final class Block {
+    /** Tells a compressor there are no more blocks. */
+    static final Block END = new Block(0);
+
+    /** Room in front of the data for the bytes held back from the previous block. */
+    static final int HEADROOM = LuhnMasker.MAX_PENDING;
+
+    final byte[] data;
+    long sequence;
+    int off;
+    int len;
+    boolean last;
+
+    byte[] compressed;
+    int compressedLength;
+
+    Block(int size) {
+      data = new byte[HEADROOM + size];
+      compressed = new byte[size / 2 + 64];
+    }
+
+    /** Compresses {@code data[off, off + len)} into a complete gzip member. */
+    void compress(Deflater deflater, CRC32 crc) {
+      System.arraycopy(HEADER, 0, compressed, 0, HEADER.length);
+      compressedLength = HEADER.length;
+      deflater.reset();
+      deflater.setInput(data, off, len);
+      deflater.finish();
+      while (!deflater.finished()) {
+        if (compressedLength == compressed.length) grow();
+        compressedLength += deflater.deflate(compressed, compressedLength,
+            compressed.length - compressedLength);
+      }
+
+      crc.reset();
+      crc.update(data, off, len);
+      if (compressed.length - compressedLength < 8) grow();
+      writeIntLe((int) crc.getValue());
+      writeIntLe(len);
+    }
+
+    private void grow() {
+      byte[] bigger = new byte[compressed.length * 2];
+      System.arraycopy(compressed, 0, bigger, 0, compressedLength);
+      compressed = bigger;
+    }
+
+    private void writeIntLe(int value) {
+      for (int i = 0; i < 4; i++) compressed[compressedLength++] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  /** How much each stage did and how long it spent working rather than waiting. */
+  static final class Report {
+    final StageStats decompress = new StageStats("Decompress", 1);
+    final StageStats mask = new StageStats("Mask", 1);
+    final StageStats compress;
+    final StageStats write = new StageStats("Write", 1);
+    private final long start = System.nanoTime();
+    private long elapsed;
+
+    Report(int compressors) {
+      compress = new StageStats("Compress", compressors);
+    }
+
+    void finish() {
+      elapsed = System.nanoTime() - start;
+    }
+
+    /** Returns the number of uncompressed bytes that went through. */
+    long bytes() {
+      return write.bytes.get();
+    }
+
+    long compressedBytes() {
+      return write.compressedBytes.get();
+    }
+
+    void print(PrintStream out) {
+      out.printf("%-10s %7s %10s %12s %7s%n", "Stage", "Threads", "Busy", "Busy MB/s", "Busy");
+      for (StageStats stage : new StageStats[] { decompress, mask, compress, write }) {
+        long busy = stage.busyNanos.get();
+        out.printf("%-10s %7d %,8dms %,12.1f %6.0f%%%n", stage.name, stage.threads,
+            busy / 1000000, stage.bytes.get() * 1e3 / Math.max(busy, 1),
+            100.0 * busy / stage.threads / Math.max(elapsed, 1));
+      }
+      out.printf("%nMasked %,d bytes (%,d compressed) in %,dms (%,.1f MB/s)%n", bytes(),
+          compressedBytes(), elapsed / 1000000, bytes() * 1e3 / Math.max(elapsed, 1));
+    }
+
+    /** Totals across a stage's threads. MB/s is per thread. */
+    static final class StageStats {
+      final String name;
+      final int threads;
+      final AtomicLong busyNanos = new AtomicLong();
+      final AtomicLong bytes = new AtomicLong();
+      final AtomicLong compressedBytes = new AtomicLong();
+
+      StageStats(String name, int threads) {
+        this.name = name;
+        this.threads = threads;
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes one test line at a time and waits for its masked result before writing the next, timing
+ * each round trip. A masker that buffers until it has a block or EOF is useless for tailing live
+ * logs; this catches it. Run {@link #run()} on another thread to watch for results that take
+ * longer than the deadline.
+ */
+final class LatencyProbe implements Runnable {
+
+  private final OutputStream out;
+  private final InputStream in;
+  private final long deadlineNanos;
+  private final DeadlineListener deadlineListener;
+
+  /** The test we're waiting for, or null. Set before {@link #waitingSince}. */
+  private volatile TestCase waitingFor;
+
+  /** When we started writing {@link #waitingFor}, from System.nanoTime(). */
+  private volatile long waitingSince;
+
+  LatencyProbe(OutputStream out, InputStream in, long deadlineNanos,
+      DeadlineListener deadlineListener) {
+    this.out = out;
+    this.in = in;
+    this.deadlineNanos = deadlineNanos;
+    this.deadlineListener = deadlineListener;
+  }
+
+  /** Writes and checks each test in turn, recording each round trip in {@code timings}. */
+  void check(TestSuite tests, TestTimings timings, TestCase.Listener listener)
+      throws IOException {
+    List<TestCase> testCases = tests.testCases();
+    for (int i = 0; i < testCases.size(); i++) {
+      TestCase test = testCases.get(i);
+      waitingFor = test;
+      timings.written(test);
+      waitingSince = System.nanoTime();
+      test.writeTo(out);
+      out.flush();
+      test.check(in, listener);
+      timings.read(test);
+      waitingFor = null;
+    }
+  }
+
+  /** Polls for a missed deadline until interrupted. */
+  public void run() {
+    long pollNanos = Math.max(deadlineNanos / 10, TimeUnit.MILLISECONDS.toNanos(1));
+    try {
+      while (true) {
+        TimeUnit.NANOSECONDS.sleep(pollNanos);
+        TestCase test = waitingFor;
+        long waited = System.nanoTime() - waitingSince;
+        if (test != null && waited > deadlineNanos) {
+          deadlineListener.missedDeadline(test, waited);
+          return;
+        }
+      }
+    } catch (InterruptedException e) { /* done */ }
+  }
+
+  interface DeadlineListener {
+    /** Called on the watching thread when a result is overdue. */
+    void missedDeadline(TestCase test, long waitedNanos);
+  }
+}
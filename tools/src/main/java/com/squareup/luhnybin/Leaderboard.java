@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the tests against every implementation in a directory, one after another, and ranks them.
+ * Each subdirectory with a mask.sh is an implementation, checked out and built already; nothing
+ * here touches the network. Implementations that fail a test, stop early or stall rank below
+ * the ones that pass, whatever their times. The table also shows the CPU time and memory each
+ * one used, which a fast but greedy masker would rather not show.
+ */
+final class Leaderboard {
+
+  /** Give up on an implementation if it doesn't pass a test for this long. */
+  static final long STALL_TIMEOUT_MS = 10 * 1000;
+
+  /** Times start-up this many times and takes the median. */
+  private static final int STARTUP_RUNS = 3;
+
+  private final Options options;
+  private final Executor executor;
+  private final long stallTimeoutMillis;
+
+  Leaderboard(Options options, Executor executor) {
+    this(options, executor, STALL_TIMEOUT_MS);
+  }
+
+  Leaderboard(Options options, Executor executor, long stallTimeoutMillis) {
+    this.options = options;
+    this.executor = executor;
+    this.stallTimeoutMillis = stallTimeoutMillis;
+  }
+
+  /** Returns the subdirectories of {@code directory} that have a mask.sh, by name. */
+  static List<File> implementations(File directory) {
+    List<File> result = new ArrayList<File>();
+    File[] files = directory.listFiles();
+    if (files == null) return result;
+    Arrays.sort(files);
+    for (File file : files) {
+      if (new File(file, "mask.sh").isFile()) result.add(file);
+    }
+    return result;
+  }
+
+  /** Runs each implementation in turn, printing its name as it starts. Returns them ranked. */
+  List<Entry> run(List<File> implementations, PrintStream progress) {
+    List<Entry> entries = new ArrayList<Entry>();
+    for (File implementation : implementations) {
+      progress.print(implementation.getName() + "... ");
+      progress.flush();
+      Entry entry = run(implementation);
+      progress.println(entry.result);
+      entries.add(entry);
+    }
+    Collections.sort(entries, RANKING);
+    return entries;
+  }
+
+  /** Times start-up, then runs the warm-up and measured iterations. */
+  Entry run(File implementation) {
+    Entry entry = new Entry(implementation.getName());
+    try {
+      entry.startupMillis = startupMillis(implementation);
+    } catch (IOException e) {
+      entry.result = failure(e);
+      return entry;
+    }
+
+    final LuhnyBinTests tests = new LuhnyBinTests();
+    for (TestCase test : tests.testCases()) entry.suiteBytes += test.size();
+    final TestTimings timings = new TestTimings(tests, options.iterations);
+    final Main.ProcessTarget target;
+    try {
+      target = new Main.ProcessTarget(executor, implementation);
+    } catch (IOException e) {
+      entry.result = failure(e);
+      return entry;
+    }
+
+    final AtomicLong lastPassed = new AtomicLong(System.nanoTime());
+    FutureTask<long[]> run = new FutureTask<long[]>(new Callable<long[]>() {
+      public long[] call() throws IOException {
+        return Main.runIterations(options, target, tests, timings, new TestCase.Listener() {
+          public void testPassed(TestCase test) {
+            lastPassed.set(System.nanoTime());
+          }
+
+          public void testFailed(TestCase test, String actualInput) {
+            throw new TestFailure(test);
+          }
+        });
+      }
+    });
+    executor.execute(run);
+    try {
+      entry.times = await(run, lastPassed);
+      entry.result = "passed";
+    } catch (TimeoutException e) {
+      entry.result = String.format("stalled for %.1fs", stallTimeoutMillis / 1000.0);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof TestFailure) {
+        entry.result = "failed test #" + ((TestFailure) cause).test.index;
+      } else if (cause instanceof EOFException) {
+        entry.result = "output ended early";
+      } else {
+        entry.result = failure(cause);
+      }
+    } finally {
+      ProcessStats stats = target.processStats();
+      if (stats != null) {
+        entry.cpuMillis = stats.userMillis() + stats.systemMillis();
+        entry.peakRssBytes = stats.peakRssBytes();
+      }
+      target.destroy();
+    }
+    return entry;
+  }
+
+  /** Waits for {@code run} as long as it keeps passing tests. */
+  private long[] await(FutureTask<long[]> run, AtomicLong lastPassed)
+      throws TimeoutException, ExecutionException {
+    long stallNanos = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMillis);
+    while (true) {
+      try {
+        return run.get(Math.min(stallTimeoutMillis, 100), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        if (System.nanoTime() - lastPassed.get() > stallNanos) throw e;
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  /**
+   * Returns the median time in ms to start mask.sh, mask one line and exit. Most of it is
+   * start-up, which a long-running filter pays once but a cron job pays every time.
+   */
+  private long startupMillis(File implementation) throws IOException {
+    long[] times = new long[STARTUP_RUNS];
+    for (int i = 0; i < times.length; i++) {
+      long start = System.nanoTime();
+      final Process process = new ProcessBuilder("sh", "mask.sh").directory(implementation)
+          .redirectErrorStream(true).start();
+      FutureTask<Void> run = new FutureTask<Void>(new Callable<Void>() {
+        public Void call() throws IOException {
+          OutputStream in = process.getOutputStream();
+          in.write("4111 1111 1111 1111\n".getBytes(TestCase.UTF_8));
+          in.close();
+          InputStream out = process.getInputStream();
+          while (out.read() != -1) {}
+          return null;
+        }
+      });
+      executor.execute(run);
+      try {
+        run.get(stallTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        throw new IOException(String.format("didn't exit within %.1fs",
+            stallTimeoutMillis / 1000.0));
+      } catch (ExecutionException e) {
+        throw new IOException(failure(e.getCause()));
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      } finally {
+        process.destroy();
+      }
+      times[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      // Reap it now, so its CPU time isn't charged to the run that follows.
+      ProcessStats.awaitExit(process, stallTimeoutMillis);
+    }
+    return new Stats(times).median();
+  }
+
+  private static String failure(Throwable t) {
+    return t.getMessage() != null ? t.getMessage() : t.getClass().getSimpleName();
+  }
+
+  static void print(PrintStream out, List<Entry> entries) {
+    out.printf("%4s  %-24s %-20s %12s %12s %12s %9s %10s %9s%n", "Rank", "Implementation",
+        "Result", "Median", "p99", "Throughput", "Startup", "CPU", "Peak RSS");
+    int rank = 0;
+    for (Entry entry : entries) {
+      String startup = entry.startupMillis >= 0
+          ? String.format("%,dms", entry.startupMillis) : "-";
+      String cpu = entry.cpuMillis >= 0 ? String.format("%,dms", entry.cpuMillis) : "-";
+      String rss = entry.peakRssBytes >= 0
+          ? String.format("%,.1fMB", entry.peakRssBytes / (1024.0 * 1024)) : "-";
+      if (entry.passed()) {
+        Stats stats = new Stats(entry.times);
+        out.printf("%4d  %-24s %-20s %,10dus %,10dus %,7.1f MB/s %9s %10s %9s%n", ++rank,
+            entry.name, entry.result, stats.median(), stats.percentile(99), entry.throughput(),
+            startup, cpu, rss);
+      } else {
+        out.printf("%4s  %-24s %-20s %12s %12s %12s %9s %10s %9s%n", "-", entry.name,
+            entry.result, "-", "-", "-", startup, cpu, rss);
+      }
+    }
+  }
+
+  /** Passing implementations first, fastest median first. The rest by name. */
+  static final Comparator<Entry> RANKING = new Comparator<Entry>() {
+    public int compare(Entry a, Entry b) {
+      if (a.passed() != b.passed()) return a.passed() ? -1 : 1;
+      if (a.passed()) {
+        int byMedian = Long.compare(new Stats(a.times).median(), new Stats(b.times).median());
+        if (byMedian != 0) return byMedian;
+        return Long.compare(a.startupMillis, b.startupMillis);
+      }
+      return a.name.compareTo(b.name);
+    }
+  };
+
+  /** How one implementation did. */
+  static final class Entry {
+    final String name;
+    String result;
+    long startupMillis = -1;
+    long suiteBytes;
+
+    /** CPU time and peak RSS of mask.sh and its descendants over the whole run, or -1. */
+    long cpuMillis = -1;
+    long peakRssBytes = -1;
+
+    /** Measured iteration times in us, or null if it didn't pass. */
+    long[] times;
+
+    Entry(String name) {
+      this.name = name;
+    }
+
+    boolean passed() {
+      return times != null;
+    }
+
+    /** Returns MB/s at the median iteration time. */
+    double throughput() {
+      return (double) suiteBytes / Math.max(new Stats(times).median(), 1);
+    }
+  }
+
+  /** Stops an implementation's run at its first failure. */
+  private static class TestFailure extends RuntimeException {
+    private static final long serialVersionUID = 0;
+
+    final TestCase test;
+
+    TestFailure(TestCase test) {
+      this.test = test;
+    }
+  }
+}
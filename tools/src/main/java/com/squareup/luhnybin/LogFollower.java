@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows a growing log file like {@code tail -F}, appending it to another file as it masks it.
+ * After each {@link #poll}, saves a checkpoint: which file we're reading, how far we've read, how
+ * much we've written, and the masker's state along with the bytes it's holding back. A follower
+ * started with the same checkpoint carries on where the last one stopped, without reading the log
+ * from the start.
+ *
+ * <p>If the log is renamed and a new one created, finishes the old file and starts the new one
+ * from the beginning. If the log is truncated in place, starts again from the beginning. The end
+ * of each file ends any card # in progress.
+ */
+final class LogFollower implements Closeable {
+
+  private static final int MAGIC = 0x4c42464c; // "LBFL"
+  private static final int VERSION = 1;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File log;
+  private final File checkpoint;
+  private final LuhnMasker masker;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private final FileChannel out;
+
+  /** The file we're reading, or null if the log doesn't exist yet. */
+  private FileChannel in;
+  private String fileKey = "";
+
+  /** How far we've read into the current file. */
+  private long offset;
+
+  /** Bytes at the start of {@link #buffer} that the masker is holding back. */
+  private int pending;
+
+  /**
+   * Resumes from {@code checkpoint} if it exists. Otherwise starts at the beginning of
+   * {@code log} and replaces {@code output}.
+   */
+  LogFollower(File log, File output, File checkpoint) throws IOException {
+    this(log, output, checkpoint, null);
+  }
+
+  /** Counts what we mask in {@code metrics}, unless it's null. */
+  LogFollower(File log, File output, File checkpoint, MaskerMetrics metrics) throws IOException {
+    this.log = log;
+    this.checkpoint = checkpoint;
+    this.masker = new LuhnMasker(metrics);
+    out = new RandomAccessFile(output, "rw").getChannel();
+    try {
+      long outputLength = checkpoint.exists() ? restore() : 0;
+      // Drop anything we wrote after the checkpoint. We'll write it again.
+      if (out.size() < outputLength) throw new IOException("Output is shorter than checkpoint.");
+      out.truncate(outputLength);
+      out.position(outputLength);
+      open();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /** Reads the checkpoint and returns the length of the output as of then. */
+  private long restore() throws IOException {
+    DataInputStream data = new DataInputStream(new FileInputStream(checkpoint));
+    try {
+      if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+        throw new IOException("Not a checkpoint: " + checkpoint);
+      }
+      fileKey = data.readUTF();
+      offset = data.readLong();
+      long outputLength = data.readLong();
+      pending = data.readInt();
+      if (pending < 0 || pending > LuhnMasker.MAX_PENDING) {
+        throw new IOException("Corrupt checkpoint: " + checkpoint);
+      }
+      data.readFully(buffer, 0, pending);
+      masker.readState(data);
+      return outputLength;
+    } finally {
+      data.close();
+    }
+  }
+
+  /**
+   * Opens the log if it exists. Picks up where we left off if it's the file we were reading.
+   * Otherwise finishes that one, even if it was only in the checkpoint, and starts from the
+   * beginning of this one.
+   */
+  private void open() throws IOException {
+    String key = fileKey(log);
+    if (key == null) return;
+    boolean sameFile = key.equals(fileKey);
+    if (!sameFile && !fileKey.isEmpty()) {
+      // Rotated, maybe while we were stopped. We can't finish the old one; start the new one.
+      finishFile();
+    }
+    try {
+      in = new FileInputStream(log).getChannel();
+    } catch (FileNotFoundException e) {
+      return;
+    }
+    fileKey = key;
+    if (!sameFile) {
+      offset = 0;
+    } else if (in.size() < offset) {
+      // Truncated while we were stopped.
+      finishFile();
+    }
+  }
+
+  /** Masks whatever's been added to the log since the last call, and saves a checkpoint. */
+  void poll() throws IOException {
+    if (in == null) {
+      open();
+      if (in == null) return;
+    }
+
+    readToEnd();
+    String key = fileKey(log);
+    if (!fileKey.equals(key)) {
+      // Rotated. Catch anything written to the old file before the switch.
+      readToEnd();
+      finishFile();
+      in.close();
+      in = null;
+      open();
+      if (in != null) readToEnd();
+    } else if (in.size() < offset) {
+      finishFile();
+      readToEnd();
+    }
+    saveCheckpoint();
+  }
+
+  /** Masks the current file from {@link #offset} to its end. */
+  private void readToEnd() throws IOException {
+    while (true) {
+      int read = in.read(ByteBuffer.wrap(buffer, pending, buffer.length - pending), offset);
+      if (read <= 0) return;
+      offset += read;
+      int done = masker.mask(buffer, 0, pending + read);
+      write(0, done);
+      pending = pending + read - done;
+      System.arraycopy(buffer, done, buffer, 0, pending);
+    }
+  }
+
+  /** Writes out the bytes the masker held back, and starts the next file from scratch. */
+  private void finishFile() throws IOException {
+    write(0, pending);
+    pending = 0;
+    offset = 0;
+    masker.reset();
+  }
+
+  private void write(int off, int len) throws IOException {
+    ByteBuffer bytes = ByteBuffer.wrap(buffer, off, len);
+    while (bytes.hasRemaining()) out.write(bytes);
+  }
+
+  /**
+   * Writes the checkpoint next to its final location and renames it over the old one, so a crash
+   * leaves one or the other. Syncs the output first, so it's at least as long as the checkpoint
+   * says.
+   */
+  private void saveCheckpoint() throws IOException {
+    out.force(false);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeUTF(fileKey);
+    data.writeLong(offset);
+    data.writeLong(out.position());
+    data.writeInt(pending);
+    data.write(buffer, 0, pending);
+    masker.writeState(data);
+    data.flush();
+
+    File temp = new File(checkpoint.getPath() + ".tmp");
+    FileOutputStream tempOut = new FileOutputStream(temp);
+    try {
+      bytes.writeTo(tempOut);
+      tempOut.getFD().sync();
+    } finally {
+      tempOut.close();
+    }
+    Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Polls every {@code intervalMillis} until interrupted. */
+  void follow(long intervalMillis) throws IOException {
+    try {
+      while (true) {
+        poll();
+        TimeUnit.MILLISECONDS.sleep(intervalMillis);
+      }
+    } catch (InterruptedException e) { /* done */ }
+  }
+
+  public void close() throws IOException {
+    try {
+      if (in != null) in.close();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Returns a string that identifies the file at {@code file}'s path, such as its device and
+   * inode, or null if there's no file there. Returns "?" if the file system can't say.
+   */
+  static String fileKey(File file) throws IOException {
+    try {
+      Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+      return key != null ? key.toString() : "?";
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+}
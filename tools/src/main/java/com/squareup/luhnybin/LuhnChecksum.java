@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Validates and completes Luhn checksums of ASCII digits in byte arrays, char arrays and char
+ * sequences. Throws IllegalArgumentException if it finds a non-digit.
+ *
+ * <p>Sums byte arrays eight digits at a time: reads them into a long, one per byte, then doubles
+ * every other digit and adds them up with SWAR (SIMD within a register) arithmetic. Packing
+ * chars into a long costs more than the arithmetic saves, so chars and leftover bytes go one at a
+ * time through {@link #DOUBLED}.
+ */
+public final class LuhnChecksum {
+
+  /** Luhn value of each digit when doubled, i.e. the sum of the digits of twice the digit. */
+  static final int[] DOUBLED = { 0, 2, 4, 6, 8, 1, 3, 5, 7, 9 };
+
+  /** Longs we can add up lane by lane before a lane might overflow: 28 * 9 < 256. */
+  private static final int MAX_LONGS = 28;
+
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  /** Lanes 0, 2, 4 and 6 of a packed long, where lane 0 is the low byte. */
+  private static final long EVEN_LANES = 0x00ff00ff00ff00ffL;
+  private static final long ODD_LANES = ~EVEN_LANES;
+
+  private LuhnChecksum() {}
+
+  /** Returns true if {@code digits} is non-empty and passes the Luhn check. */
+  public static boolean isValid(CharSequence digits) {
+    return digits.length() > 0 && sum(digits, 0, digits.length(), false) % 10 == 0;
+  }
+
+  /** Returns true if {@code len} digits starting at {@code off} pass the Luhn check. */
+  public static boolean isValid(char[] digits, int off, int len) {
+    return len > 0 && sum(digits, off, len, false) % 10 == 0;
+  }
+
+  /** Returns true if {@code len} digits starting at {@code off} pass the Luhn check. */
+  public static boolean isValid(byte[] digits, int off, int len) {
+    return len > 0 && sum(digits, off, len, false) % 10 == 0;
+  }
+
+  /** Returns the digit that makes {@code allButLast} pass the Luhn check. */
+  public static char checkDigit(CharSequence allButLast) {
+    return checkDigit(sum(allButLast, 0, allButLast.length(), true));
+  }
+
+  /** Returns the digit that makes {@code len} digits starting at {@code off} pass. */
+  public static char checkDigit(char[] allButLast, int off, int len) {
+    return checkDigit(sum(allButLast, off, len, true));
+  }
+
+  /** Returns the digit that makes {@code len} digits starting at {@code off} pass. */
+  public static char checkDigit(byte[] allButLast, int off, int len) {
+    return checkDigit(sum(allButLast, off, len, true));
+  }
+
+  private static char checkDigit(int sum) {
+    return (char) ('0' + (10 - sum % 10) % 10);
+  }
+
+  /**
+   * Returns the Luhn sum of the digits in [off, off + len). Doubles the last digit if
+   * {@code doubleLast} is true, and every other digit from there.
+   */
+  private static int sum(byte[] b, int off, int len, boolean doubleLast) {
+    checkBounds(b.length, off, len);
+    long doubledLanes = doubleLast ? EVEN_LANES : ODD_LANES;
+    // Big-endian, so the last of the 8 bytes is in lane 0. Reads 8 bytes in one go on Java 9+.
+    // Escape analysis drops the wrapper once this is compiled; assembling the long from single
+    // bytes instead is slower than not using SWAR at all.
+    ByteBuffer buffer = ByteBuffer.wrap(b);
+    int sum = 0;
+    int end = off + len;
+    while (end - off >= 8) {
+      // Each lane gains at most 9 per long, so we can add up 28 longs before it overflows.
+      int count = Math.min((end - off) >> 3, MAX_LONGS);
+      long lanes = 0;
+      long invalid = 0;
+      for (int i = 0; i < count; i++) {
+        end -= 8;
+        long packed = buffer.getLong(end);
+        invalid |= invalid(packed);
+        lanes += lanes(packed, doubledLanes);
+      }
+      // Rescan one at a time to report the non-digit.
+      if (invalid != 0) return sum + sumOneAtATime(b, off, end + count * 8 - off, doubleLast);
+      sum += addLanes(lanes);
+    }
+    return sum + sumOneAtATime(b, off, end - off, doubleLast);
+  }
+
+  /** Like {@link #sum(byte[], int, int, boolean)} but without SWAR. */
+  private static int sumOneAtATime(byte[] b, int off, int len, boolean doubleLast) {
+    // We always consume an even number of digits, so the last one left has the same parity.
+    int sum = 0;
+    boolean doubled = doubleLast;
+    for (int i = off + len - 1; i >= off; i--) {
+      int value = value(b[i]);
+      sum += doubled ? DOUBLED[value] : value;
+      doubled = !doubled;
+    }
+    return sum;
+  }
+
+  /** Like {@link #sum(byte[], int, int, boolean)}, one char at a time. */
+  private static int sum(char[] c, int off, int len, boolean doubleLast) {
+    checkBounds(c.length, off, len);
+    int sum = 0;
+    boolean doubled = doubleLast;
+    for (int i = off + len - 1; i >= off; i--) {
+      int value = value(c[i]);
+      sum += doubled ? DOUBLED[value] : value;
+      doubled = !doubled;
+    }
+    return sum;
+  }
+
+  /** Like {@link #sum(byte[], int, int, boolean)}, one char at a time. */
+  private static int sum(CharSequence s, int off, int len, boolean doubleLast) {
+    checkBounds(s.length(), off, len);
+    int sum = 0;
+    boolean doubled = doubleLast;
+    for (int i = off + len - 1; i >= off; i--) {
+      int value = value(s.charAt(i));
+      sum += doubled ? DOUBLED[value] : value;
+      doubled = !doubled;
+    }
+    return sum;
+  }
+
+  /** Returns non-zero if any of the eight bytes isn't an ASCII digit. */
+  private static long invalid(long packed) {
+    // With no high bits set, adding 0x50 sets a lane's high bit if it's >= '0', and adding 0x46
+    // sets it if it's > '9'. Neither can carry into the next lane.
+    long atLeastZero = packed + 0x5050505050505050L;
+    long aboveNine = packed + 0x4646464646464646L;
+    return (packed | ~atLeastZero | aboveNine) & HIGH_BITS;
+  }
+
+  /** Returns the Luhn value of each of eight ASCII digits, one per byte. */
+  private static long lanes(long packed, long doubledLanes) {
+    long values = packed - 0x3030303030303030L;
+    long doubled = values & doubledLanes;
+    // Doubling 5-9 carries into the tens, so subtract 9 from those: 2 * d - 10 + 1.
+    long atLeastFive = ((doubled + 0x7b7b7b7b7b7b7b7bL) & HIGH_BITS) >>> 7;
+    return values + doubled - atLeastFive * 9;
+  }
+
+  /** Adds up eight byte lanes. */
+  private static int addLanes(long lanes) {
+    // Pair up the bytes into 16-bit lanes, then add those into the top 16 bits.
+    long pairs = (lanes & 0x00ff00ff00ff00ffL) + ((lanes >>> 8) & 0x00ff00ff00ff00ffL);
+    return (int) ((pairs * 0x0001000100010001L) >>> 48);
+  }
+
+  private static int value(int c) {
+    if (c < '0' || c > '9') throw new IllegalArgumentException("Not a digit: " + (char) c);
+    return c - '0';
+  }
+
+  private static void checkBounds(int length, int off, int len) {
+    if ((off | len) < 0 || len > length - off) {
+      throw new IndexOutOfBoundsException("length=" + length + ", off=" + off + ", len=" + len);
+    }
+  }
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Masks card #s in ASCII or UTF-8 text in a single pass.
+ *
+ * <p>Scans bytes without decoding them. Every byte of a multi-byte UTF-8 character is 0x80 or
+ * more, so none of them is a digit or separator: they pass through untouched, and so do byte
+ * sequences that aren't valid UTF-8.
+ *
+ * <p>By default, a card # is 14-16 digits that pass the Luhn check. Consecutive digits may be
+ * separated by one space or hyphen. Other {@link CardRules} change the lengths, separators and
+ * prefixes. The masker keeps rolling Luhn sums for the current run of digits, packed 4 bits to a
+ * sum in a few longs. A handful of word operations compare the latest sum with the sums for every
+ * length at once, so the masker does constant work per byte whatever the rules, and never holds
+ * back more than {@link CardRules#maxPending()} bytes.
+ */
+public final class LuhnMasker implements Masker {
+
+  /** Lengths under the {@linkplain CardRules#DEFAULT default rules}. */
+  static final int MIN_DIGITS = 14;
+  static final int MAX_DIGITS = 16;
+
+  /** The most bytes a single card # can span under the default rules, separators included. */
+  static final int MAX_SPAN = MAX_DIGITS * 2 - 1;
+
+  /** The most bytes {@link #mask(byte[], int, int)} holds back under the default rules. */
+  static final int MAX_PENDING = (MAX_DIGITS - 1) * 2;
+
+  private static final byte MASK = 'X';
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final long STATS_INTERVAL_MS = 10 * 1000;
+
+  /** How often to check a followed log for more, like tail -F. */
+  private static final long FOLLOW_INTERVAL_MS = 1000;
+
+  /** Ring size for digit positions. Must be a power of 2 greater than CardRules.MAX_LENGTH. */
+  private static final int RING = 32;
+
+  /** Bit 0 of each of the 8 nibbles in an int. */
+  private static final long NIBBLES = 0x11111111L;
+
+  private final CardRules rules;
+
+  // Copied from the rules, so the loop reads them from this object.
+  private final long separatorsLow;
+  private final long separatorsHigh;
+  private final int minDigits;
+  private final int maxDigits;
+  private final long lengthNibbles;
+  private final long[] prefixTable;
+  private final boolean luhn;
+
+  /** Stream offsets of the most recent digits in the run, indexed by ordinal. */
+  private final long[] positions = new long[RING];
+
+  /**
+   * Luhn sums mod 10 of the run so far, doubling digits with odd ordinals. Nibble k holds the sum
+   * k digits back, and the high word holds the sums 16 to 31 digits back.
+   */
+  private long oddSums;
+  private long oddSumsHigh;
+
+  /** Luhn sums mod 10 of the run so far, doubling digits with even ordinals. */
+  private long evenSums;
+  private long evenSumsHigh;
+
+  /** Nibble k is 1 if the digits after the one k + 6 back start with an allowed prefix. */
+  private long prefixes;
+
+  /** The last {@link CardRules#PREFIX_DIGITS} digits of the run, as a number. */
+  private int lastDigits;
+
+  /** Stream offset of the next byte to scan. */
+  private long position;
+
+  /** Bytes at the end of the last call that aren't final yet. */
+  private int pending;
+
+  /** Digits in the current run. Ordinals start at 1. */
+  private long digits;
+
+  /** Ordinals of the first and last digits in the latest block of masked digits. */
+  private long maskedFrom;
+  private long maskedTo;
+
+  /** Whether the last byte was a separator following a digit. */
+  private boolean gap;
+
+  /** Where to publish counts, or null. */
+  private final MaskerMetrics metrics;
+
+  /** Counts for runs that have ended, and what we've published so far. */
+  private long examinedDigits;
+  private long examinedWindows;
+  private final long[] matches = new long[CardRules.MAX_LENGTH + 1];
+  private long maskedBytes;
+  private long publishedDigits;
+  private long publishedWindows;
+
+  public LuhnMasker() {
+    this(CardRules.DEFAULT);
+  }
+
+  /** Masks card #s as {@code rules} defines them. */
+  public LuhnMasker(CardRules rules) {
+    this(rules, null);
+  }
+
+  /** Publishes counts to {@code metrics} at the end of each call to {@code mask()}. */
+  LuhnMasker(MaskerMetrics metrics) {
+    this(CardRules.DEFAULT, metrics);
+  }
+
+  LuhnMasker(CardRules rules, MaskerMetrics metrics) {
+    this.rules = rules;
+    this.separatorsLow = rules.separatorsLow;
+    this.separatorsHigh = rules.separatorsHigh;
+    this.minDigits = rules.minDigits;
+    this.maxDigits = rules.maxDigits;
+    this.lengthNibbles = rules.lengthNibbles;
+    this.prefixTable = rules.prefixTable;
+    this.luhn = rules.luhn;
+    this.metrics = metrics;
+  }
+
+  /** Returns the rules this masker applies. */
+  CardRules rules() {
+    return rules;
+  }
+
+  /**
+   * Masks card #s in {@code b[off, off + len)} in place and returns the number of bytes, starting
+   * at {@code off}, that are final. The remaining bytes may still be masked by input that hasn't
+   * arrived yet; pass them again at the start of the next call, followed by new input. At the end
+   * of the input, the remaining bytes are final as they are, and the masker should be
+   * {@linkplain #reset() reset} before reuse.
+   *
+   * <p>Doesn't allocate.
+   */
+  public int mask(byte[] b, int off, int len) {
+    if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+    checkPending(len);
+
+    long base = position - pending;
+    for (int i = off + pending, end = off + len; i < end; i++) {
+      long first = scan(b[i], base + (i - off));
+      for (long ordinal = first; ordinal != 0 && ordinal <= digits; ordinal++) {
+        b[off + (int) (positions[(int) ordinal & (RING - 1)] - base)] = MASK;
+      }
+    }
+    return finish(base, len);
+  }
+
+  /**
+   * Masks card #s in the remaining bytes of {@code buffer} in place and returns the number of
+   * bytes, starting at its position, that are final. Works like {@link #mask(byte[], int, int)}
+   * but for heap and direct buffers. Doesn't change the buffer's position or limit.
+   */
+  public int mask(ByteBuffer buffer) {
+    int off = buffer.position();
+    int len = buffer.remaining();
+    if (buffer.hasArray()) return mask(buffer.array(), buffer.arrayOffset() + off, len);
+    checkPending(len);
+
+    long base = position - pending;
+    for (int i = off + pending, end = off + len; i < end; i++) {
+      long first = scan(buffer.get(i), base + (i - off));
+      for (long ordinal = first; ordinal != 0 && ordinal <= digits; ordinal++) {
+        buffer.put(off + (int) (positions[(int) ordinal & (RING - 1)] - base), MASK);
+      }
+    }
+    return finish(base, len);
+  }
+
+  private void checkPending(int len) {
+    if (len < pending) {
+      throw new IllegalArgumentException("Expected " + pending + " pending bytes, got " + len);
+    }
+  }
+
+  /** Records the end of a call that started at stream offset {@code base}. */
+  private int finish(long base, int len) {
+    if (metrics != null) publish(base + len - position);
+    position = base + len;
+
+    // Digits maxDigits - 1 or more back can't be part of a future card #. Masked digits won't
+    // change, but if lengths may differ by more than 2, a longer card # can start in the latest
+    // block, end after a later one and be masked again from its start, so hold them back too.
+    long firstOpen = Math.max(1, digits - (maxDigits - 2));
+    if (maxDigits - minDigits <= 2 && maskedFrom <= firstOpen && firstOpen <= maskedTo) {
+      firstOpen = maskedTo + 1;
+    }
+    pending = firstOpen <= digits
+        ? (int) (position - positions[(int) firstOpen & (RING - 1)])
+        : 0;
+    return len - pending;
+  }
+
+  /**
+   * Scans the byte at the given stream offset. If it ends a card #, returns the ordinal of the
+   * first digit the caller should mask, up to and including the last digit in the run. Otherwise,
+   * returns 0.
+   */
+  private long scan(byte c, long offset) {
+    int value = c - '0';
+    if (value >= 0 && value <= 9) {
+      gap = false;
+      digits++;
+      int length = digit(value, offset);
+      if (length == 0) return 0;
+      matches[length]++;
+      return extendMask(digits - length + 1);
+    }
+
+    // Most bytes aren't digits and don't follow one.
+    if (digits == 0) return 0;
+    if (c >= 0 && ((c < 64 ? separatorsLow : separatorsHigh) >>> c & 1) != 0) {
+      if (gap) {
+        endRun();
+      } else {
+        gap = true;
+      }
+      return 0;
+    }
+    endRun();
+    return 0;
+  }
+
+  /**
+   * Records the digits from ordinal {@code first} through the last digit in the run as masked
+   * and returns the first of them that isn't masked yet.
+   */
+  private long extendMask(long first) {
+    long unmasked;
+    if (first > maskedTo + 1) {
+      maskedFrom = first;
+      unmasked = first;
+    } else if (first < maskedFrom) {
+      // Rare: a longer card # starts before the latest block. Mask the block again. finish()
+      // held its start back unless the rules rule this out.
+      maskedFrom = first;
+      unmasked = first;
+    } else {
+      unmasked = maskedTo + 1;
+    }
+    maskedTo = digits;
+    maskedBytes += digits - unmasked + 1;
+    return unmasked;
+  }
+
+  /**
+   * Records the digit at the given stream offset and returns the length of the longest card # it
+   * ends, or 0 if it doesn't end one.
+   */
+  private int digit(int value, long offset) {
+    long ordinal = digits;
+    positions[(int) ordinal & (RING - 1)] = offset;
+    boolean odd = (ordinal & 1) != 0;
+    int oddSum = add((int) oddSums & 0xf, odd ? LuhnChecksum.DOUBLED[value] : value);
+    int evenSum = add((int) evenSums & 0xf, odd ? value : LuhnChecksum.DOUBLED[value]);
+    oddSumsHigh = oddSumsHigh << 4 | oddSums >>> 60;
+    oddSums = oddSums << 4 | oddSum;
+    evenSumsHigh = evenSumsHigh << 4 | evenSums >>> 60;
+    evenSums = evenSums << 4 | evenSum;
+    if (prefixTable != null) addPrefixDigit(value);
+
+    if (ordinal < minDigits) return 0;
+
+    // The last digit is never doubled, so double the digits with the opposite parity.
+    return odd ? longest(ordinal, evenSums, evenSumsHigh) : longest(ordinal, oddSums, oddSumsHigh);
+  }
+
+  /**
+   * Returns the length of the longest card # that ends with the digit at {@code ordinal}, given
+   * the Luhn sums to compare, or 0 if there isn't one. Kept apart from {@link #digit} so that
+   * each is small enough for the JIT to inline into the loop.
+   */
+  private int longest(long ordinal, long sums, long sumsHigh) {
+    long candidates = lengthNibbles;
+    if (luhn) {
+      // Gather the sums 12..19 digits back into nibbles 0..7, and find the ones equal to the
+      // latest sum, in nibble 0 of sums.
+      long x = (sums >>> 4 * CardRules.MIN_LENGTH | sumsHigh << 4 * (16 - CardRules.MIN_LENGTH))
+          ^ (sums & 0xf) * NIBBLES;
+      candidates &= ~(x | x >>> 1 | x >>> 2 | x >>> 3);
+    }
+    if (prefixTable != null) candidates &= prefixes >>> 4 * (CardRules.MIN_LENGTH - 6);
+    if (ordinal < maxDigits) candidates &= (1L << 4 * (ordinal - CardRules.MIN_LENGTH + 1)) - 1;
+
+    // The highest nibble left is the longest card #.
+    if (candidates == 0) return 0;
+    return (63 - Long.numberOfLeadingZeros(candidates)) / 4 + CardRules.MIN_LENGTH;
+  }
+
+  /** Now that we have 6 more digits, looks up the prefix after the digit 6 back. */
+  private void addPrefixDigit(int value) {
+    lastDigits = lastDigits % 100000 * 10 + value;
+    prefixes = prefixes << 4 | (prefixTable[lastDigits >>> 6] >>> lastDigits & 1);
+  }
+
+  private static int add(int sum, int value) {
+    sum += value;
+    return sum >= 10 ? sum - 10 : sum;
+  }
+
+  private void endRun() {
+    examinedDigits += digits;
+    examinedWindows += windows(digits);
+    // The sum of no digits is 0. Earlier sums are never compared.
+    oddSums = 0;
+    evenSums = 0;
+    digits = 0;
+    maskedFrom = 0;
+    maskedTo = 0;
+    gap = false;
+  }
+
+  /** Returns the number of windows of each allowed length in a run of {@code digits} digits. */
+  private long windows(long digits) {
+    if (digits < minDigits) return 0;
+    // digits - length + 1 windows of each length, from minDigits to the longest that fits.
+    long longest = Math.min(digits, maxDigits);
+    long lengths = longest - minDigits + 1;
+    return lengths * (digits + 1) - (minDigits + longest) * lengths / 2;
+  }
+
+  /** Adds counts since the last call, including the current run so far, to the metrics. */
+  private void publish(long bytes) {
+    long digits = examinedDigits + this.digits;
+    long windows = examinedWindows + windows(this.digits);
+    metrics.add(bytes, digits - publishedDigits, windows - publishedWindows, matches,
+        maskedBytes);
+    publishedDigits = digits;
+    publishedWindows = windows;
+    Arrays.fill(matches, 0);
+    maskedBytes = 0;
+  }
+
+  /**
+   * Writes what this masker knows about the stream so far, so that a masker that {@linkplain
+   * #readState reads it} can carry on from the end of the last call to {@code mask()}. The caller
+   * must save the pending bytes, as masked, along with it.
+   */
+  void writeState(DataOutput out) throws IOException {
+    out.writeInt(RING);
+    out.writeLong(position);
+    out.writeInt(pending);
+    out.writeLong(digits);
+    out.writeLong(maskedFrom);
+    out.writeLong(maskedTo);
+    out.writeBoolean(gap);
+    out.writeLong(oddSums);
+    out.writeLong(oddSumsHigh);
+    out.writeLong(evenSums);
+    out.writeLong(evenSumsHigh);
+    out.writeLong(prefixes);
+    out.writeInt(lastDigits);
+    for (int i = 0; i < RING; i++) out.writeLong(positions[i]);
+  }
+
+  /** Replaces this masker's state with one saved by {@link #writeState}. */
+  void readState(DataInput in) throws IOException {
+    if (in.readInt() != RING) throw new IOException("Incompatible masker state.");
+    position = in.readLong();
+    pending = in.readInt();
+    digits = in.readLong();
+    maskedFrom = in.readLong();
+    maskedTo = in.readLong();
+    gap = in.readBoolean();
+    oddSums = in.readLong();
+    oddSumsHigh = in.readLong();
+    evenSums = in.readLong();
+    evenSumsHigh = in.readLong();
+    prefixes = in.readLong();
+    lastDigits = in.readInt();
+    for (int i = 0; i < RING; i++) positions[i] = in.readLong();
+    if (pending < 0 || pending > rules.maxPending() || digits < 0 || lastDigits < 0
+        || lastDigits > 999999) {
+      throw new IOException("Corrupt masker state.");
+    }
+
+    // The current run was counted before we saved it.
+    examinedDigits = 0;
+    examinedWindows = 0;
+    publishedDigits = digits;
+    publishedWindows = windows(digits);
+  }
+
+  /** Forgets all state so this masker can start on a new stream. */
+  public void reset() {
+    endRun();
+    position = 0;
+    pending = 0;
+  }
+
+  /** Copies {@code in} to {@code out}, masking card #s. Doesn't close either stream. */
+  public void mask(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int count = 0;
+    int read;
+    while ((read = in.read(buffer, count, buffer.length - count)) != -1) {
+      count += read;
+      int done = mask(buffer, 0, count);
+      out.write(buffer, 0, done);
+      out.flush();
+      count -= done;
+      System.arraycopy(buffer, done, buffer, 0, count);
+    }
+    out.write(buffer, 0, count);
+    out.flush();
+    reset();
+  }
+
+  /**
+   * Masks standard input to standard output. Given a file, masks it in place. Given two files,
+   * masks the first into the second, on all cores with {@code --parallel}. Reports throughput for
+   * files. With {@code --listen}, runs a {@link MaskingDaemon} on the given localhost port and
+   * publishes {@link MaskerMetrics} through JMX. With {@code --stats}, publishes them in any mode
+   * and prints them to standard error every 10s. With {@code --follow}, masks a growing log into
+   * another file until killed, resuming from {@code output.checkpoint} if it exists. With
+   * {@code --gzip}, masks a gzipped file into another through a {@link GzipPipeline} and reports
+   * how fast each stage ran. With {@code --rules=file}, masks standard input using {@link
+   * CardRules} read from the file.
+   */
+  public static void main(String[] args) throws IOException {
+    CardRules rules = CardRules.DEFAULT;
+    if (args.length > 0 && args[0].startsWith("--rules=")) {
+      rules = CardRules.read(new File(args[0].substring("--rules=".length())));
+      args = Arrays.copyOfRange(args, 1, args.length);
+    }
+    boolean stats = args.length > 0 && args[0].equals("--stats");
+    if (stats) args = Arrays.copyOfRange(args, 1, args.length);
+    // Other modes mask with the default rules.
+    if (rules != CardRules.DEFAULT && args.length > 0) usage();
+    boolean listen = args.length == 2 && args[0].equals("--listen");
+    MaskerMetrics metrics = null;
+    if (stats || listen) {
+      metrics = new MaskerMetrics();
+      metrics.register("LuhnMasker");
+      if (stats) metrics.printPeriodically(System.err, STATS_INTERVAL_MS);
+    }
+
+    if (listen) {
+      MaskingDaemon daemon = new MaskingDaemon(Integer.parseInt(args[1]),
+          Runtime.getRuntime().availableProcessors(), metrics);
+      daemon.start();
+      System.err.println("Masking connections to localhost:" + daemon.port());
+      return;
+    }
+    if (args.length == 3 && args[0].equals("--follow")) {
+      File output = new File(args[2]);
+      new LogFollower(new File(args[1]), output,
+          new File(output.getPath() + ".checkpoint"), metrics).follow(FOLLOW_INTERVAL_MS);
+      return;
+    }
+    if (args.length == 3 && args[0].equals("--gzip")) {
+      InputStream in = new FileInputStream(args[1]);
+      OutputStream out = new FileOutputStream(args[2]);
+      try {
+        GzipPipeline pipeline = new GzipPipeline(Runtime.getRuntime().availableProcessors(),
+            GzipPipeline.BLOCK_SIZE, metrics);
+        pipeline.mask(in, out).print(System.err);
+      } finally {
+        in.close();
+        out.close();
+      }
+      return;
+    }
+    long start = System.nanoTime();
+    if (args.length == 0) {
+      new LuhnMasker(rules, metrics).mask(new FileInputStream(FileDescriptor.in),
+          new FileOutputStream(FileDescriptor.out));
+      if (stats) {
+        long elapsed = System.nanoTime() - start;
+        System.err.println(metrics.statsLine(metrics.getBytesScanned() * 1000.0
+            / Math.max(elapsed, 1)));
+      }
+      return;
+    }
+    boolean parallel = args[0].equals("--parallel");
+    if (parallel) args = Arrays.copyOfRange(args, 1, args.length);
+    if (args.length == 0 || args.length > 2 || parallel && args.length != 2) usage();
+
+    long bytes;
+    if (args.length == 1) {
+      bytes = new FileMasker(metrics).mask(new File(args[0]));
+    } else if (parallel) {
+      bytes = new ParallelMasker(metrics).mask(new File(args[0]), new File(args[1]));
+    } else {
+      bytes = new FileMasker(metrics).mask(new File(args[0]), new File(args[1]));
+    }
+    long elapsed = System.nanoTime() - start;
+    System.err.printf("Masked %,d bytes in %,dms (%,.1f MB/s)%n",
+        bytes, elapsed / 1000000, bytes * 1000.0 / Math.max(elapsed, 1));
+    if (stats) System.err.println(metrics.statsLine(bytes * 1000.0 / Math.max(elapsed, 1)));
+  }
+
+  private static void usage() {
+    System.err.println("Usage: LuhnMasker [--rules=file] [--stats]");
+    System.err.println("       LuhnMasker [--stats] "
+        + "[file | [--parallel] input output | --listen port | --follow log output"
+        + " | --gzip input.gz output.gz]");
+    System.exit(1);
+  }
+}
@@ -15,79 +15,174 @@
  */
 package com.squareup.luhnybin;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
+import java.util.List;
 import java.util.Random;
 
 /**
- * Luhny Bin test cases.
+ * Luhny Bin test cases. By default, they test the {@linkplain CardRules#DEFAULT default rules};
+ * given other rules, they generate card #s those rules allow and expect what the rules mask.
  *
  * @author Bob Lee (bob@squareup.com)
  */
 public class LuhnyBinTests extends TestSuite {
 
-  private static final char MASK = 'X';
+  private static final Charset ASCII = Charset.forName("US-ASCII");
 
-  private static final int MIN_LENGTH = 14;
-  private static final int MAX_LENGTH = 16;
+  private static final char MASK = 'X';
 
   private static final Random random = new Random(0xDEADBEEF);
 
+  private final CardRules rules;
+  private final int minLength;
+  private final int maxLength;
+
+  /** Length of formatted card #s: 16, or as close as the rules allow. */
+  private final int formattedLength;
+
   LuhnyBinTests() {
+    this(CardRules.DEFAULT);
+  }
+
+  LuhnyBinTests(CardRules rules) {
+    this.rules = rules;
+    this.minLength = rules.minDigits;
+    this.maxLength = rules.maxDigits;
+    this.formattedLength = Math.max(minLength, Math.min(16, maxLength));
+
     test("line feed preservation").sendAndExpect("LF only ->\n<- LF only");
 
-    for (int i = MIN_LENGTH; i <= MAX_LENGTH; i++) {
+    for (int i = minLength; i <= maxLength; i++) {
       test("valid " + i + "-digit #")
-          .send(randomNumber(i))
+          .send(cardNumber(i))
           .expect(mask(i));
     }
 
-    for (int i = MIN_LENGTH; i <= MAX_LENGTH; i++) {
-      test("non-matching " + i + "-digit #").sendAndExpect(nonMatchingSequence(i));
+    // Without a Luhn check, every run of enough digits with an allowed prefix matches.
+    if (rules.luhn) {
+      for (int i = minLength; i <= maxLength; i++) {
+        test("non-matching " + i + "-digit #").sendAndExpect(nonMatchingSequence(i));
+      }
     }
 
-    test("not enough digits").sendAndExpect(nonMatchingSequence(MIN_LENGTH - 1));
+    test("not enough digits").sendAndExpect(nonMatchingSequence(minLength - 1));
 
-    String tooMany = nonMatchingSequence(MAX_LENGTH);
-    tooMany += computeLast(tooMany);
-    test("too many digits").sendAndExpect(tooMany);
-
-    test("14-digit # prefixed with 0s")
-        .send("00" + randomNumber(14))
-        .expect(mask(16));
-
-    test("2 non-matching digits followed by a 14-digit #")
-        .send("1256613959932537")
-        .expect("12XXXXXXXXXXXXXX");
+    // The digits at the end must not form a card # on their own.
+    if (rules.luhn) {
+      String tooMany;
+      do {
+        tooMany = nonMatchingSequence(maxLength);
+        tooMany += computeLast(tooMany);
+      } while (endsWithCardNumber(tooMany));
+      test("too many digits").sendAndExpect(tooMany);
+    }
 
-    test("14-digit # embedded in a 16-digit #")
-        .send(nestedNumber())
-        .expect(mask(16));
+    String prefixed = "00" + cardNumber(minLength);
+    test(minLength + "-digit # prefixed with 0s")
+        .send(prefixed)
+        .expect(expected(prefixed));
+
+    example("2 non-matching digits followed by a 14-digit #",
+        "1256613959932537",
+        "12XXXXXXXXXXXXXX");
+
+    // The inner # ends one digit before the outer one.
+    int outerLength = formattedLength >= minLength + 2 ? formattedLength : maxLength;
+    if (outerLength >= minLength + 2) {
+      String nested = nestedNumber(minLength, outerLength);
+      test(minLength + "-digit # embedded in a " + outerLength + "-digit #")
+          .send(nested)
+          .expect(expected(nested));
+    }
 
-    test("16-digit # flanked by non-matching digits")
-        .send("9875610591081018250321")
-        .expect("987XXXXXXXXXXXXXXXX321");
+    example("16-digit # flanked by non-matching digits",
+        "9875610591081018250321",
+        "987XXXXXXXXXXXXXXXX321");
 
-    testFormatted(' ');
-    testFormatted('-');
+    for (char separator : rules.separators.toCharArray()) testFormatted(separator);
 
+    String exception = "java.lang.FakeException: " + format(cardNumber(formattedLength), 0)
+        + " is a card #.";
     test("exception message containing a card #")
-        .send("java.lang.FakeException: " + formattedNumber(' ') + " is a card #.")
-        .expect("java.lang.FakeException: " + formattedMask(' ') + " is a card #.");
+        .send(exception)
+        .expect(expected(exception));
 
-    test("non-matching message").sendAndExpect("4111 1111 1111 111 doesn't have enough digits.");
+    example("non-matching message", "4111 1111 1111 111 doesn't have enough digits.");
 
-    test("non-matching message").sendAndExpect("56613959932535089 has too many digits.");
+    example("non-matching message", "56613959932535089 has too many digits.");
 
+    String zeros = repeatingSequence('0', 1000);
     test("sequence of zeros")
-        .send(repeatingSequence('0', 1000))
-        .expect(mask(1000));
+        .send(zeros)
+        .expect(expected(zeros));
 
     test("long sequence of non-digits").sendAndExpect(nonDigits());
 
     testOverlappingMatches();
 
-    test("long sequence of digits with no matches").sendAndExpect(nonMatchingSequence(1000));
+    if (rules.luhn) {
+      test("long sequence of digits with no matches").sendAndExpect(nonMatchingSequence(1000));
+    }
+
+    testUtf8();
+  }
+
+  /**
+   * Logs are UTF-8. Multi-byte characters never contain ASCII bytes, so maskers can scan bytes
+   * without decoding. Only ASCII digits, spaces and hyphens count; everything else passes through.
+   */
+  private void testUtf8() {
+    String cjk = "\u5361\u53f7"; // "Card #" in Chinese.
+    String number = cardNumber(formattedLength);
+    test("card # between CJK characters")
+        .send(cjk + number + "\u5df2\u8bb0\u5f55")
+        .expect(cjk + mask(formattedLength) + "\u5df2\u8bb0\u5f55");
+
+    String emoji = "\ud83d\udcb3"; // Credit card, outside the BMP.
+    String emojis = emoji + format(cardNumber(formattedLength), rules.separators.length() - 1)
+        + emoji + " " + cardNumber(minLength) + emoji;
+    test("formatted card # between emoji")
+        .send(emojis)
+        .expect(expected(emojis));
+
+    StringBuilder fullwidth = new StringBuilder();
+    for (char c : cardNumber(formattedLength).toCharArray()) {
+      fullwidth.append((char) (c - '0' + '\uff10'));
+    }
+    test("fullwidth digits aren't digits").sendAndExpect(fullwidth + " " + cjk);
+
+    // U+00A0 is 0xC2 0xA0. Neither byte is a space, so it splits a card # in two. With the
+    // default rules, neither half is long enough to match.
+    String split = cardNumber(formattedLength);
+    String halves = split.substring(0, formattedLength / 2) + "\u00a0"
+        + split.substring(formattedLength / 2);
+    test("no-break space doesn't separate digits")
+        .send(halves)
+        .expect(expected(halves));
+
+    test("card # between invalid UTF-8")
+        .send(bytes(new byte[] { (byte) 0xff, (byte) 0xc3 }, number,
+            new byte[] { (byte) 0x80, (byte) 0xe2, (byte) 0x82 }))
+        .expect(bytes(new byte[] { (byte) 0xff, (byte) 0xc3 }, mask(formattedLength),
+            new byte[] { (byte) 0x80, (byte) 0xe2, (byte) 0x82 }));
+
+    // A lead byte promises continuation bytes, but ASCII digits are still digits.
+    test("card # after a truncated multi-byte character")
+        .send(bytes(new byte[] { (byte) 0xe5, (byte) 0x8d }, number))
+        .expect(bytes(new byte[] { (byte) 0xe5, (byte) 0x8d }, mask(formattedLength)));
+  }
+
+  /** Concatenates strings, as UTF-8, and byte arrays. */
+  private static byte[] bytes(Object... parts) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (Object part : parts) {
+      byte[] b = part instanceof byte[] ? (byte[]) part : part.toString().getBytes(TestCase.UTF_8);
+      out.write(b, 0, b.length);
+    }
+    return out.toByteArray();
   }
 
   private String nonDigits() {
@@ -97,82 +192,160 @@ public class LuhnyBinTests extends TestSuite {
   }
 
   private void testFormatted(char delimeter) {
-    test("16-digit # delimited with '" + delimeter + "'")
-        .send(formattedNumber(delimeter))
-        .expect(formattedMask(delimeter));
+    String number = cardNumber(formattedLength);
+    test(formattedLength + "-digit # delimited with '" + delimeter + "'")
+        .send(formatNumber(number, delimeter))
+        .expect(formatNumber(mask(formattedLength), delimeter));
   }
 
-  private static String formattedNumber(char delimeter) {
-    return formatNumber(randomNumber(16), delimeter);
+  /** Formats {@code number} with the allowed separator at {@code index}, if there is one. */
+  private String format(String number, int index) {
+    if (rules.separators.isEmpty()) return number;
+    return formatNumber(number, rules.separators.charAt(index));
   }
 
+  /** Separates groups of 4 digits with {@code delimeter}. The last group may be shorter. */
   static String formatNumber(String number, char delimeter) {
-    if (number.length() != 16) throw new IllegalArgumentException("Expected length of 16.");
     StringBuilder formatted = new StringBuilder();
-    for (int i = 0; i < 4; i++) {
-      formatted.append(number.substring(i * 4, (i * 4) + 4));
-      if (i < 3) formatted.append(delimeter);
+    for (int i = 0; i < number.length(); i += 4) {
+      if (i > 0) formatted.append(delimeter);
+      formatted.append(number, i, Math.min(i + 4, number.length()));
     }
     return formatted.toString();
   }
 
-  private static String formattedMask(char delimeter) {
-    StringBuilder mask = new StringBuilder();
-    for (int i = 0; i < 4; i++) {
-      mask.append(repeatingSequence(MASK, 4));
-      if (i < 3) mask.append(delimeter);
+  /** Adds a hand-written example, unless the rules mask it differently. */
+  private void example(String description, String output, String expectedInput) {
+    if (expected(output).equals(expectedInput)) {
+      test(description).send(output).expect(expectedInput);
     }
-    return mask.toString();
   }
 
-  /** Generates a sequence of digits with the specified length and no card #s. */
-  private String nonMatchingSequence(int length) {
-    StringBuilder builder = new StringBuilder();
-    DigitSet excluded = new DigitSet();
-    for (int lastIndex = 0; lastIndex < length; lastIndex++) {
-      excluded.clear();
+  /** Adds a hand-written example with no card #s, unless the rules find one. */
+  private void example(String description, String output) {
+    example(description, output, output);
+  }
 
-      // Compute digits that would result in valid card #s.
-      for (int subLength = MIN_LENGTH; subLength <= MAX_LENGTH; subLength++) {
-        int start = lastIndex - (subLength - 1);
-        if (start < 0) break;
-        excluded.add(computeLast(builder.subSequence(start, lastIndex)));
+  /**
+   * Masks {@code line} the slow, obvious way: tries every window of each run of digits against
+   * {@link CardRules#matches}. Consecutive digits in a run are at most one separator apart.
+   */
+  String expected(String line) {
+    char[] masked = line.toCharArray();
+    List<Integer> run = new ArrayList<Integer>(); // Indexes of the digits.
+    for (int i = 0; i < masked.length; i++) {
+      if (masked[i] < '0' || masked[i] > '9') continue;
+      if (!run.isEmpty()) {
+        int last = run.get(run.size() - 1);
+        if (i - last > 2 || i - last == 2 && !rules.isSeparator(line.charAt(last + 1))) {
+          maskMatches(line, run, masked);
+          run.clear();
+        }
       }
+      run.add(i);
+    }
+    maskMatches(line, run, masked);
+    return new String(masked);
+  }
 
-      // Find a digit that doesn't result in a valid card #.
-      char digit;
-      do {
-        digit = randomDigit();
-      } while (excluded.contains(digit));
-      builder.append(digit);
+  /** Masks the digits of every card # in the run of digits at the given indexes. */
+  private void maskMatches(String line, List<Integer> run, char[] masked) {
+    StringBuilder digits = new StringBuilder(run.size());
+    for (int i : run) digits.append(line.charAt(i));
+    for (int from = 0; from < run.size(); from++) {
+      for (int to = from + minLength; to <= from + maxLength && to <= run.size(); to++) {
+        if (rules.matches(digits.subSequence(from, to))) {
+          for (int i = from; i < to; i++) masked[run.get(i)] = MASK;
+        }
+      }
     }
+  }
 
-    return builder.toString();
+  /**
+   * Generates a sequence of digits with the specified length and no card #s. Without a Luhn
+   * check, that's only possible for sequences shorter than a card #.
+   */
+  String nonMatchingSequence(int length) {
+    byte[] digits = new byte[length];
+    if (rules.luhn) {
+      new NonMatchingDigits(random.nextLong(), rules).fill(digits, 0, length);
+    } else if (length < minLength) {
+      for (int i = 0; i < length; i++) digits[i] = (byte) randomDigit();
+    } else {
+      throw new IllegalArgumentException("Every " + length + "-digit sequence matches.");
+    }
+    return new String(digits, ASCII);
   }
 
-  private void testOverlappingMatches() {
-    StringBuilder output = new StringBuilder(randomNumber(MAX_LENGTH));
-    for (int i = 0; i < 1000 - MAX_LENGTH; i++) {
-      output.append(computeLast(output.subSequence(i + 1, i + MAX_LENGTH)));
+  /** Returns true if a suffix of {@code digits} is a card # on its own. */
+  private boolean endsWithCardNumber(String digits) {
+    for (int length = minLength; length <= maxLength && length <= digits.length(); length++) {
+      if (rules.matches(digits.substring(digits.length() - length))) return true;
     }
+    return false;
+  }
 
+  private void testOverlappingMatches() {
+    StringBuilder output = new StringBuilder(cardNumber(maxLength));
+    overlap(output, 1000);
     test("long sequence of overlapping, valid #s")
-        .send(output.toString())
-        .expect(mask(output.length()));
+        .send(output)
+        .expect(expected(output.toString()));
+  }
+
+  /** Generates digits where every run of 16 is a valid card #. */
+  static String overlappingMatches(int length) {
+    StringBuilder output = new StringBuilder(randomNumber(16));
+    overlap(output, length);
+    return output.toString();
+  }
+
+  /**
+   * Extends the card # in {@code output} to {@code length} digits, so that every run as long as
+   * the original is a valid card #.
+   */
+  private static void overlap(StringBuilder output, int length) {
+    int width = output.length();
+    for (int i = 0; i < length - width; i++) {
+      output.append(computeLast(output.subSequence(i + 1, i + width)));
+    }
   }
 
-  /** Creates a 16-digit card # with a 14-digit number embedded inside. */
-  private static String nestedNumber() {
-    StringBuilder number = new StringBuilder(16);
-    number.setLength(16);
-    setRandomDigits(number, 0, 14);
-    number.setCharAt(14, computeLast(number.subSequence(1, 14)));
-    number.setCharAt(15, computeLast(number.subSequence(0, 15)));
+  /** Creates a card # with a shorter number embedded inside, ending one digit before it. */
+  private String nestedNumber(int innerLength, int outerLength) {
+    String prefix = randomPrefix();
+    StringBuilder number = new StringBuilder(outerLength);
+    number.append(prefix);
+    number.setLength(outerLength);
+    int last = outerLength - 1;
+    setRandomDigits(number, prefix.length(), last - 1);
+    number.setCharAt(last - 1, computeLast(number.subSequence(last - innerLength, last - 1)));
+    number.setCharAt(last, computeLast(number.subSequence(0, last)));
     return number.toString();
   }
 
+  /**
+   * Creates a random card # with the specified number of digits that the rules allow: it starts
+   * with an allowed prefix and, if the rules require it, passes the Luhn check.
+   */
+  private String cardNumber(int digits) {
+    String prefix = randomPrefix();
+    StringBuilder number = new StringBuilder(digits);
+    number.append(prefix);
+    number.setLength(digits);
+    setRandomDigits(number, prefix.length(), rules.luhn ? digits - 1 : digits);
+    if (rules.luhn) number.setCharAt(digits - 1, computeLast(number.subSequence(0, digits - 1)));
+    return number.toString();
+  }
+
+  /** Picks one of the allowed prefixes, or returns "" if any will do. */
+  private String randomPrefix() {
+    if (rules.prefixes.isEmpty()) return "";
+    return rules.prefixes.get(random.nextInt(rules.prefixes.size()));
+  }
+
   /** Computes a random, valid card # with the specified number of digits. */
-  private static String randomNumber(int digits) {
+  static String randomNumber(int digits) {
     StringBuilder number = new StringBuilder(digits);
     number.setLength(digits);
     setRandomDigits(number, 0, digits - 1);
@@ -203,41 +376,6 @@ public class LuhnyBinTests extends TestSuite {
 
   /** Computes the last digit necessary to pass the Luhn check. */
   static char computeLast(CharSequence allButLast) {
-    int sum = 0;
-    for (int i = allButLast.length() - 1; i >= 0; i -= 2) {
-      int value = (checkDigit(allButLast.charAt(i)) - '0') << 1;
-      sum += value > 9 ? value - 9 : value;
-    }
-    for (int i = allButLast.length() - 2; i >= 0; i -= 2) {
-      sum += checkDigit(allButLast.charAt(i)) - '0';
-    }
-    int remainder = sum % 10;
-    return remainder == 0 ? '0' : (char) ((10 - remainder) + '0');
-  }
-
-  private static char checkDigit(char c) {
-    if (c < '0' || c > '9') throw new IllegalArgumentException("Not a digit: " + c);
-    return c;
-  }
-
-  private static int intValue(char c) {
-    checkDigit(c);
-    return c - '0';
-  }
-
-  static class DigitSet {
-    private final BitSet bitSet = new BitSet();
-
-    void add(char digit) {
-      bitSet.set(intValue(digit));
-    }
-
-    boolean contains(char digit) {
-      return bitSet.get(intValue(digit));
-    }
-
-    void clear() {
-      bitSet.clear();
-    }
+    return LuhnChecksum.checkDigit(allButLast);
   }
 }
@@ -15,47 +15,83 @@
  */
 package com.squareup.luhnybin;
 
+import com.google.common.base.Charsets;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Runs the test suite against mask.sh.
+ * Runs the test suite against mask.sh, or against a {@link Masker} in process.
  *
  * @author Bob Lee (bob@squareup.com)
  */
 public class Main extends TestSuite {
 
+  /** Number of slowest tests to list in each category. */
+  private static final int SLOWEST_TESTS = 5;
+
+  private static final int COPY_BUFFER = 64 * 1024;
+
+  /** How often to sample mask.sh's CPU time and memory, in ms. */
+  private static final long SAMPLE_INTERVAL_MS = 100;
+
+  /** How long to wait for mask.sh to exit once its input is closed or it's been killed. */
+  private static final long EXIT_TIMEOUT_MS = 1000;
+
+  /** How often to print throughput, in ms. */
+  private static final long THROUGHPUT_INTERVAL_MS = 1000;
+
   private static int testsPassed = 0;
 
   public static void main(String[] args) throws IOException {
-    if (!new File("mask.sh").exists()) {
-      System.err.println("Couldn't find 'mask.sh' in the current directory.");
+    final Options options;
+    try {
+      options = Options.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.print(Options.USAGE);
       System.exit(1);
+      return;
     }
 
-    final int iterations;
-    if (args.length > 0) {
-      if (args.length > 1) {
-        System.err.println("Usage: ./run.sh [iterations]");
-        System.exit(1);
-      }
-
-      iterations = Integer.parseInt(args[0]);
-      if (iterations < 1) {
-        System.err.println("Iterations must be >= 1.");
-        System.exit(1);
-      }
-    } else {
-      iterations = 1;
+    if (!options.inProcess && options.leaderboard == null && !new File("mask.sh").exists()) {
+      System.err.println("Couldn't find 'mask.sh' in the current directory.");
+      System.exit(1);
+    }
+    if (options.compare != null && !options.compare.exists()) {
+      System.err.println("Couldn't find baseline '" + options.compare + "'.");
+      System.exit(1);
+    }
+    // Read the baseline now, in case we're about to replace it, and check it before the run.
+    final Baseline compare = options.compare != null ? Baseline.read(options.compare) : null;
+    if (compare != null && compare.times.length < Baseline.MIN_ITERATIONS) {
+      System.err.println("Baseline '" + options.compare + "' has only " + compare.times.length
+          + " iterations. Record it again with at least " + Baseline.MIN_ITERATIONS + ".");
+      System.exit(1);
     }
 
     final Executor executor = Executors.newCachedThreadPool(new ThreadFactory() {
@@ -66,52 +102,320 @@ public class Main extends TestSuite {
       }
     });
 
-    System.out.println("Running tests against mask.sh...");
+    if (options.parallel > 0) {
+      measureScaling(options, executor);
+      System.exit(0);
+    }
+
+    if (options.latency) {
+      measureLatency(options, executor);
+      System.exit(0);
+    }
+
+    if (options.leaderboard != null) {
+      runLeaderboard(options, executor);
+      System.exit(0);
+    }
+
+    if (options.complexity > 0) {
+      System.exit(checkComplexity(options, executor) ? 0 : 1);
+    }
+
+    final Target target = newTarget(options, executor);
+
+    if (options.measuresThroughput()) {
+      measureThroughput(options, target, executor);
+      return;
+    }
+
+    System.out.println("Running tests against " + target + "...");
     System.out.println();
 
     final LuhnyBinTests luhnyBinTests = new LuhnyBinTests();
-    final Process process = new ProcessBuilder("sh", "mask.sh").start();
 
-    // Copy error stream from child process.
-    executor.execute(new Runnable() {
-      public void run() {
-        try {
-          ByteStreams.copy(process.getErrorStream(), System.err);
-        } catch (IOException e) { /* ignore */ }
+    final TestTimings timings = new TestTimings(luhnyBinTests, options.iterations);
+
+    long start = System.nanoTime();
+    try {
+      // Time/iteration in us, not counting warm-up.
+      long[] times = runIterations(options, target, luhnyBinTests, timings,
+          new TestCase.Listener() {
+            public void testPassed(TestCase test) {
+              System.out.print('.');
+              if (++testsPassed % 80 == 0) System.out.println();
+            }
+
+            public void testFailed(TestCase test, String actualInput) {
+              System.out.println('X');
+              System.out.println();
+              printFailure(luhnyBinTests, test, actualInput);
+              target.destroy();
+              System.exit(1);
+            }
+          });
+
+      long elapsed = (System.nanoTime() - start) / 1000000;
+
+      System.out.println();
+      if (testsPassed % 80 != 0) System.out.println();
+      System.out.println("Tests passed!");
+      System.out.println();
+      System.out.printf("Total time:   %,dms%n", elapsed);
+      if (options.warmup > 0) {
+        System.out.printf("Warm-up:      %,d iterations%n", options.warmup);
       }
-    });
 
-    // Buffer output for maximum efficiency.
-    final ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    luhnyBinTests.writeTo(bout);
+      Stats stats = new Stats(times);
+      if (options.iterations > 1) {
+        System.out.println();
+        stats.print(System.out, "us");
+      }
+      if (target.timesTests()) {
+        System.out.println();
+        timings.print(System.out, SLOWEST_TESTS);
+      }
+      ProcessStats processStats = target.processStats();
+      if (processStats != null) processStats.print(System.out, target.toString());
+      if (options.report != null) {
+        writeReport(options, target, times, stats, timings, processStats);
+      }
+      if (options.compare != null || options.baseline != null) {
+        Baseline run = Baseline.of(target, luhnyBinTests, options.warmup, times, timings);
+        if (compare != null) {
+          Baseline.Comparison comparison = run.compareTo(compare,
+              options.thresholdPercent / 100.0);
+          System.out.println();
+          comparison.print(System.out);
+          if (comparison.regressed()) {
+            target.destroy();
+            System.exit(1);
+          }
+        }
+        if (options.baseline != null) run.write(options.baseline);
+      }
 
-    final OutputStream out = process.getOutputStream();
-    final InputStream in = process.getInputStream();
-    long start = System.nanoTime();
+      System.out.println();
+      target.destroy();
+      System.exit(0);
+    } catch (EOFException e) {
+      System.err.println("Error: " + target + " didn't send the expected amount of output.");
+      target.destroy();
+      System.exit(1);
+    }
+  }
+
+  static Target newTarget(Options options, Executor executor) throws IOException {
+    return options.inProcess
+        ? new InProcessTarget(loadMasker(options.maskerClass))
+        : new ProcessTarget(executor, new File("."), options.timeTests);
+  }
+
+  /**
+   * Runs the warm-up and measured iterations of {@code tests} through {@code target}. Returns the
+   * time for each measured iteration in us.
+   */
+  static long[] runIterations(Options options, Target target, TestSuite tests,
+      TestTimings timings, TestCase.Listener listener) throws IOException {
+    return runIterations(options, target, tests, timings, listener, null);
+  }
+
+  /**
+   * Like {@link #runIterations(Options, Target, TestSuite, TestTimings, TestCase.Listener)}, but
+   * waits at {@code warmedUp} between the warm-up and measured iterations unless it's null.
+   */
+  static long[] runIterations(Options options, Target target, TestSuite tests,
+      TestTimings timings, TestCase.Listener listener, CyclicBarrier warmedUp)
+      throws IOException {
+    int total = options.warmup + options.iterations;
+    long[] times = new long[options.iterations];
+    for (int i = 0; i < total; i++) {
+      if (i == options.warmup && warmedUp != null) await(warmedUp);
+      long iterationStart = System.nanoTime();
+
+      timings.recording = i >= options.warmup;
+      InputStream in = target.send(tests, timings, i == total - 1);
+      if (target.timesTests()) {
+        tests.check(in, listener, timings);
+      } else {
+        tests.check(in, listener);
+      }
+      if (i >= options.warmup) {
+        times[i - options.warmup] = (System.nanoTime() - iterationStart) / 1000;
+      }
+    }
+    return times;
+  }
+
+  static void printFailure(TestSuite tests, TestCase test, String actualInput) {
+    System.err.println("Test #" + test.index + " of " + tests.count + " failed:"
+        + "\n  Description:     " + test.description
+        + "\n  Input:           " + showBreaks(test.output)
+        + "\n  Expected result: " + showBreaks(test.expectedInput)
+        + "\n  Actual result:   " + showBreaks(actualInput)
+        + "\n");
+  }
+
+  private static void await(CyclicBarrier barrier) throws IOException {
     try {
-      // Time/iteration in ms.
-      long[] times = new long[iterations];
+      barrier.await();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } catch (BrokenBarrierException e) {
+      throw new IOException("Another masker failed.", e);
+    }
+  }
 
-      for (int i = 0; i < iterations; i++) {
-        final boolean lastIteration = i == iterations - 1;
+  /**
+   * Runs the tests through 1, 2, 4... up to {@code options.parallel} maskers at once and prints
+   * how total throughput and per-masker latency scale. Each masker gets its own copy of the tests,
+   * its own writer and its own checker, like one filter per log stream in production. The maskers
+   * all warm up first, so start-up isn't timed, and then start their measured iterations together.
+   * Throughput is over the wall time from then until the last one finishes.
+   */
+  static void measureScaling(final Options options, Executor executor) throws IOException {
+    List<Integer> counts = new ArrayList<Integer>();
+    for (int n = 1; n < options.parallel; n *= 2) counts.add(n);
+    counts.add(options.parallel);
 
-        long iterationStart = System.nanoTime();
+    long suiteBytes = 0;
+    for (TestCase test : new LuhnyBinTests().testCases()) suiteBytes += test.size();
 
-        // Write in the background. Writing can block if the buffer fills up.
-        executor.execute(new Runnable() {
-          public void run() {
+    String kind = options.inProcess ? "in-process maskers" : "copies of mask.sh";
+    System.out.printf("Running tests through up to %d %s at once, %,d iterations each...%n",
+        options.parallel, kind, options.iterations);
+    System.out.println();
+    System.out.printf("%7s %12s %12s %8s %12s %10s %10s%n", "Maskers", "Time",
+        "Throughput", "Speedup", "Latency p50", "p99", "Worst p50");
+
+    double baseline = 0;
+    for (int n : counts) {
+      final List<Target> targets = new ArrayList<Target>();
+      List<FutureTask<long[]>> runs = new ArrayList<FutureTask<long[]>>();
+      final AtomicLong startedAt = new AtomicLong();
+      final CyclicBarrier warmedUp = new CyclicBarrier(n, new Runnable() {
+        public void run() {
+          startedAt.set(System.nanoTime());
+        }
+      });
+      final long[] finishedAt = new long[n];
+      for (int i = 0; i < n; i++) {
+        final int index = i;
+        final Target masker = newTarget(options, executor);
+        final LuhnyBinTests tests = new LuhnyBinTests();
+        final TestTimings timings = new TestTimings(tests, options.iterations);
+        targets.add(masker);
+        runs.add(new FutureTask<long[]>(new Callable<long[]>() {
+          public long[] call() throws IOException {
             try {
-              bout.writeTo(out);
-              out.flush();
-              if (lastIteration) out.close();
+              long[] times = runIterations(options, masker, tests, timings,
+                  new TestCase.Listener() {
+                    public void testPassed(TestCase test) {}
+
+                    public void testFailed(TestCase test, String actualInput) {
+                      printFailure(tests, test, actualInput);
+                      for (Target target : targets) target.destroy();
+                      System.exit(1);
+                    }
+                  }, warmedUp);
+              finishedAt[index] = System.nanoTime();
+              return times;
             } catch (IOException e) {
-              e.printStackTrace();
-              System.exit(1);
+              // Don't leave the others waiting to start.
+              warmedUp.reset();
+              throw e;
             }
           }
+        }));
+      }
+
+      for (FutureTask<long[]> run : runs) executor.execute(run);
+      long[] times = new long[n * options.iterations];
+      long lastFinished = 0;
+      long worstMedian = 0;
+      for (int i = 0; i < n; i++) {
+        long[] maskerTimes = await(runs.get(i), targets.get(i));
+        System.arraycopy(maskerTimes, 0, times, i * options.iterations, options.iterations);
+        lastFinished = Math.max(lastFinished, finishedAt[i] - startedAt.get());
+        worstMedian = Math.max(worstMedian, new Stats(maskerTimes).median());
+      }
+      for (Target masker : targets) masker.destroy();
+      long elapsed = Math.max(lastFinished / 1000, 1); // Wall time in us.
+
+      double throughput = (double) n * options.iterations * suiteBytes / elapsed;
+      if (baseline == 0) baseline = throughput;
+      Stats stats = new Stats(times);
+      System.out.printf("%7d %,10dms %,7.1f MB/s %7.2fx %,10dus %,8dus %,8dus%n", n,
+          elapsed / 1000, throughput, throughput / baseline, stats.median(),
+          stats.percentile(99), worstMedian);
+    }
+    System.out.println();
+  }
+
+  /**
+   * Times single lines of each adversarial kind, growing up to {@code options.complexity} bytes.
+   * Returns false if masking time grows faster than the size of the line.
+   */
+  static boolean checkComplexity(Options options, Executor executor) throws IOException {
+    ComplexityCheck.Runner runner = options.inProcess
+        ? new ComplexityCheck.InProcessRunner(loadMasker(options.maskerClass))
+        : new ComplexityCheck.ProcessRunner(executor, new File("."));
+    ComplexityCheck check = new ComplexityCheck(runner, executor, options.complexity);
+    List<Integer> sizes = check.sizes();
+    System.out.printf("Timing single lines of %s to %s through %s...%n",
+        ComplexityCheck.formatSize(sizes.get(0)),
+        ComplexityCheck.formatSize(sizes.get(sizes.size() - 1)), runner);
+    System.out.println();
+    try {
+      return check.run(System.out);
+    } catch (Corpus.Mismatch e) {
+      System.err.println(e.getMessage()
+          + "\n  Input:           " + showBreaks(e.input)
+          + "\n  Expected result: " + showBreaks(e.expected)
+          + "\n  Actual result:   " + showBreaks(e.actual)
+          + "\n");
+      return false;
+    } catch (EOFException e) {
+      System.err.println("Error: " + e.getMessage());
+      return false;
+    } finally {
+      runner.close();
+    }
+  }
+
+  /**
+   * Sends mask.sh one test at a time and times how long each masked line takes to come back.
+   * Fails if any line takes longer than the deadline.
+   */
+  static void measureLatency(Options options, Executor executor) throws IOException {
+    System.out.printf("Timing each line through mask.sh with a %,dms deadline...%n",
+        options.deadlineMillis);
+    System.out.println();
+
+    final ProcessTarget target = new ProcessTarget(executor);
+    final LuhnyBinTests tests = new LuhnyBinTests();
+    final TestTimings timings = new TestTimings(tests, options.iterations);
+    final AtomicBoolean missedDeadline = new AtomicBoolean();
+    LatencyProbe probe = target.latencyProbe(options.deadlineMillis * 1000000,
+        new LatencyProbe.DeadlineListener() {
+          public void missedDeadline(TestCase test, long waitedNanos) {
+            missedDeadline.set(true);
+            System.out.println();
+            System.err.printf("Error: mask.sh didn't return test #%d within %,dms. Is it "
+                + "buffering its output?%n  Description: %s%n  Input:       %s%n%n", test.index,
+                waitedNanos / 1000000, test.description, showBreaks(test.output));
+            target.destroy();
+            System.exit(1);
+          }
         });
-        
-        luhnyBinTests.check(in, new TestCase.Listener() {
+    Thread watchdog = new Thread(probe, "Latency deadline");
+    watchdog.setDaemon(true);
+    watchdog.start();
+
+    try {
+      int total = options.warmup + options.iterations;
+      for (int i = 0; i < total; i++) {
+        timings.recording = i >= options.warmup;
+        probe.check(tests, timings, new TestCase.Listener() {
           public void testPassed(TestCase test) {
             System.out.print('.');
             if (++testsPassed % 80 == 0) System.out.println();
@@ -120,48 +424,456 @@ public class Main extends TestSuite {
           public void testFailed(TestCase test, String actualInput) {
             System.out.println('X');
             System.out.println();
-            System.err.println("Test #" + test.index + " of " + luhnyBinTests.count + " failed:"
-                + "\n  Description:     " + test.description
-                + "\n  Input:           " + showBreaks(test.output)
-                + "\n  Expected result: " + showBreaks(test.expectedInput)
-                + "\n  Actual result:   " + showBreaks(actualInput)
-                + "\n");
-            process.destroy();
+            printFailure(tests, test, actualInput);
+            target.destroy();
             System.exit(1);
           }
         });
-        times[i] = (System.nanoTime() - iterationStart) / 1000;
       }
+    } catch (EOFException e) {
+      // If we missed the deadline, we hit EOF because the watchdog killed mask.sh.
+      if (!missedDeadline.get()) {
+        System.err.println("Error: " + target + " didn't send the expected amount of output.");
+      }
+      target.destroy();
+      System.exit(1);
+    }
+    watchdog.interrupt();
 
-      long elapsed = (System.nanoTime() - start) / 1000000;
+    System.out.println();
+    if (testsPassed % 80 != 0) System.out.println();
+    System.out.println("Tests passed!");
+    System.out.println();
+    if (options.warmup > 0) {
+      System.out.printf("Warm-up:      %,d iterations%n", options.warmup);
+    }
+    System.out.println("Latency per line:");
+    long[] micros = timings.allTimes();
+    for (int i = 0; i < micros.length; i++) micros[i] /= 1000;
+    new Stats(micros).print(System.out, "us");
+    System.out.println();
+    timings.print(System.out, SLOWEST_TESTS);
+    target.destroy();
+  }
 
-      System.out.println();
-      if (testsPassed % 80 != 0) System.out.println();
-      System.out.println("Tests passed!");
-      System.out.println();
-      System.out.printf("Total time:   %,dms%n", elapsed);
+  /** Runs the tests against each implementation in the leaderboard directory and ranks them. */
+  static void runLeaderboard(Options options, Executor executor) {
+    List<File> implementations = Leaderboard.implementations(options.leaderboard);
+    if (implementations.isEmpty()) {
+      System.err.println("Couldn't find any '" + options.leaderboard + "/*/mask.sh'.");
+      System.exit(1);
+    }
+    System.out.printf("Running tests against %d implementations, %,d iterations each%s...%n",
+        implementations.size(), options.iterations, options.warmup > 0
+            ? String.format(" after %,d warm-up", options.warmup) : "");
+    System.out.println();
+    List<Leaderboard.Entry> entries = new Leaderboard(options, executor)
+        .run(implementations, System.out);
+    System.out.println();
+    Leaderboard.print(System.out, entries);
+    System.out.println();
+  }
+
+  /** Waits for {@code run} to finish. Exits if it failed. */
+  private static long[] await(FutureTask<long[]> run, Target target) {
+    try {
+      return run.get();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof EOFException) {
+        System.err.println("Error: " + target + " didn't send the expected amount of output.");
+      } else {
+        e.getCause().printStackTrace();
+      }
+      System.exit(1);
+      return null;
+    }
+  }
+
+  /**
+   * Streams {@link Corpus generated logs} through the target for a fixed size or duration,
+   * printing throughput once a second. Checks the result as it comes back, in constant memory.
+   */
+  static void measureThroughput(Options options, final Target target, Executor executor)
+      throws IOException {
+    final long size = options.size > 0 ? options.size : Long.MAX_VALUE;
+    final long duration = options.durationMillis > 0
+        ? options.durationMillis * 1000000 : Long.MAX_VALUE;
+    System.out.printf("Streaming generated logs (seed %d) through %s for %s...%n", options.seed,
+        target, options.size > 0 && options.durationMillis > 0
+            ? String.format("%,d bytes or %,dms", options.size, options.durationMillis)
+            : options.size > 0 ? String.format("%,d bytes", options.size)
+            : String.format("%,dms", options.durationMillis));
+    System.out.println();
 
-      if (iterations > 1) {
-        long sum = 0;
-        for (long time : times) sum += time;
+    final Corpus.Source input;
+    final Corpus.Checker verifier;
+    if (options.cache != null) {
+      boolean cached = CorpusFile.logsFile(options.cache, options.seed, size).exists();
+      long start = System.nanoTime();
+      CorpusFile corpus = CorpusFile.cachedLogs(options.cache, options.seed, size);
+      System.out.printf("%s %s in %,dms.%n%n", cached ? "Opened" : "Generated", corpus,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      input = corpus.input();
+      verifier = corpus.verifier();
+    } else {
+      input = new Corpus.Input(options.seed, size);
+      verifier = new Corpus.Verifier(options.seed);
+    }
+    final Throughput throughput = new Throughput(System.out);
+    final CountDownLatch done = new CountDownLatch(1);
 
-        Arrays.sort(times);
-        System.out.printf("Mean time:    %,dus%n", sum / times.length);
-        System.out.printf("Median time:  %,dus%n", times[times.length / 2]);
-        System.out.printf("Fastest time: %,dus%n", times[0]);
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          while (!done.await(THROUGHPUT_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            throughput.sample(verifier.bytes(), verifier.lines());
+            if (throughput.elapsed() >= duration) input.stop();
+          }
+        } catch (InterruptedException e) { /* exit */ }
       }
+    });
 
+    try {
+      target.stream(input, verifier, throughput);
+      done.countDown();
+      verifier.finish(input.bytes());
+    } catch (Corpus.Mismatch e) {
+      done.countDown();
+      System.err.println(e.getMessage()
+          + "\n  Input:           " + showBreaks(e.input)
+          + "\n  Expected result: " + showBreaks(e.expected)
+          + "\n  Actual result:   " + showBreaks(e.actual)
+          + "\n");
+      target.destroy();
+      System.exit(1);
+    }
+
+    System.out.println();
+    System.out.println("Output matched!");
+    System.out.println();
+    throughput.printSummary(verifier.bytes(), verifier.lines());
+    System.out.println();
+    ProcessStats processStats = target.processStats();
+    if (processStats != null) {
+      processStats.print(System.out, target.toString());
       System.out.println();
-      process.destroy();
-      System.exit(0);
-    } catch (EOFException e) {
-      System.err.println("Error: mask.sh didn't send the expected amount of output.");
-      process.destroy();
+    }
+    target.destroy();
+    System.exit(0);
+  }
+
+  /**
+   * Writes iteration stats in us to the report file, as CSV or JSON, along with what the process
+   * used if {@code processStats} isn't null.
+   */
+  static void writeReport(Options options, Target target, long[] times, Stats stats,
+      TestTimings timings, ProcessStats processStats) throws IOException {
+    StringBuilder report = new StringBuilder();
+    if (options.report.getName().endsWith(".csv")) {
+      report.append("target,warmup,").append(Stats.csvHeader()).append(',')
+          .append(ProcessStats.csvHeader()).append('\n')
+          .append(target).append(',').append(options.warmup).append(',')
+          .append(stats.toCsvRow()).append(',')
+          .append(processStats != null ? processStats.toCsvRow() : ",,,,,").append('\n');
+    } else {
+      report.append("{\"target\": \"").append(target).append("\", \"unit\": \"us\", ")
+          .append("\"warmup\": ").append(options.warmup).append(", ")
+          .append(stats.toJsonFields()).append(",\n  \"times\": ")
+          .append(Arrays.toString(times)).append(",\n  \"histogram\": [");
+      String separator = "";
+      for (Stats.Bucket bucket : stats.histogram()) {
+        report.append(separator).append("{\"from\": ").append(bucket.from)
+            .append(", \"to\": ").append(bucket.to)
+            .append(", \"count\": ").append(bucket.count).append('}');
+        separator = ", ";
+      }
+      report.append("]");
+      if (processStats != null) {
+        report.append(",\n  \"process\": {").append(processStats.toJsonFields()).append('}');
+      }
+      if (target.timesTests()) {
+        report.append(",\n  \"tests\": [");
+        separator = "\n    ";
+        for (TestTimings.TestStats test : timings.stats()) {
+          report.append(separator).append("{\"index\": ").append(test.test.index)
+              .append(", \"description\": \"").append(jsonEscape(test.test.description))
+              .append("\", \"bytes\": ").append(test.bytes())
+              .append(", \"unit\": \"ns\", ").append(test.stats.toJsonFields()).append('}');
+          separator = ",\n    ";
+        }
+        report.append("]");
+      }
+      report.append("}\n");
+    }
+    Files.write(report, options.report, Charsets.UTF_8);
+  }
+
+  static String jsonEscape(String s) {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  /**
+   * Loads the named masker, or the first one registered in {@code META-INF/services} if the name
+   * is null.
+   */
+  static Masker loadMasker(String className) {
+    if (className != null) {
+      try {
+        return Class.forName(className).asSubclass(Masker.class).getDeclaredConstructor()
+            .newInstance();
+      } catch (ReflectiveOperationException e) {
+        System.err.println("Couldn't load masker " + className + ": " + e);
+        System.exit(1);
+      } catch (ClassCastException e) {
+        System.err.println("Couldn't load masker " + className + ": it isn't a Masker.");
+        System.exit(1);
+      }
+    }
+    Iterator<Masker> maskers = ServiceLoader.load(Masker.class).iterator();
+    if (!maskers.hasNext()) {
+      System.err.println("Couldn't find a masker in META-INF/services.");
       System.exit(1);
     }
+    return maskers.next();
+  }
+
+  /** Like ByteStreams.copy() but with a buffer big enough to keep up with a fast masker. */
+  static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[COPY_BUFFER];
+    int count;
+    while ((count = in.read(buffer)) != -1) out.write(buffer, 0, count);
   }
 
   static String showBreaks(String s) {
     return s.replace("\n", "\\n").replace("\r", "\\r");
   }
+
+  /** Masks test output and sends back the result. */
+  interface Target {
+
+    /**
+     * Sends one iteration's worth of test output and returns the stream to read the masked result
+     * from. Closes the output if this is the last iteration.
+     */
+    InputStream send(TestSuite tests, TestTimings timings, boolean last) throws IOException;
+
+    /**
+     * Masks everything in {@code in} into {@code out}, then closes the target's input. Returns
+     * once the target closes its output. Times any pipes with {@code throughput}.
+     */
+    void stream(InputStream in, OutputStream out, Throughput throughput) throws IOException;
+
+    /** Returns true if this target records meaningful per-test timings. */
+    boolean timesTests();
+
+    /**
+     * Returns what the target's process and its descendants have used so far, or null if it
+     * doesn't run in its own process or we can't tell.
+     */
+    ProcessStats processStats();
+
+    void destroy();
+  }
+
+  /** Runs mask.sh in a child process and talks to it over pipes. */
+  static class ProcessTarget implements Target {
+    private final Executor executor;
+    private final Process process;
+    private final ProcessStats stats;
+    private final InputStream output;
+    private final boolean timeTests;
+    private byte[] suite;
+    private volatile boolean inputClosed;
+    private volatile boolean destroyed;
+
+    ProcessTarget(Executor executor) throws IOException {
+      this(executor, new File("."));
+    }
+
+    /** Runs {@code directory}/mask.sh in {@code directory}. */
+    ProcessTarget(Executor executor, File directory) throws IOException {
+      this(executor, directory, false);
+    }
+
+    /**
+     * Runs {@code directory}/mask.sh in {@code directory}. If {@code timeTests}, writes and
+     * flushes one test at a time so it can time each one. Otherwise writes the suite in one go.
+     */
+    ProcessTarget(Executor executor, File directory, boolean timeTests) throws IOException {
+      this.executor = executor;
+      this.timeTests = timeTests;
+      this.process = new ProcessBuilder("sh", "mask.sh").directory(directory).start();
+      this.stats = new ProcessStats(process);
+      this.output = stats.timeFirstByte(process.getInputStream());
+
+      if (stats.supported()) {
+        executor.execute(new Runnable() {
+          public void run() {
+            try {
+              while (!destroyed) {
+                stats.sample();
+                Thread.sleep(SAMPLE_INTERVAL_MS);
+              }
+            } catch (InterruptedException e) { /* exit */ }
+          }
+        });
+      }
+
+      // Copy error stream from child process.
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            ByteStreams.copy(process.getErrorStream(), System.err);
+          } catch (IOException e) { /* ignore */ }
+        }
+      });
+    }
+
+    /** Returns a probe that talks to this process one test at a time. */
+    LatencyProbe latencyProbe(long deadlineNanos,
+        LatencyProbe.DeadlineListener deadlineListener) {
+      return new LatencyProbe(process.getOutputStream(), output, deadlineNanos,
+          deadlineListener);
+    }
+
+    public InputStream send(final TestSuite tests, final TestTimings timings,
+        final boolean last) throws IOException {
+      final OutputStream out = process.getOutputStream();
+      if (!timeTests && suite == null) {
+        // Buffer output for maximum efficiency.
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        tests.writeTo(bout);
+        suite = bout.toByteArray();
+      }
+      final byte[] bytes = suite;
+
+      // Write in the background. Writing can block if the buffer fills up.
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            if (timeTests) {
+              tests.writeTo(out, timings);
+            } else {
+              out.write(bytes);
+              out.flush();
+            }
+            if (last) {
+              out.close();
+              inputClosed = true;
+            }
+          } catch (IOException e) {
+            // mask.sh quit or stopped reading. The reader will see its output end early.
+            destroy();
+          }
+        }
+      });
+      return output;
+    }
+
+    public void stream(final InputStream in, OutputStream out, final Throughput throughput)
+        throws IOException {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            OutputStream processIn = throughput.timeWrites(process.getOutputStream());
+            copy(in, processIn);
+            processIn.close();
+            inputClosed = true;
+          } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+          }
+        }
+      });
+      copy(throughput.timeReads(output), out);
+    }
+
+    public boolean timesTests() {
+      return timeTests;
+    }
+
+    /**
+     * Samples once more, so the totals are up to date. If mask.sh has run out of input, waits for
+     * it to exit so its CPU time includes its last moments.
+     */
+    public ProcessStats processStats() {
+      if (!stats.supported()) return null;
+      stats.sample();
+      if (inputClosed && ProcessStats.awaitExit(process, EXIT_TIMEOUT_MS)) stats.exited();
+      return stats;
+    }
+
+    /**
+     * Kills mask.sh. Closes its input first, so anything it started that outlives it sees EOF
+     * and exits too.
+     */
+    public void destroy() {
+      destroyed = true;
+      try {
+        process.getOutputStream().close();
+      } catch (IOException e) { /* already closed */ }
+      process.destroy();
+      // Reap it now, so its CPU time isn't charged to the next one.
+      ProcessStats.awaitExit(process, EXIT_TIMEOUT_MS);
+    }
+
+    @Override public String toString() {
+      return "mask.sh";
+    }
+  }
+
+  /** Runs a {@link Masker} in this JVM through in-memory streams. */
+  static class InProcessTarget implements Target {
+    private final Masker masker;
+    private final ExposedByteArrayOutputStream result = new ExposedByteArrayOutputStream();
+    private byte[] output;
+
+    InProcessTarget(Masker masker) {
+      this.masker = masker;
+    }
+
+    public InputStream send(TestSuite tests, TestTimings timings, boolean last)
+        throws IOException {
+      if (output == null) {
+        // Buffer output for maximum efficiency.
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        tests.writeTo(bout);
+        output = bout.toByteArray();
+      }
+      result.reset();
+      masker.mask(new ByteArrayInputStream(output), result);
+      return result.toInputStream();
+    }
+
+    /** Doesn't time anything: there are no pipes. */
+    public void stream(InputStream in, OutputStream out, Throughput throughput)
+        throws IOException {
+      masker.mask(in, out);
+    }
+
+    /** Returns false: we mask the whole suite before checking any of it. */
+    public boolean timesTests() {
+      return false;
+    }
+
+    /** Returns null: we share the harness's process. */
+    public ProcessStats processStats() {
+      return null;
+    }
+
+    public void destroy() {}
+
+    @Override public String toString() {
+      return masker.getClass().getName() + " in process";
+    }
+  }
+
+  /** Reads back what was written without copying it. */
+  static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    InputStream toInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
 }
@@ -15,16 +15,16 @@
  */
 package com.squareup.luhnybin;
 
-import org.eclipse.egit.github.core.client.GitHubClient;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
- * Downloads forks.
- *
- * @author Bob Lee (bob@squareup.com)
+ * A card # filter that runs inside the test harness's JVM. Implementations need a public no-arg
+ * constructor, and can register themselves in {@code META-INF/services}.
  */
-public class DownloadForks {
+public interface Masker {
 
-  public static void main(String[] args) {
-    GitHubClient client = GitHubClient
-  }
+  /** Copies {@code in} to {@code out}, masking card #s. Doesn't close either stream. */
+  void mask(InputStream in, OutputStream out) throws IOException;
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts what {@link LuhnMasker}s scan and mask. Any number of maskers on any number of threads
+ * can share one instance.
+ *
+ * <p>The counters are striped, so threads don't fight over a cache line, and maskers only add to
+ * them once per call to {@code mask()}, not once per byte. Between calls, a masker counts in
+ * plain fields, mostly once per run of digits.
+ */
+final class MaskerMetrics implements MaskerMetricsMXBean {
+
+  private final LongAdder bytesScanned = new LongAdder();
+  private final LongAdder digitsExamined = new LongAdder();
+  private final LongAdder candidateWindows = new LongAdder();
+  /** Indexed by length, up to the longest card # any rules allow. */
+  private final LongAdder[] matches = new LongAdder[CardRules.MAX_LENGTH + 1];
+  private final LongAdder maskedBytes = new LongAdder();
+
+  MaskerMetrics() {
+    for (int i = CardRules.MIN_LENGTH; i < matches.length; i++) matches[i] = new LongAdder();
+  }
+
+  /** Called by maskers with counts since their last call. */
+  void add(long bytes, long digits, long windows, long[] matchesByLength, long masked) {
+    bytesScanned.add(bytes);
+    if (digits != 0) digitsExamined.add(digits);
+    if (windows != 0) candidateWindows.add(windows);
+    for (int i = CardRules.MIN_LENGTH; i < matches.length; i++) {
+      if (matchesByLength[i] != 0) matches[i].add(matchesByLength[i]);
+    }
+    if (masked != 0) maskedBytes.add(masked);
+  }
+
+  public long getBytesScanned() {
+    return bytesScanned.sum();
+  }
+
+  public long getDigitsExamined() {
+    return digitsExamined.sum();
+  }
+
+  public long getCandidateWindows() {
+    return candidateWindows.sum();
+  }
+
+  /** Returns the number of digits that ended a card # of {@code length} digits and no longer. */
+  long matches(int length) {
+    return matches[length].sum();
+  }
+
+  public long getMatches12() {
+    return matches(12);
+  }
+
+  public long getMatches13() {
+    return matches(13);
+  }
+
+  public long getMatches14() {
+    return matches(14);
+  }
+
+  public long getMatches15() {
+    return matches(15);
+  }
+
+  public long getMatches16() {
+    return matches(16);
+  }
+
+  public long getMatches17() {
+    return matches(17);
+  }
+
+  public long getMatches18() {
+    return matches(18);
+  }
+
+  public long getMatches19() {
+    return matches(19);
+  }
+
+  public long getMaskedBytes() {
+    return maskedBytes.sum();
+  }
+
+  /** Registers these metrics with the platform MBean server under {@code name}. */
+  void register(String name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("com.squareup.luhnybin:type=MaskerMetrics,name=" + name));
+    } catch (JMException e) {
+      throw new IllegalStateException("Couldn't register metrics as " + name, e);
+    }
+  }
+
+  /**
+   * Prints a stats line every {@code intervalMillis} on a daemon thread, with throughput since the
+   * previous line.
+   */
+  void printPeriodically(final PrintStream out, final long intervalMillis) {
+    Thread thread = new Thread("MaskerMetrics") {
+      @Override public void run() {
+        long lastBytes = getBytesScanned();
+        long last = System.nanoTime();
+        try {
+          while (true) {
+            TimeUnit.MILLISECONDS.sleep(intervalMillis);
+            long bytes = getBytesScanned();
+            long now = System.nanoTime();
+            out.println(statsLine((bytes - lastBytes) * 1e3 / Math.max(now - last, 1)));
+            lastBytes = bytes;
+            last = now;
+          }
+        } catch (InterruptedException e) { /* done */ }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns the totals on one line, with the given throughput in MB/s. Lists matches of 14-16
+   * digits, and of any other lengths that matched under wider rules.
+   */
+  String statsLine(double megabytesPerSecond) {
+    int from = LuhnMasker.MIN_DIGITS;
+    int to = LuhnMasker.MAX_DIGITS;
+    for (int length = CardRules.MIN_LENGTH; length <= CardRules.MAX_LENGTH; length++) {
+      if (matches(length) != 0) {
+        from = Math.min(from, length);
+        to = Math.max(to, length);
+      }
+    }
+    StringBuilder lengths = new StringBuilder();
+    StringBuilder counts = new StringBuilder();
+    for (int length = from; length <= to; length++) {
+      if (length > from) {
+        lengths.append('/');
+        counts.append('/');
+      }
+      lengths.append(length);
+      counts.append(String.format("%,d", matches(length)));
+    }
+    return String.format("%,.1f MB scanned (%,.1f MB/s), %,d digits, %,d windows, "
+        + "matches %s: %s, %,d bytes masked", getBytesScanned() / 1e6, megabytesPerSecond,
+        getDigitsExamined(), getCandidateWindows(), lengths, counts, getMaskedBytes());
+  }
+}
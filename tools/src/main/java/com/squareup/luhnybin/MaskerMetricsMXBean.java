@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+/**
+ * What {@link MaskerMetrics} exposes through JMX. All counts are totals since the metrics were
+ * created.
+ */
+public interface MaskerMetricsMXBean {
+
+  long getBytesScanned();
+
+  long getDigitsExamined();
+
+  /** Runs of consecutive digits, of each length the rules allow, that we checked. */
+  long getCandidateWindows();
+
+  /**
+   * Card #s of 12 digits. A digit that ends card #s of more than one length only counts toward
+   * the longest. There is one attribute for each length that rules may allow, from 12 to 19.
+   */
+  long getMatches12();
+
+  long getMatches13();
+
+  long getMatches14();
+
+  long getMatches15();
+
+  long getMatches16();
+
+  long getMatches17();
+
+  long getMatches18();
+
+  long getMatches19();
+
+  long getMaskedBytes();
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Masks many log streams at once in one long-running JVM. Listens on a localhost TCP port; each
+ * connection sends text and reads it back masked, with its own {@link LuhnMasker}, so card #s
+ * split across writes are still caught. Closing the output side of the connection flushes the
+ * last bytes, and the daemon then closes the connection.
+ *
+ * <p>Connections are spread across a fixed set of event loops, one thread each, using
+ * non-blocking I/O; thousands of mostly idle streams don't need thousands of threads. Each loop
+ * lends a connection a buffer from its own pool only while there's data in flight. Between reads,
+ * an idle connection keeps at most {@link LuhnMasker#MAX_PENDING} bytes of its own. A connection
+ * that can't write stops reading until its client catches up.
+ */
+final class MaskingDaemon implements Closeable {
+
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Most idle buffers each loop keeps. */
+  private static final int MAX_POOLED = 64;
+
+  private static final int BACKLOG = 1024;
+
+  private final ServerSocketChannel server;
+  private final MaskerMetrics metrics;
+  private final EventLoop[] loops;
+  private final Thread acceptor;
+  private volatile boolean closed;
+
+  /**
+   * Listens on {@code port} on the loopback interface, or any free port if it's 0. Counts what
+   * every connection masks in {@code metrics}.
+   */
+  MaskingDaemon(int port, int threads, MaskerMetrics metrics) throws IOException {
+    if (threads < 1) throw new IllegalArgumentException("threads < 1");
+    this.metrics = metrics;
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+    loops = new EventLoop[threads];
+    for (int i = 0; i < threads; i++) loops[i] = new EventLoop(i);
+    acceptor = new Thread("MaskingDaemon acceptor") {
+      @Override public void run() {
+        accept();
+      }
+    };
+  }
+
+  /** Returns the port we're listening on. */
+  int port() {
+    return server.socket().getLocalPort();
+  }
+
+  void start() {
+    for (EventLoop loop : loops) loop.start();
+    acceptor.start();
+  }
+
+  /** Stops accepting, closes every connection and waits for the threads to exit. */
+  public void close() throws IOException {
+    closed = true;
+    server.close();
+    for (EventLoop loop : loops) loop.selector.wakeup();
+    try {
+      acceptor.join();
+      for (EventLoop loop : loops) loop.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Hands new connections to the loops in turn. */
+  private void accept() {
+    int next = 0;
+    while (!closed) {
+      SocketChannel channel;
+      try {
+        channel = server.accept();
+      } catch (ClosedChannelException e) {
+        return;
+      } catch (IOException e) {
+        // Probably out of file descriptors. Back off instead of spinning.
+        System.err.println("MaskingDaemon: accept failed: " + e);
+        sleepQuietly(100);
+        continue;
+      }
+      loops[next].add(channel);
+      next = (next + 1) % loops.length;
+    }
+  }
+
+  private static void sleepQuietly(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** A thread that serves its share of the connections. */
+  private final class EventLoop extends Thread {
+    final Selector selector;
+    final Queue<SocketChannel> added = new ConcurrentLinkedQueue<SocketChannel>();
+
+    /** Idle buffers. Only this thread touches them, so there's no locking. */
+    final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+
+    EventLoop(int index) throws IOException {
+      super("MaskingDaemon loop " + index);
+      selector = Selector.open();
+    }
+
+    /** Called from the acceptor thread. */
+    void add(SocketChannel channel) {
+      added.add(channel);
+      selector.wakeup();
+    }
+
+    @Override public void run() {
+      try {
+        while (!closed) {
+          selector.select();
+          register();
+          for (SelectionKey key : selector.selectedKeys()) {
+            Connection connection = (Connection) key.attachment();
+            try {
+              if (key.isReadable()) {
+                connection.read(key);
+              } else if (key.isWritable()) {
+                connection.flush(key);
+              }
+            } catch (IOException e) {
+              // The client went away. Its stream is done either way.
+              connection.close();
+            }
+          }
+          selector.selectedKeys().clear();
+        }
+      } catch (IOException e) {
+        System.err.println("MaskingDaemon: " + getName() + " failed: " + e);
+      } finally {
+        for (SelectionKey key : selector.keys()) ((Connection) key.attachment()).close();
+        for (SocketChannel channel; (channel = added.poll()) != null; ) closeQuietly(channel);
+        closeQuietly(selector);
+      }
+    }
+
+    private void register() throws IOException {
+      for (SocketChannel channel; (channel = added.poll()) != null; ) {
+        try {
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+          Connection connection = new Connection(this, channel);
+          channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+          closeQuietly(channel);
+        }
+      }
+    }
+
+    ByteBuffer takeBuffer() {
+      ByteBuffer buffer = pool.poll();
+      return buffer != null ? buffer : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    void releaseBuffer(ByteBuffer buffer) {
+      buffer.clear();
+      if (pool.size() < MAX_POOLED) pool.push(buffer);
+    }
+  }
+
+  /** One client's stream. Only its loop's thread touches it. */
+  private final class Connection {
+    final EventLoop loop;
+    final SocketChannel channel;
+    final LuhnMasker masker = new LuhnMasker(metrics);
+
+    /** Bytes the masker held back, kept here while we don't have a buffer. */
+    final byte[] carry = new byte[LuhnMasker.MAX_PENDING];
+    int carried;
+
+    /**
+     * Borrowed from the loop while bytes are in flight, else null. Its position is the end of the
+     * data; bytes in [written, done) are masked and waiting to go out, and bytes in
+     * [done, position) are waiting for more input.
+     */
+    ByteBuffer buffer;
+    int written;
+    int done;
+
+    /** Whether the client closed its output. */
+    boolean eof;
+
+    Connection(EventLoop loop, SocketChannel channel) {
+      this.loop = loop;
+      this.channel = channel;
+    }
+
+    void read(SelectionKey key) throws IOException {
+      if (buffer == null) {
+        buffer = loop.takeBuffer();
+        buffer.put(carry, 0, carried);
+        carried = 0;
+        written = 0;
+        done = 0;
+      }
+      int read = channel.read(buffer);
+      if (read == 0) return;
+      if (read == -1) {
+        // Whatever the masker held back is final now.
+        eof = true;
+        done = buffer.position();
+        masker.reset();
+      } else {
+        done += masker.mask(buffer.array(), done, buffer.position() - done);
+      }
+      flush(key);
+    }
+
+    /** Writes out masked bytes, and waits to read until the client has taken them all. */
+    void flush(SelectionKey key) throws IOException {
+      int end = buffer.position();
+      buffer.limit(done).position(written);
+      channel.write(buffer);
+      written = buffer.position();
+      buffer.limit(buffer.capacity()).position(end);
+
+      if (written < done) {
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      if (eof) {
+        close();
+        return;
+      }
+
+      // Give the buffer back and keep the few bytes the masker held back.
+      carried = end - done;
+      System.arraycopy(buffer.array(), done, carry, 0, carried);
+      loop.releaseBuffer(buffer);
+      buffer = null;
+      key.interestOps(SelectionKey.OP_READ);
+    }
+
+    void close() {
+      if (buffer != null) {
+        loop.releaseBuffer(buffer);
+        buffer = null;
+      }
+      closeQuietly(channel);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) { /* ignore */ }
+  }
+}
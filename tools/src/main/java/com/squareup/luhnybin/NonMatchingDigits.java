@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+/**
+ * Generates runs of digits with no card #s in them, fast enough for multi-gigabyte corpora.
+ *
+ * <p>Keeps rolling Luhn sums like {@link LuhnMasker}, so at each position it knows in constant
+ * time which digits would complete a card # of each allowed length: by default, 14, 15 or 16
+ * digits. There is at most one per length, and a table indexed by the set of excluded digits
+ * gives the rest, so we pick one directly instead of sampling until we miss. A run continues
+ * across calls to {@link #fill} until {@link #reset}.
+ *
+ * <p>Ignores the rules' prefixes: a run that passes no Luhn check doesn't match whatever it
+ * starts with.
+ */
+final class NonMatchingDigits {
+
+  /** Ring size for prefix sums. Must be a power of 2 that holds CardRules.MAX_LENGTH sums. */
+  private static final int RING = 32;
+
+  /**
+   * {@code EXCLUDED[sum]} is the bit for the digit that completes a card # when the Luhn sum of
+   * the digits before it is {@code sum}.
+   */
+  private static final int[] EXCLUDED = new int[CardRules.MAX_LENGTH * 9];
+
+  /** Digits allowed for each 10-bit set of excluded digits. */
+  private static final byte[][] ALLOWED = new byte[1 << 10][];
+
+  static {
+    for (int sum = 0; sum < EXCLUDED.length; sum++) EXCLUDED[sum] = 1 << (10 - sum % 10) % 10;
+    for (int excluded = 0; excluded < ALLOWED.length; excluded++) {
+      byte[] allowed = new byte[10 - Integer.bitCount(excluded)];
+      int count = 0;
+      for (int digit = 0; digit < 10; digit++) {
+        if ((excluded & (1 << digit)) == 0) allowed[count++] = (byte) digit;
+      }
+      ALLOWED[excluded] = allowed;
+    }
+  }
+
+  /**
+   * Prefix Luhn sums of the run so far, indexed by digit count. {@code oddSums} doubles digits at
+   * odd positions and {@code evenSums} doubles digits at even positions. We only subtract sums
+   * less than maxDigits apart, so it's OK if they overflow.
+   */
+  private final int[] oddSums = new int[RING];
+  private final int[] evenSums = new int[RING];
+
+  private final int minDigits;
+  private final int maxDigits;
+
+  /** Number of digits in the current run. */
+  private long count;
+
+  /** xorshift64* state. Cheaper than java.util.Random, which updates an AtomicLong. */
+  private long state;
+
+  NonMatchingDigits(long seed) {
+    this(seed, CardRules.DEFAULT);
+  }
+
+  /** Generates digits with no card #s as {@code rules} define them. */
+  NonMatchingDigits(long seed, CardRules rules) {
+    if (!rules.luhn) throw new IllegalArgumentException("Every run matches without a Luhn check");
+    this.minDigits = rules.minDigits;
+    this.maxDigits = rules.maxDigits;
+    // Mix the seed (splitmix64) so nearby seeds give unrelated runs. The state must not be 0.
+    long z = seed + 0x9e3779b97f4a7c15L;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    state = (z ^ (z >>> 31)) | 1;
+  }
+
+  /**
+   * Starts a new run that ignores earlier digits. Separate it from the old run with a non-digit:
+   * the two could form a card # where they meet.
+   */
+  void reset() {
+    count = 0;
+    oddSums[0] = 0;
+    evenSums[0] = 0;
+  }
+
+  /** Writes the next {@code len} digits of the run to {@code b} as ASCII. */
+  void fill(byte[] b, int off, int len) {
+    // Keep the latest sums in locals rather than reading them back from the rings. That shortens
+    // the dependency chain from one digit to the next.
+    long count = this.count;
+    long state = this.state;
+    int oddSum = oddSums[(int) count & (RING - 1)];
+    int evenSum = evenSums[(int) count & (RING - 1)];
+
+    for (int i = off, end = off + len; i < end; i++) {
+      int n = (int) count;
+      boolean even = (n & 1) == 0;
+
+      // Digit x at n completes a card # of length k if x plus the previous k - 1 digits,
+      // doubled from the right, is 0 mod 10. For even n, that doubles the odd positions.
+      int excluded = 0;
+      if (count >= minDigits - 1) {
+        int[] sums = even ? oddSums : evenSums;
+        int sum = even ? oddSum : evenSum;
+        for (int before = minDigits - 1; before < maxDigits && before <= count; before++) {
+          excluded |= EXCLUDED[sum - sums[(n - before) & (RING - 1)]];
+        }
+      }
+
+      state ^= state >>> 12;
+      state ^= state << 25;
+      state ^= state >>> 27;
+      long random = (state * 0x2545f4914f6cdd1dL) >>> 32;
+      byte[] allowed = ALLOWED[excluded];
+      int digit = allowed[(int) ((random * allowed.length) >>> 32)];
+      b[i] = (byte) ('0' + digit);
+
+      if (even) {
+        oddSum += digit;
+        evenSum += LuhnChecksum.DOUBLED[digit];
+      } else {
+        oddSum += LuhnChecksum.DOUBLED[digit];
+        evenSum += digit;
+      }
+      oddSums[(n + 1) & (RING - 1)] = oddSum;
+      evenSums[(n + 1) & (RING - 1)] = evenSum;
+      count++;
+    }
+
+    this.count = count;
+    this.state = state;
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.File;
+
+/**
+ * Command line options for {@link Main}.
+ */
+final class Options {
+
+  static final String USAGE = "Usage: ./run.sh [options] [iterations]\n"
+      + "  --in-process[=class]  Run a JVM masker in process instead of mask.sh.\n"
+      + "  --warmup=n            Run n iterations first and leave them out of the stats.\n"
+      + "  --report=file         Write stats to file, as CSV if it ends in .csv, else JSON.\n"
+      + "  --time-tests          Write mask.sh one test at a time and list the slowest. Adds a\n"
+      + "                        pipe write per test, so iterations take a little longer.\n"
+      + "  --baseline=file       Save iteration and per-test times to file as a baseline.\n"
+      + "  --compare=file        Compare with a saved baseline. Exits with 1 if the median is\n"
+      + "                        significantly slower than the threshold, or the 99th\n"
+      + "                        percentile is slower with 100 or more iterations.\n"
+      + "                        Both need at least 8 iterations.\n"
+      + "  --threshold=n         Percent slowdown that counts as a regression. Defaults to 10.\n"
+      + "  --parallel[=n]        Run 1, 2, 4... up to n maskers at once (default: # of cores)\n"
+      + "                        and show how throughput and latency scale. Warms up for at\n"
+      + "                        least one iteration.\n"
+      + "  --latency             Send mask.sh one line at a time and time each round trip.\n"
+      + "  --deadline=n[ms|s|m]  Fail --latency if a line takes longer. Defaults to 1s.\n"
+      + "  --leaderboard=dir     Run the tests against each dir/*/mask.sh and rank them.\n"
+      + "  --complexity[=n]      Mask single lines of 1KB, 4KB... up to n bytes (default 64m)\n"
+      + "                        of each adversarial kind. Fails if time grows super-linearly.\n"
+      + "\nThroughput mode streams generated logs instead of running the tests:\n"
+      + "  --size=n[k|m|g]       Stop after n bytes.\n"
+      + "  --duration=n[ms|s|m]  Stop after this long. Seconds if there's no unit.\n"
+      + "  --seed=n              Seed for the generated logs. Defaults to 0.\n"
+      + "  --cache[=dir]         Save the logs and expected output to a file in dir and stream\n"
+      + "                        them from there next time. Needs --size. Defaults to\n"
+      + "                        ~/.cache/luhnybin.\n";
+
+  int iterations = 1;
+  int warmup = 0;
+  boolean inProcess;
+  String maskerClass;
+  File report;
+  File baseline;
+  File compare;
+  int thresholdPercent = 10;
+  int parallel;
+  boolean latency;
+  boolean timeTests;
+  File leaderboard;
+  long complexity;
+  long deadlineMillis = 1000;
+  long size;
+  long durationMillis;
+  long seed;
+  File cache;
+
+  /** Parses {@code args}. Throws IllegalArgumentException if they're invalid. */
+  static Options parse(String[] args) {
+    Options options = new Options();
+    boolean sawIterations = false;
+    boolean sawDeadline = false;
+    boolean sawSeed = false;
+    for (String arg : args) {
+      String name = arg;
+      String value = null;
+      int equals = arg.indexOf('=');
+      if (arg.startsWith("--") && equals != -1) {
+        name = arg.substring(0, equals);
+        value = arg.substring(equals + 1);
+      }
+
+      if (name.equals("--in-process")) {
+        options.inProcess = true;
+        options.maskerClass = value;
+      } else if (name.equals("--warmup")) {
+        options.warmup = parseInt(name, required(name, value));
+        if (options.warmup < 0) throw new IllegalArgumentException("Warm-up must be >= 0.");
+      } else if (name.equals("--report")) {
+        options.report = new File(required(name, value));
+      } else if (name.equals("--baseline")) {
+        options.baseline = new File(required(name, value));
+      } else if (name.equals("--compare")) {
+        options.compare = new File(required(name, value));
+      } else if (name.equals("--threshold")) {
+        options.thresholdPercent = parseInt(name, required(name, value));
+        if (options.thresholdPercent < 0) {
+          throw new IllegalArgumentException("Threshold must be >= 0.");
+        }
+      } else if (name.equals("--parallel")) {
+        options.parallel = value == null
+            ? Runtime.getRuntime().availableProcessors() : parseInt(name, value);
+        if (options.parallel < 1) throw new IllegalArgumentException("Parallel must be >= 1.");
+      } else if (name.equals("--latency") && value == null) {
+        options.latency = true;
+      } else if (name.equals("--time-tests") && value == null) {
+        options.timeTests = true;
+      } else if (name.equals("--deadline")) {
+        options.deadlineMillis = parseDuration(name, required(name, value));
+        sawDeadline = true;
+      } else if (name.equals("--leaderboard")) {
+        options.leaderboard = new File(required(name, value));
+      } else if (name.equals("--complexity")) {
+        options.complexity = value == null ? ComplexityCheck.MAX_SIZE : parseSize(name, value);
+        if (options.complexity < ComplexityCheck.MIN_SIZE
+            || options.complexity >= Integer.MAX_VALUE) {
+          throw new IllegalArgumentException("--complexity is out of range: " + value);
+        }
+      } else if (name.equals("--size")) {
+        options.size = parseSize(name, required(name, value));
+      } else if (name.equals("--duration")) {
+        options.durationMillis = parseDuration(name, required(name, value));
+      } else if (name.equals("--seed")) {
+        options.seed = parseLong(name, required(name, value));
+        sawSeed = true;
+      } else if (name.equals("--cache")) {
+        options.cache = value != null ? new File(value) : defaultCache();
+      } else if (!arg.startsWith("--") && !sawIterations) {
+        sawIterations = true;
+        options.iterations = parseInt("iterations", arg);
+        if (options.iterations < 1) throw new IllegalArgumentException("Iterations must be >= 1.");
+      } else {
+        throw new IllegalArgumentException("Unexpected argument: " + arg);
+      }
+    }
+    if (options.parallel > 0 && options.measuresThroughput()) {
+      throw new IllegalArgumentException("--parallel runs the tests; it can't stream logs.");
+    }
+    if (options.parallel > 0) {
+      // Each count starts new maskers. Keep their start-up out of the first measured iteration.
+      options.warmup = Math.max(options.warmup, 1);
+    }
+    if (options.latency && (options.inProcess || options.parallel > 0
+        || options.measuresThroughput())) {
+      throw new IllegalArgumentException("--latency only works on its own with mask.sh.");
+    }
+    if (options.timeTests && (options.inProcess || options.parallel > 0 || options.latency
+        || options.leaderboard != null || options.complexity > 0
+        || options.measuresThroughput())) {
+      throw new IllegalArgumentException("--time-tests only works when running the tests "
+          + "through mask.sh.");
+    }
+    if (options.leaderboard != null && (options.inProcess || options.parallel > 0
+        || options.latency || options.measuresThroughput() || options.baseline != null
+        || options.compare != null || options.report != null)) {
+      throw new IllegalArgumentException("--leaderboard only works with --warmup and "
+          + "iterations.");
+    }
+    if (options.report != null && (options.parallel > 0 || options.latency
+        || options.measuresThroughput())) {
+      throw new IllegalArgumentException("--report only works when running the tests.");
+    }
+    if ((options.baseline != null || options.compare != null) && (options.parallel > 0
+        || options.latency || options.measuresThroughput())) {
+      throw new IllegalArgumentException("--baseline and --compare only work when running the "
+          + "tests.");
+    }
+    if ((options.baseline != null || options.compare != null)
+        && options.iterations < Baseline.MIN_ITERATIONS) {
+      throw new IllegalArgumentException("--baseline and --compare need at least "
+          + Baseline.MIN_ITERATIONS + " iterations to tell a slowdown from noise.");
+    }
+    if (options.complexity > 0 && (options.parallel > 0 || options.latency
+        || options.leaderboard != null || options.measuresThroughput()
+        || options.baseline != null || options.compare != null || options.report != null)) {
+      throw new IllegalArgumentException("--complexity can't be combined with --parallel, "
+          + "--latency, --leaderboard, --size, --duration, --baseline, --compare or --report.");
+    }
+    if (sawDeadline && !options.latency) {
+      throw new IllegalArgumentException("--deadline only works with --latency.");
+    }
+    if (sawSeed && !options.measuresThroughput()) {
+      throw new IllegalArgumentException("--seed only works with --size or --duration.");
+    }
+    if (options.cache != null && options.size == 0) {
+      throw new IllegalArgumentException("--cache needs --size.");
+    }
+    return options;
+  }
+
+  private static File defaultCache() {
+    return new File(System.getProperty("user.home"), ".cache/luhnybin");
+  }
+
+  /** Returns true if we should measure throughput rather than run the tests. */
+  boolean measuresThroughput() {
+    return size > 0 || durationMillis > 0;
+  }
+
+  private static String required(String name, String value) {
+    if (value == null || value.isEmpty()) {
+      throw new IllegalArgumentException(name + " requires a value.");
+    }
+    return value;
+  }
+
+  /** Parses a positive byte count with an optional k, m or g suffix, like "20g". */
+  static long parseSize(String name, String value) {
+    int shift = 0;
+    switch (Character.toLowerCase(value.charAt(value.length() - 1))) {
+      case 'k': shift = 10; break;
+      case 'm': shift = 20; break;
+      case 'g': shift = 30; break;
+      default: break;
+    }
+    long size = parseLong(name, shift == 0 ? value : value.substring(0, value.length() - 1));
+    if (size < 1 || size > Long.MAX_VALUE >> shift) {
+      throw new IllegalArgumentException(name + " is out of range: " + value);
+    }
+    return size << shift;
+  }
+
+  /** Parses a positive duration in ms, s or m, like "30s". Seconds if there's no unit. */
+  static long parseDuration(String name, String value) {
+    long multiplier = 1000;
+    String number = value;
+    if (value.endsWith("ms")) {
+      multiplier = 1;
+      number = value.substring(0, value.length() - 2);
+    } else if (value.endsWith("s")) {
+      number = value.substring(0, value.length() - 1);
+    } else if (value.endsWith("m")) {
+      multiplier = 60 * 1000;
+      number = value.substring(0, value.length() - 1);
+    }
+    long duration = parseLong(name, number);
+    if (duration < 1 || duration > Long.MAX_VALUE / multiplier) {
+      throw new IllegalArgumentException(name + " is out of range: " + value);
+    }
+    return duration * multiplier;
+  }
+
+  private static long parseLong(String name, String value) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Expected a number for " + name + ": " + value);
+    }
+  }
+
+  private static int parseInt(String name, String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Expected a number for " + name + ": " + value);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Masks a file into another file on all cores. Splits the input into chunks and masks each chunk
+ * along with enough of its neighbors to see any card # that crosses its edges. The output is
+ * byte-for-byte the same as masking the file sequentially.
+ *
+ * <p>Can't mask in place: a chunk would see its neighbors' digits after they were masked.
+ */
+final class ParallelMasker {
+
+  private static final int CHUNK_SIZE = 4 << 20;
+
+  /** Bytes of each neighbor a chunk needs to see card #s that cross its edges. */
+  static final int CONTEXT = LuhnMasker.MAX_SPAN - 1;
+
+  private final ForkJoinPool pool;
+  private final int chunkSize;
+  private final MaskerMetrics metrics;
+
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    @Override protected Scratch initialValue() {
+      return new Scratch(chunkSize + 2 * CONTEXT, metrics);
+    }
+  };
+
+  ParallelMasker() {
+    this(null);
+  }
+
+  /**
+   * Counts what we mask in {@code metrics}, unless it's null. Each chunk scans its neighbors'
+   * edges too, so the counts include some bytes twice. Masks on the common pool, so there are no
+   * threads to shut down.
+   */
+  ParallelMasker(MaskerMetrics metrics) {
+    this(ForkJoinPool.commonPool(), CHUNK_SIZE, metrics);
+  }
+
+  ParallelMasker(ForkJoinPool pool, int chunkSize) {
+    this(pool, chunkSize, null);
+  }
+
+  private ParallelMasker(ForkJoinPool pool, int chunkSize, MaskerMetrics metrics) {
+    if (chunkSize < 1) throw new IllegalArgumentException("chunkSize < 1");
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+    this.metrics = metrics;
+  }
+
+  /** Masks {@code input} into {@code output}, replacing it, and returns the input's length. */
+  long mask(File input, File output) throws IOException {
+    if (input.getCanonicalFile().equals(output.getCanonicalFile())) {
+      throw new IllegalArgumentException("Can't mask in place in parallel.");
+    }
+    RandomAccessFile in = new RandomAccessFile(input, "r");
+    try {
+      RandomAccessFile out = new RandomAccessFile(output, "rw");
+      try {
+        long size = in.length();
+        out.setLength(size);
+        pool.invoke(new Chunk(in.getChannel(), out.getChannel(), size, 0, size));
+        return size;
+      } finally {
+        out.close();
+      }
+    } catch (RuntimeException e) {
+      for (Throwable t = e; t != null; t = t.getCause()) {
+        if (t instanceof IOException) throw (IOException) t;
+      }
+      throw e;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Per-thread buffers and masker, reused across chunks. */
+  private static class Scratch {
+    final byte[] bytes;
+    final ByteBuffer buffer;
+    final LuhnMasker masker;
+
+    Scratch(int size, MaskerMetrics metrics) {
+      bytes = new byte[size];
+      buffer = ByteBuffer.wrap(bytes);
+      masker = new LuhnMasker(metrics);
+    }
+  }
+
+  private class Chunk extends RecursiveAction {
+    private static final long serialVersionUID = 0;
+
+    final FileChannel in;
+    final FileChannel out;
+    final long size;
+    final long start;
+    final long end;
+
+    Chunk(FileChannel in, FileChannel out, long size, long start, long end) {
+      this.in = in;
+      this.out = out;
+      this.size = size;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override protected void compute() {
+      if (end - start <= chunkSize) {
+        try {
+          mask();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        return;
+      }
+
+      // Split on a multiple of chunkSize so every chunk but the last is full.
+      long chunks = (end - start + chunkSize - 1) / chunkSize;
+      long middle = start + chunks / 2 * chunkSize;
+      invokeAll(new Chunk(in, out, size, start, middle), new Chunk(in, out, size, middle, end));
+    }
+
+    private void mask() throws IOException {
+      long from = Math.max(0, start - CONTEXT);
+      long to = Math.min(size, end + CONTEXT);
+      Scratch scratch = ParallelMasker.this.scratch.get();
+
+      ByteBuffer buffer = scratch.buffer;
+      buffer.clear().limit((int) (to - from));
+      while (buffer.hasRemaining()) {
+        if (in.read(buffer, from + buffer.position()) == -1) throw new EOFException();
+      }
+
+      // The chunk ends where its context does, so any pending bytes are final.
+      scratch.masker.mask(scratch.bytes, 0, buffer.limit());
+      scratch.masker.reset();
+
+      buffer.limit((int) (end - from)).position((int) (start - from));
+      while (buffer.hasRemaining()) {
+        out.write(buffer, from + buffer.position());
+      }
+    }
+  }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds up the CPU time, memory and context switches of a child process and everything it starts,
+ * from {@code /proc}. A masker can win on wall time by burning several cores or gigabytes of
+ * heap; on a shared log host, that's not a win.
+ *
+ * <p>{@link #sample} finds the process's descendants and remembers the latest counters for each.
+ * CPU time only grows, so the last sample of each process is nearly its total. Once the process
+ * has exited, {@link #exited} tops CPU time up from what Linux charged us for reaping it, which
+ * covers its last moments and the descendants it waited for. Context switches are summed over
+ * the threads alive at the last sample. Peak RSS is the most the processes held at once in any
+ * sample, or the most any one of them ever held, whichever is larger. Descendants that start and
+ * exit between samples go unseen, so apart from CPU time the numbers are approximate.
+ *
+ * <p>Only works on Linux. Elsewhere, {@link #supported} returns false and samples are no-ops.
+ */
+final class ProcessStats {
+
+  private static final File PROC = new File("/proc");
+
+  /** Clock ticks per second in /proc/pid/stat. */
+  private static volatile long ticksPerSecond;
+
+  private final long pid;
+  private final long startNanos = System.nanoTime();
+
+  /** The latest counters for every process we've seen, by pid. */
+  private final Map<Long, Counters> processes = new LinkedHashMap<Long, Counters>();
+  private long peakRssKb;
+
+  /** Our reaped children's user and system ticks when we started, or null if unsupported. */
+  private final long[] reapedAtStart;
+  private long reapedUserTicks;
+  private long reapedSystemTicks;
+  private volatile long firstByteNanos = -1;
+
+  ProcessStats(long pid) {
+    this.pid = pid;
+    if (supported()) {
+      ticksPerSecond(); // Runs getconf, so it has to be reaped before we look.
+      this.reapedAtStart = reapedTicks();
+    } else {
+      this.reapedAtStart = null;
+    }
+  }
+
+  /** Tracks {@code process}, which should have just started. */
+  ProcessStats(Process process) {
+    this(pid(process));
+  }
+
+  /**
+   * Returns {@code process}'s pid, or -1 if we can't tell. Uses Process.pid() on Java 9 and up,
+   * and the pid field of Java 8's UNIXProcess.
+   */
+  static long pid(Process process) {
+    try {
+      return (Long) Process.class.getMethod("pid").invoke(process);
+    } catch (NoSuchMethodException e) {
+      try {
+        Field field = process.getClass().getDeclaredField("pid");
+        field.setAccessible(true);
+        return field.getInt(process);
+      } catch (Exception e2) {
+        return -1;
+      }
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Waits up to {@code timeoutMillis} for {@code process} to exit and be reaped. Returns true if
+   * it did.
+   */
+  static boolean awaitExit(Process process, long timeoutMillis) {
+    try {
+      return process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  boolean supported() {
+    return pid != -1 && new File(PROC, "self/stat").exists();
+  }
+
+  /** Wraps the process's output to note when its first byte arrives. */
+  InputStream timeFirstByte(final InputStream in) {
+    return new InputStream() {
+      @Override public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) firstByte();
+        return b;
+      }
+
+      @Override public int read(byte[] b, int off, int len) throws IOException {
+        int count = in.read(b, off, len);
+        if (count > 0) firstByte();
+        return count;
+      }
+
+      @Override public int available() throws IOException {
+        return in.available();
+      }
+
+      @Override public void close() throws IOException {
+        in.close();
+      }
+    };
+  }
+
+  private void firstByte() {
+    if (firstByteNanos == -1) firstByteNanos = System.nanoTime() - startNanos;
+  }
+
+  /** Reads the counters of the process and its descendants. */
+  synchronized void sample() {
+    if (!supported()) return;
+    long rssKb = 0;
+    for (long process : descendants()) {
+      Counters counters = Counters.read(process);
+      if (counters == null) continue; // Exited.
+      processes.put(process, counters);
+      rssKb += counters.rssKb;
+      peakRssKb = Math.max(peakRssKb, counters.peakRssKb);
+    }
+    peakRssKb = Math.max(peakRssKb, rssKb);
+  }
+
+  /**
+   * Counts the CPU time the samples missed. Call once the process has exited and been reaped,
+   * before any other child of ours is: Linux adds a reaped child's CPU time, and that of the
+   * descendants it waited for, to its parent's, so what ours grew by since we started is the
+   * process's total.
+   */
+  synchronized void exited() {
+    if (!supported()) return;
+    long[] reaped = reapedTicks();
+    if (reaped == null) return;
+    reapedUserTicks = reaped[0] - reapedAtStart[0];
+    reapedSystemTicks = reaped[1] - reapedAtStart[1];
+  }
+
+  /** Returns the user and system ticks of our reaped children, or null if we can't tell. */
+  private static long[] reapedTicks() {
+    String[] stat = stat("self");
+    // cutime and cstime are fields 16 and 17 of /proc/pid/stat, so 13 and 14 here.
+    if (stat == null || stat.length < 15) return null;
+    return new long[] { Long.parseLong(stat[13]), Long.parseLong(stat[14]) };
+  }
+
+  /** Returns the pid and all its descendants that are still running, parents first. */
+  private List<Long> descendants() {
+    Map<Long, List<Long>> children = new HashMap<Long, List<Long>>();
+    String[] names = PROC.list();
+    if (names == null) return new ArrayList<Long>();
+    for (String name : names) {
+      if (name.isEmpty() || !Character.isDigit(name.charAt(0))) continue;
+      String[] stat = stat(name);
+      if (stat == null) continue;
+      long parent = Long.parseLong(stat[1]);
+      List<Long> siblings = children.get(parent);
+      if (siblings == null) {
+        siblings = new ArrayList<Long>();
+        children.put(parent, siblings);
+      }
+      siblings.add(Long.parseLong(name));
+    }
+
+    List<Long> result = new ArrayList<Long>();
+    ArrayDeque<Long> queue = new ArrayDeque<Long>();
+    queue.add(pid);
+    while (!queue.isEmpty()) {
+      long process = queue.remove();
+      result.add(process);
+      List<Long> processChildren = children.get(process);
+      if (processChildren != null) queue.addAll(processChildren);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the fields of /proc/pid/stat after the command name, so index 0 is the state and 1
+   * the parent pid, or null if the process is gone.
+   */
+  private static String[] stat(String pid) {
+    String stat;
+    try {
+      stat = Files.toString(new File(PROC, pid + "/stat"), Charsets.US_ASCII);
+    } catch (IOException e) {
+      return null;
+    }
+    // The command name is in parentheses and can contain anything, including ") ".
+    int end = stat.lastIndexOf(')');
+    if (end == -1) return null;
+    return stat.substring(end + 2).trim().split(" ");
+  }
+
+  /** Returns the number of processes we've seen, including the first. */
+  synchronized int processes() {
+    return processes.size();
+  }
+
+  synchronized long userMillis() {
+    long ticks = 0;
+    for (Counters counters : processes.values()) ticks += counters.userTicks;
+    return Math.max(ticks, reapedUserTicks) * 1000 / ticksPerSecond();
+  }
+
+  synchronized long systemMillis() {
+    long ticks = 0;
+    for (Counters counters : processes.values()) ticks += counters.systemTicks;
+    return Math.max(ticks, reapedSystemTicks) * 1000 / ticksPerSecond();
+  }
+
+  synchronized long peakRssBytes() {
+    return peakRssKb * 1024;
+  }
+
+  synchronized long voluntarySwitches() {
+    long total = 0;
+    for (Counters counters : processes.values()) total += counters.voluntarySwitches;
+    return total;
+  }
+
+  synchronized long involuntarySwitches() {
+    long total = 0;
+    for (Counters counters : processes.values()) total += counters.involuntarySwitches;
+    return total;
+  }
+
+  /** Returns ms from start until the first output byte arrived, or -1 if none has. */
+  long firstByteMillis() {
+    long nanos = firstByteNanos;
+    return nanos == -1 ? -1 : nanos / 1000000;
+  }
+
+  /** Returns ms since the process started. */
+  long elapsedMillis() {
+    return (System.nanoTime() - startNanos) / 1000000;
+  }
+
+  void print(PrintStream out, String name) {
+    int processes = processes();
+    out.printf("Processes:    %s%s%n", name, processes > 1
+        ? String.format(" and %d descendant%s", processes - 1, processes > 2 ? "s" : "") : "");
+    long cpu = userMillis() + systemMillis();
+    out.printf("CPU time:     %,dms user, %,dms system (%.2f cores on average)%n", userMillis(),
+        systemMillis(), (double) cpu / Math.max(elapsedMillis(), 1));
+    out.printf("Peak RSS:     %,.1fMB%n", peakRssBytes() / (1024.0 * 1024));
+    out.printf("Ctx switches: %,d voluntary, %,d involuntary%n", voluntarySwitches(),
+        involuntarySwitches());
+    long firstByte = firstByteMillis();
+    out.printf("First byte:   %s%n", firstByte == -1 ? "never" : String.format(
+        "%,dms after start", firstByte));
+    out.println("(Approximate: sampled from /proc while it ran.)");
+  }
+
+  /** Returns the summary as the fields of a JSON object, without braces. */
+  String toJsonFields() {
+    return String.format("\"processes\": %d, \"userMs\": %d, \"systemMs\": %d, "
+        + "\"peakRssBytes\": %d, \"voluntarySwitches\": %d, \"involuntarySwitches\": %d, "
+        + "\"firstByteMs\": %d", processes(), userMillis(), systemMillis(), peakRssBytes(),
+        voluntarySwitches(), involuntarySwitches(), firstByteMillis());
+  }
+
+  /** CSV header matching {@link #toCsvRow()}. */
+  static String csvHeader() {
+    return "userMs,systemMs,peakRssBytes,voluntarySwitches,involuntarySwitches,firstByteMs";
+  }
+
+  String toCsvRow() {
+    return userMillis() + "," + systemMillis() + "," + peakRssBytes() + ","
+        + voluntarySwitches() + "," + involuntarySwitches() + "," + firstByteMillis();
+  }
+
+  private static long ticksPerSecond() {
+    if (ticksPerSecond == 0) {
+      long ticks = 100; // USER_HZ on nearly every Linux.
+      try {
+        Process getconf = new ProcessBuilder("getconf", "CLK_TCK").start();
+        String output = new String(ByteStreams.toByteArray(getconf.getInputStream()),
+            Charsets.US_ASCII).trim();
+        if (getconf.waitFor() == 0) ticks = Long.parseLong(output);
+      } catch (Exception e) { /* use the default */ }
+      ticksPerSecond = ticks;
+    }
+    return ticksPerSecond;
+  }
+
+  /** One process's counters as of its latest sample. */
+  static final class Counters {
+    long userTicks;
+    long systemTicks;
+    long rssKb;
+    long peakRssKb;
+    long voluntarySwitches;
+    long involuntarySwitches;
+
+    /** Returns the process's counters, or null if it's gone. */
+    static Counters read(long pid) {
+      String[] stat = stat(Long.toString(pid));
+      List<String> status;
+      try {
+        status = Files.readLines(new File(PROC, pid + "/status"), Charsets.US_ASCII);
+      } catch (IOException e) {
+        return null;
+      }
+      if (stat == null || stat.length < 13) return null;
+
+      Counters counters = new Counters();
+      // utime and stime are fields 14 and 15 of /proc/pid/stat, so 11 and 12 here.
+      counters.userTicks = Long.parseLong(stat[11]);
+      counters.systemTicks = Long.parseLong(stat[12]);
+      for (String line : status) {
+        int colon = line.indexOf(':');
+        if (colon == -1) continue;
+        String key = line.substring(0, colon);
+        String value = line.substring(colon + 1).trim();
+        if (key.equals("VmRSS")) {
+          counters.rssKb = kilobytes(value);
+        } else if (key.equals("VmHWM")) {
+          counters.peakRssKb = kilobytes(value);
+        }
+      }
+
+      // The process's status only counts its main thread's switches.
+      String[] threads = new File(PROC, pid + "/task").list();
+      if (threads == null) return null;
+      for (String thread : threads) {
+        try {
+          for (String line : Files.readLines(new File(PROC, pid + "/task/" + thread + "/status"),
+              Charsets.US_ASCII)) {
+            if (line.startsWith("voluntary_ctxt_switches:")) {
+              counters.voluntarySwitches += Long.parseLong(line.substring(24).trim());
+            } else if (line.startsWith("nonvoluntary_ctxt_switches:")) {
+              counters.involuntarySwitches += Long.parseLong(line.substring(27).trim());
+            }
+          }
+        } catch (IOException e) { /* thread exited */ }
+      }
+      return counters;
+    }
+
+    /** Parses "1234 kB". */
+    private static long kilobytes(String value) {
+      int space = value.indexOf(' ');
+      return Long.parseLong(space == -1 ? value : value.substring(0, space));
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Summary statistics and a log-linear histogram for a set of timings.
+ */
+final class Stats {
+
+  /** Linear buckets per power of 2 in the histogram. */
+  private static final int SUB_BUCKETS = 4;
+
+  private static final int BAR_WIDTH = 40;
+
+  private final long[] sorted;
+  private final double mean;
+  private final double standardDeviation;
+
+  Stats(long[] samples) {
+    if (samples.length == 0) throw new IllegalArgumentException("No samples.");
+    sorted = samples.clone();
+    Arrays.sort(sorted);
+
+    double sum = 0;
+    for (long sample : sorted) sum += sample;
+    mean = sum / sorted.length;
+
+    double squares = 0;
+    for (long sample : sorted) squares += (sample - mean) * (sample - mean);
+    standardDeviation = Math.sqrt(squares / sorted.length);
+  }
+
+  int count() {
+    return sorted.length;
+  }
+
+  double mean() {
+    return mean;
+  }
+
+  double standardDeviation() {
+    return standardDeviation;
+  }
+
+  long min() {
+    return sorted[0];
+  }
+
+  long max() {
+    return sorted[sorted.length - 1];
+  }
+
+  long median() {
+    return percentile(50);
+  }
+
+  /** Returns the nearest-rank percentile, where {@code p} is in (0, 100]. */
+  long percentile(double p) {
+    if (p <= 0 || p > 100) throw new IllegalArgumentException("p: " + p);
+    // Allow for rounding error, e.g. 99.9 / 100 * 1000 = 999.0000000000001.
+    int rank = (int) Math.ceil(p / 100 * sorted.length - 1e-9);
+    return sorted[Math.max(rank, 1) - 1];
+  }
+
+  /**
+   * Returns non-empty histogram buckets. Each power of 2 is split into linear buckets, so bucket
+   * widths stay proportional to their values, like HdrHistogram.
+   */
+  List<Bucket> histogram() {
+    List<Bucket> buckets = new ArrayList<Bucket>();
+    Bucket bucket = null;
+    for (long sample : sorted) {
+      if (bucket == null || sample >= bucket.to) {
+        bucket = bucketFor(sample);
+        buckets.add(bucket);
+      }
+      bucket.count++;
+    }
+    return buckets;
+  }
+
+  private static Bucket bucketFor(long value) {
+    if (value < SUB_BUCKETS) return new Bucket(value, value + 1);
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    long width = (1L << magnitude) / SUB_BUCKETS;
+    long from = value - (value - (1L << magnitude)) % width;
+    return new Bucket(from, from + width);
+  }
+
+  /** Prints the summary and histogram, labeling values with {@code unit}. */
+  void print(PrintStream out, String unit) {
+    out.printf("Mean time:    %,.0f%s%n", mean, unit);
+    out.printf("Std dev:      %,.0f%s%n", standardDeviation, unit);
+    out.printf("Fastest time: %,d%s%n", min(), unit);
+    out.printf("Median time:  %,d%s%n", median(), unit);
+    out.printf("90th pct:     %,d%s%n", percentile(90), unit);
+    out.printf("99th pct:     %,d%s%n", percentile(99), unit);
+    out.printf("99.9th pct:   %,d%s%n", percentile(99.9), unit);
+    out.printf("Slowest time: %,d%s%n", max(), unit);
+    out.println();
+
+    List<Bucket> histogram = histogram();
+    int most = 0;
+    for (Bucket bucket : histogram) most = Math.max(most, bucket.count);
+    for (Bucket bucket : histogram) {
+      char[] bar = new char[(int) Math.ceil((double) bucket.count * BAR_WIDTH / most)];
+      Arrays.fill(bar, '#');
+      out.printf("%,12d%s %,8d %s%n", bucket.from, unit, bucket.count, new String(bar));
+    }
+  }
+
+  /** Returns the summary as the fields of a JSON object, without braces. */
+  String toJsonFields() {
+    return String.format(Locale.US, "\"count\": %d, \"mean\": %.1f, \"stddev\": %.1f, "
+        + "\"min\": %d, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p99.9\": %d, \"max\": %d",
+        count(), mean, standardDeviation, min(), median(), percentile(90), percentile(99),
+        percentile(99.9), max());
+  }
+
+  /** CSV header matching {@link #toCsvRow()}. */
+  static String csvHeader() {
+    return "count,mean,stddev,min,p50,p90,p99,p99.9,max";
+  }
+
+  String toCsvRow() {
+    return String.format(Locale.US, "%d,%.1f,%.1f,%d,%d,%d,%d,%d,%d", count(), mean,
+        standardDeviation, min(), median(), percentile(90), percentile(99), percentile(99.9),
+        max());
+  }
+
+  /**
+   * Returns the one-sided p-value of a Mann-Whitney U test that {@code after} tends to be larger
+   * than {@code before}: the chance of seeing ranks at least this lopsided if both came from the
+   * same distribution. Uses the normal approximation with a correction for ties, which is close
+   * enough from about 8 samples a side. Unlike comparing means, one slow outlier can't swing it.
+   */
+  static double mannWhitney(long[] before, long[] after) {
+    int n1 = after.length;
+    int n2 = before.length;
+    if (n1 == 0 || n2 == 0) throw new IllegalArgumentException("No samples.");
+    int n = n1 + n2;
+
+    // Sort everything together, remembering which side each sample came from.
+    long[] values = new long[n];
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = i < n1 ? after[i] : before[i - n1];
+      order[i] = i;
+    }
+    final long[] v = values;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Long.compare(v[a], v[b]);
+      }
+    });
+
+    // Tied samples share the average of their ranks.
+    double afterRanks = 0;
+    double ties = 0;
+    for (int i = 0; i < n; ) {
+      int j = i;
+      while (j < n && values[order[j]] == values[order[i]]) j++;
+      double rank = (i + 1 + j) / 2.0;
+      for (int k = i; k < j; k++) if (order[k] < n1) afterRanks += rank;
+      double t = j - i;
+      ties += t * t * t - t;
+      i = j;
+    }
+
+    double u = afterRanks - n1 * (n1 + 1) / 2.0;
+    double mean = (double) n1 * n2 / 2;
+    double variance = (double) n1 * n2 / 12 * ((n + 1) - ties / ((double) n * (n - 1)));
+    if (variance == 0) return 0.5;
+    double z = (u - mean - 0.5) / Math.sqrt(variance);
+    return 0.5 * erfc(z / Math.sqrt(2));
+  }
+
+  /** Complementary error function, to about 1e-7. From Numerical Recipes. */
+  private static double erfc(double x) {
+    double z = Math.abs(x);
+    double t = 1 / (1 + 0.5 * z);
+    double r = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196
+        + t * (0.09678418 + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398
+        + t * (1.48851587 + t * (-0.82215223 + t * 0.17087277)))))))));
+    return x >= 0 ? r : 2 - r;
+  }
+
+  /** Values in [from, to). */
+  static class Bucket {
+    final long from;
+    final long to;
+    int count;
+
+    Bucket(long from, long to) {
+      this.from = from;
+      this.to = to;
+    }
+  }
+}
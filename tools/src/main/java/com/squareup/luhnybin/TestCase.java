@@ -19,20 +19,27 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.Arrays;
 
 /**
- * A test case.
+ * A test case. Input and output are bytes, usually UTF-8, and needn't be valid text.
  *
  * @author Bob Lee (bob@squareup.com)
  */
 class TestCase {
 
-  private static final Charset ASCII = Charset.forName("US-ASCII");
+  static final Charset UTF_8 = Charset.forName("UTF-8");
 
   final String description;
   final int index;
+
+  /** The output and expected input as text, for display. */
   final String output;
   final String expectedInput;
 
@@ -40,18 +47,44 @@ class TestCase {
   private final byte[] expectedInputBytes;
   private final byte[] buffer;
 
-  TestCase(String description, int index, String output, String expectedInput) {
+  TestCase(String description, int index, byte[] output, byte[] expectedInput) {
     this.description = description;
     this.index = index;
-    this.output = withBreak(output);
-    this.outputBytes = this.output.getBytes(ASCII);
-    this.expectedInput = withBreak(expectedInput);
-    this.expectedInputBytes = this.expectedInput.getBytes(ASCII);
+    this.outputBytes = withBreak(output);
+    this.output = show(outputBytes, outputBytes.length);
+    this.expectedInputBytes = withBreak(expectedInput);
+    this.expectedInput = show(expectedInputBytes, expectedInputBytes.length);
     this.buffer = new byte[expectedInputBytes.length];
   }
 
-  private static String withBreak(String s) {
-    return s + "\n";
+  private static byte[] withBreak(byte[] b) {
+    byte[] result = Arrays.copyOf(b, b.length + 1);
+    result[b.length] = '\n';
+    return result;
+  }
+
+  /** Returns the number of bytes this test writes. */
+  int size() {
+    return outputBytes.length;
+  }
+
+  /** Decodes UTF-8 for display, showing bytes that aren't valid UTF-8 as {@code \xNN}. */
+  static String show(byte[] b, int length) {
+    CharsetDecoder decoder = UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT);
+    ByteBuffer in = ByteBuffer.wrap(b, 0, length);
+    CharBuffer out = CharBuffer.allocate(length);
+    StringBuilder s = new StringBuilder(length);
+    while (true) {
+      CoderResult result = decoder.decode(in, out, true);
+      out.flip();
+      s.append(out);
+      out.clear();
+      if (result.isUnderflow()) break;
+      for (int i = 0; i < result.length(); i++) s.append(String.format("\\x%02x", in.get()));
+    }
+    return s.toString();
   }
 
   void writeTo(OutputStream out) throws IOException {
@@ -66,18 +99,31 @@ class TestCase {
       read += result;
     }
 
+    compare(listener);
+  }
+
+  /** Masks this test's output in place with {@code masker} and checks the result. */
+  void check(LuhnMasker masker, Listener listener) {
+    System.arraycopy(outputBytes, 0, buffer, 0, buffer.length);
+    if (masker.mask(buffer, 0, buffer.length) != buffer.length) {
+      throw new AssertionError("Masker held back bytes after a line feed.");
+    }
+    compare(listener);
+  }
+
+  private void compare(Listener listener) {
     if (Arrays.equals(expectedInputBytes, buffer)) {
       listener.testPassed(this);
     } else {
-      listener.testFailed(this, new String(buffer, ASCII));
+      listener.testFailed(this, show(buffer, buffer.length));
     }
   }
 
   static class Builder {
 
     final String description;
-    String output;
-    String expectedInput;
+    byte[] output;
+    byte[] expectedInput;
     final int index;
 
     public Builder(String description, int index) {
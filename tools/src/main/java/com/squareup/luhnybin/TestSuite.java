@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -43,16 +44,49 @@ class TestSuite {
     return new Output();
   }
 
+  List<TestCase> testCases() {
+    return Collections.unmodifiableList(testCases);
+  }
+
   void writeTo(OutputStream out) throws IOException {
     for (TestCase testCase : testCases) testCase.writeTo(out);
   }
 
+  /** Writes and flushes each test's output in turn, recording when each one started. */
+  void writeTo(OutputStream out, TestTimings timings) throws IOException {
+    for (TestCase testCase : testCases) {
+      timings.written(testCase);
+      testCase.writeTo(out);
+      out.flush();
+    }
+  }
+
   void check(InputStream in, TestCase.Listener listener) throws IOException {
     for (TestCase testCase : testCases) testCase.check(in, listener);
   }
 
+  /** Checks each test in turn, recording when its last byte arrived. */
+  void check(InputStream in, TestCase.Listener listener, TestTimings timings)
+      throws IOException {
+    for (TestCase testCase : testCases) {
+      testCase.check(in, listener);
+      timings.read(testCase);
+    }
+  }
+
+  /** Checks the tests against {@code masker} directly, without a stream in between. */
+  void check(LuhnMasker masker, TestCase.Listener listener) {
+    // Index rather than iterate so checking doesn't allocate.
+    for (int i = 0; i < testCases.size(); i++) testCases.get(i).check(masker, listener);
+  }
+
   class Output {
     Input send(String output) {
+      return send(output.getBytes(TestCase.UTF_8));
+    }
+
+    /** Sends raw bytes, which needn't be valid UTF-8. */
+    Input send(byte[] output) {
       if (builder == null) throw new AssertionError();
       if (builder.output != null) {
         throw new IllegalStateException("Output already specified.");
@@ -65,6 +99,10 @@ class TestSuite {
       send(s).expect(s);
     }
 
+    void sendAndExpect(byte[] b) {
+      send(b).expect(b);
+    }
+
     Input send(CharSequence output) {
       return send(output.toString());
     }
@@ -72,6 +110,10 @@ class TestSuite {
 
   class Input {
     void expect(String input) {
+      expect(input.getBytes(TestCase.UTF_8));
+    }
+
+    void expect(byte[] input) {
       if (builder == null) throw new AssertionError();
       if (builder.expectedInput != null) {
         throw new IllegalStateException("Input already specified.");
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times each test case up to when the harness reads the last byte of its masked result, across
+ * iterations. The clock starts when the harness starts writing the test's output or finishes
+ * reading the previous test's result, whichever is later, so a test isn't charged for time spent
+ * queued behind its predecessors. Pathological inputs stand out here long before they'd move the
+ * time for a whole iteration.
+ */
+final class TestTimings {
+
+  private final List<TestCase> tests;
+
+  /** When each test started writing, from System.nanoTime(). Written by the writer thread. */
+  private final AtomicLongArray writtenAt;
+
+  /** Times in ns, indexed by test index - 1 and iteration. */
+  private final long[][] times;
+  private final int[] counts;
+
+  /** When the harness read the last byte of the previous test's result. */
+  private long lastReadAt;
+
+  /** Whether to record times. Off during warm-up. */
+  boolean recording = true;
+
+  TestTimings(TestSuite suite, int iterations) {
+    tests = suite.testCases();
+    writtenAt = new AtomicLongArray(tests.size());
+    times = new long[tests.size()][iterations];
+    counts = new int[tests.size()];
+  }
+
+  /** Records that the harness is about to write {@code test}'s output. */
+  void written(TestCase test) {
+    writtenAt.set(test.index - 1, System.nanoTime());
+  }
+
+  /** Records that the harness just read the last byte of {@code test}'s result. */
+  void read(TestCase test) {
+    long now = System.nanoTime();
+    int i = test.index - 1;
+    long start = i == 0 ? writtenAt.get(i) : Math.max(writtenAt.get(i), lastReadAt);
+    lastReadAt = now;
+    if (recording) times[i][counts[i]++] = now - start;
+  }
+
+  /** Returns stats in ns for each test, in test order. */
+  List<TestStats> stats() {
+    List<TestStats> stats = new ArrayList<TestStats>();
+    for (TestCase test : tests) {
+      int i = test.index - 1;
+      if (counts[i] == 0) continue;
+      stats.add(new TestStats(test, Arrays.copyOf(times[i], counts[i])));
+    }
+    return stats;
+  }
+
+  /** Returns every recorded time in ns, for all tests and iterations. */
+  long[] allTimes() {
+    int total = 0;
+    for (int count : counts) total += count;
+    long[] result = new long[total];
+    int offset = 0;
+    for (int i = 0; i < times.length; i++) {
+      System.arraycopy(times[i], 0, result, offset, counts[i]);
+      offset += counts[i];
+    }
+    return result;
+  }
+
+  /** Prints the {@code limit} slowest tests by mean, p99 and time per byte. */
+  void print(PrintStream out, int limit) {
+    List<TestStats> stats = stats();
+    if (stats.isEmpty()) return;
+
+    out.println("Slowest tests by mean time:");
+    print(out, stats, new Comparator<TestStats>() {
+      public int compare(TestStats a, TestStats b) {
+        return Double.compare(b.stats.mean(), a.stats.mean());
+      }
+    }, limit);
+
+    out.println("Slowest tests by 99th percentile:");
+    print(out, stats, new Comparator<TestStats>() {
+      public int compare(TestStats a, TestStats b) {
+        return Long.compare(b.stats.percentile(99), a.stats.percentile(99));
+      }
+    }, limit);
+
+    out.println("Slowest tests by time per byte:");
+    print(out, stats, new Comparator<TestStats>() {
+      public int compare(TestStats a, TestStats b) {
+        return Double.compare(b.nanosPerByte(), a.nanosPerByte());
+      }
+    }, limit);
+  }
+
+  private static void print(PrintStream out, List<TestStats> stats,
+      Comparator<TestStats> order, int limit) {
+    List<TestStats> sorted = new ArrayList<TestStats>(stats);
+    Collections.sort(sorted, order);
+    for (TestStats test : sorted.subList(0, Math.min(limit, sorted.size()))) {
+      out.printf("  #%-3d %-45s %,6d bytes  mean %,8.1fus  p99 %,8.1fus  %,8.1fns/byte%n",
+          test.test.index, test.test.description, test.bytes(), test.stats.mean() / 1000,
+          test.stats.percentile(99) / 1000.0, test.nanosPerByte());
+    }
+    out.println();
+  }
+
+  /** Stats for one test. */
+  static class TestStats {
+    final TestCase test;
+    final Stats stats;
+    private final long[] times;
+
+    TestStats(TestCase test, long[] times) {
+      this.test = test;
+      this.stats = new Stats(times);
+      this.times = times;
+    }
+
+    /** Returns the time in ns for each recorded iteration, in order. */
+    long[] times() {
+      return times.clone();
+    }
+
+    int bytes() {
+      return test.size();
+    }
+
+    double nanosPerByte() {
+      return stats.mean() / bytes();
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Samples the throughput of a stream through a masker at regular intervals. Also tracks how long
+ * the harness spends blocked writing to the masker and waiting to read from it. If the writer is
+ * blocked most of the time, the masker is the bottleneck; if the reader is waiting most of the
+ * time but the writer isn't blocked, the harness can't generate input fast enough.
+ */
+final class Throughput {
+
+  private final PrintStream out;
+  private final long start = System.nanoTime();
+
+  /** Time spent in writes to and reads from the masker, in ns. Each has a single writer. */
+  private volatile long blockedWriting;
+  private volatile long waitingToRead;
+  private volatile boolean timesPipes;
+
+  /** Values as of the last sample. */
+  private long lastSampleAt = start;
+  private long lastBytes;
+  private long lastLines;
+  private long lastBlockedWriting;
+  private long lastWaitingToRead;
+
+  /** Throughput in KB/s for each interval. */
+  private long[] samples = new long[16];
+  private int sampleCount;
+
+  Throughput(PrintStream out) {
+    this.out = out;
+  }
+
+  /** Returns ns since this started. */
+  long elapsed() {
+    return System.nanoTime() - start;
+  }
+
+  /** Wraps the masker's input, timing how long writes block. */
+  OutputStream timeWrites(OutputStream out) {
+    timesPipes = true;
+    return new FilterOutputStream(out) {
+      @Override public void write(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        out.write(b, off, len);
+        blockedWriting += System.nanoTime() - start;
+      }
+
+      @Override public void flush() throws IOException {
+        long start = System.nanoTime();
+        out.flush();
+        blockedWriting += System.nanoTime() - start;
+      }
+    };
+  }
+
+  /** Wraps the masker's output, timing how long reads wait. */
+  InputStream timeReads(InputStream in) {
+    timesPipes = true;
+    return new FilterInputStream(in) {
+      @Override public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int result = in.read(b, off, len);
+        waitingToRead += System.nanoTime() - start;
+        return result;
+      }
+    };
+  }
+
+  /** Prints throughput since the last sample, given totals for bytes and lines checked so far. */
+  void sample(long bytes, long lines) {
+    long now = System.nanoTime();
+    long interval = now - lastSampleAt;
+    if (interval <= 0) return;
+
+    long blockedWriting = this.blockedWriting;
+    long waitingToRead = this.waitingToRead;
+    double bytesPerSecond = (bytes - lastBytes) * 1e9 / interval;
+    if (sampleCount == samples.length) samples = Arrays.copyOf(samples, sampleCount * 2);
+    samples[sampleCount++] = (long) (bytesPerSecond / 1000);
+
+    out.printf("%7.1fs %,9.1f MB/s %,11.0f lines/s", (now - start) / 1e9, bytesPerSecond / 1e6,
+        (lines - lastLines) * 1e9 / interval);
+    if (timesPipes) {
+      out.printf("   writer blocked %3.0f%%   reader waiting %3.0f%%",
+          percent(blockedWriting - lastBlockedWriting, interval),
+          percent(waitingToRead - lastWaitingToRead, interval));
+    }
+    out.println();
+
+    lastSampleAt = now;
+    lastBytes = bytes;
+    lastLines = lines;
+    lastBlockedWriting = blockedWriting;
+    lastWaitingToRead = waitingToRead;
+  }
+
+  /** Prints totals for the whole run. */
+  void printSummary(long bytes, long lines) {
+    long elapsed = elapsed();
+    out.printf("Total time:     %,dms%n", elapsed / 1000000);
+    out.printf("Bytes:          %,d%n", bytes);
+    out.printf("Lines:          %,d%n", lines);
+    out.printf("Throughput:     %,.1f MB/s, %,.0f lines/s%n", bytes * 1e3 / elapsed,
+        lines * 1e9 / elapsed);
+    if (sampleCount > 1) {
+      Stats stats = new Stats(Arrays.copyOf(samples, sampleCount));
+      out.printf("Per interval:   min %,.1f MB/s, median %,.1f MB/s, max %,.1f MB/s%n",
+          stats.min() / 1e3, stats.median() / 1e3, stats.max() / 1e3);
+    }
+    if (timesPipes) {
+      out.printf("Writer blocked: %,dms (%.0f%%)%n", blockedWriting / 1000000,
+          percent(blockedWriting, elapsed));
+      out.printf("Reader waiting: %,dms (%.0f%%)%n", waitingToRead / 1000000,
+          percent(waitingToRead, elapsed));
+    }
+  }
+
+  private static double percent(long part, long whole) {
+    return 100.0 * part / whole;
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.io.Files;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BaselineTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test public void roundTrip() throws IOException {
+    Map<Integer, long[]> testTimes = new TreeMap<Integer, long[]>();
+    testTimes.put(3, new long[] { 300, 310 });
+    Map<Integer, String> descriptions = new TreeMap<Integer, String>();
+    descriptions.put(3, "16-digit #, with = and : in it");
+    Baseline written = new Baseline("mask.sh", Baseline.host(), 2, 5000,
+        new long[] { 1000, 1200, 1100 }, testTimes, descriptions);
+    File file = temporaryFolder.newFile("baseline.properties");
+    written.write(file);
+
+    Baseline read = Baseline.read(file);
+    Assert.assertEquals("mask.sh", read.target);
+    Assert.assertEquals(Baseline.host(), read.host);
+    Assert.assertEquals(2, read.warmup);
+    Assert.assertEquals(5000, read.suiteBytes);
+    Assert.assertArrayEquals(new long[] { 1000, 1200, 1100 }, read.times);
+    Assert.assertArrayEquals(new long[] { 300, 310 }, read.testTimes.get(3));
+    Assert.assertEquals("16-digit #, with = and : in it", read.descriptions.get(3));
+    Assert.assertEquals(5000 / 1100.0, read.throughput(), 1e-9);
+  }
+
+  @Test public void throughputIgnoresLocale() throws IOException {
+    Locale locale = Locale.getDefault();
+    Locale.setDefault(Locale.GERMANY);
+    try {
+      File file = temporaryFolder.newFile("baseline.properties");
+      run(new long[] { 1100 }).write(file);
+      Assert.assertTrue(Files.toString(file, TestCase.UTF_8).contains("throughput=4.5\n"));
+    } finally {
+      Locale.setDefault(locale);
+    }
+  }
+
+  @Test(expected = IOException.class) public void rejectsOtherFiles() throws IOException {
+    File file = temporaryFolder.newFile("other.properties");
+    Files.write("times=1,2,3\n", file, TestCase.UTF_8);
+    Baseline.read(file);
+  }
+
+  @Test public void regressedMedian() {
+    Baseline.Comparison comparison = run(1.2).compareTo(run(1.0), 0.1);
+    Assert.assertEquals(0.2, comparison.medianChange(), 0.02);
+    Assert.assertTrue(comparison.p < Baseline.SIGNIFICANCE);
+    Assert.assertTrue(comparison.regressed());
+  }
+
+  @Test public void fasterIsFine() {
+    Assert.assertFalse(run(0.8).compareTo(run(1.0), 0.1).regressed());
+  }
+
+  /** Significant, but within the threshold. */
+  @Test public void smallSlowdownIsFine() {
+    Baseline.Comparison comparison = run(1.05).compareTo(run(1.0), 0.1);
+    Assert.assertTrue(comparison.p < Baseline.SIGNIFICANCE);
+    Assert.assertFalse(comparison.regressed());
+  }
+
+  /** Only the slowest runs slowed down, which Mann-Whitney can't see. */
+  @Test public void regressedP99() {
+    long[] beforeTimes = new long[Baseline.MIN_P99_ITERATIONS];
+    long[] afterTimes = new long[Baseline.MIN_P99_ITERATIONS];
+    for (int i = 0; i < beforeTimes.length; i++) {
+      beforeTimes[i] = 1000 + i;
+      afterTimes[i] = i < beforeTimes.length - 3 ? 1000 + i : 3000;
+    }
+    Baseline.Comparison comparison = run(afterTimes).compareTo(run(beforeTimes), 0.1);
+    Assert.assertEquals(0, comparison.medianChange(), 1e-9);
+    Assert.assertTrue(comparison.p > Baseline.SIGNIFICANCE);
+    Assert.assertFalse(comparison.medianRegressed());
+    Assert.assertTrue(comparison.p99Regressed());
+    Assert.assertTrue(comparison.regressed());
+
+    // With fewer iterations, the 99th percentile is the slowest run.
+    int few = Baseline.MIN_P99_ITERATIONS - 1;
+    comparison = run(Arrays.copyOfRange(afterTimes, 1, few + 1))
+        .compareTo(run(Arrays.copyOfRange(beforeTimes, 1, few + 1)), 0.1);
+    Assert.assertTrue(comparison.p99Change() > 0.1);
+    Assert.assertFalse(comparison.regressed());
+  }
+
+  /** Past the threshold, but too few iterations to tell from noise. */
+  @Test public void fewIterationsAreNotSignificant() {
+    Baseline before = new Baseline("mask.sh", "host", 0, 5000, new long[] { 1000, 1010 },
+        new TreeMap<Integer, long[]>(), new TreeMap<Integer, String>());
+    Baseline after = new Baseline("mask.sh", "host", 0, 5000, new long[] { 1500, 1510 },
+        new TreeMap<Integer, long[]>(), new TreeMap<Integer, String>());
+    Assert.assertFalse(after.compareTo(before, 0.1).regressed());
+  }
+
+  @Test public void needsEnoughIterations() {
+    for (String option : new String[] { "--baseline=b", "--compare=b" }) {
+      try {
+        Options.parse(new String[] { option, "7" });
+        Assert.fail(option);
+      } catch (IllegalArgumentException expected) {
+      }
+      Assert.assertEquals(8, Options.parse(new String[] { option, "8" }).iterations);
+    }
+  }
+
+  @Test public void warnsAboutOtherTarget() {
+    Baseline before = run(1.0);
+    Baseline after = new Baseline("in-process LuhnMasker", before.host, 0, 5000, before.times,
+        before.testTimes, before.descriptions);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    after.compareTo(before, 0.1).print(new PrintStream(out, true));
+    String printed = new String(out.toByteArray(), TestCase.UTF_8);
+    Assert.assertTrue(printed, printed.contains(
+        "Warning: the baseline was recorded against mask.sh, not in-process LuhnMasker."));
+  }
+
+  @Test public void listsSlowerTests() {
+    Baseline before = run(1.0);
+    Baseline after = run(1.0);
+    after.testTimes.put(7, new long[] { 5000, 5100, 4900 });
+    after.descriptions.put(7, "long sequence of zeros");
+    Baseline.Comparison comparison = after.compareTo(before, 0.1);
+    Assert.assertFalse(comparison.regressed());
+    Assert.assertEquals(1, comparison.slowerTests().size());
+    Assert.assertTrue(comparison.slowerTests().get(0).contains("long sequence of zeros"));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    comparison.print(new PrintStream(out, true));
+    String printed = new String(out.toByteArray(), TestCase.UTF_8);
+    Assert.assertTrue(printed, printed.contains("#7"));
+    Assert.assertTrue(printed, printed.contains("No regression."));
+  }
+
+  @Test public void runsTheSuite() throws IOException {
+    LuhnyBinTests tests = new LuhnyBinTests();
+    Options options = Options.parse(new String[] { "10" });
+    Main.Target target = new Main.InProcessTarget(new LuhnMasker());
+    TestTimings timings = new TestTimings(tests, options.iterations);
+    long[] times = Main.runIterations(options, target, tests, timings,
+        new LuhnMaskerTest.FailingListener());
+    Baseline baseline = Baseline.of(target, tests, 0, times, timings);
+    Assert.assertEquals(10, baseline.times.length);
+    // In-process runs don't time tests.
+    Assert.assertTrue(baseline.testTimes.isEmpty());
+    Assert.assertTrue(baseline.suiteBytes > 0);
+  }
+
+  /** 20 iterations around 1000us times {@code scale}, with some noise. */
+  private static Baseline run(double scale) {
+    Random random = new Random(0);
+    long[] times = new long[20];
+    for (int i = 0; i < times.length; i++) {
+      times[i] = (long) (scale * (1000 + random.nextInt(20)));
+    }
+    Map<Integer, long[]> testTimes = new TreeMap<Integer, long[]>();
+    testTimes.put(7, new long[] { 1000, 1010, 990 });
+    Map<Integer, String> descriptions = new TreeMap<Integer, String>();
+    descriptions.put(7, "long sequence of zeros");
+    return new Baseline("mask.sh", "host", 0, 5000, times, testTimes, descriptions);
+  }
+
+  private static Baseline run(long[] times) {
+    return new Baseline("mask.sh", "host", 0, 5000, times, new TreeMap<Integer, long[]>(),
+        new TreeMap<Integer, String>());
+  }
+}
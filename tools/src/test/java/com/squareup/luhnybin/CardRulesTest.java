@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CardRulesTest {
+
+  /** Rules that differ from the defaults in each way. */
+  static final List<CardRules> OTHER_RULES = Arrays.asList(
+      rules("lengths=12-19", "separators=\\ -./"),
+      rules("prefixes=34,37,4,51-55,2221-2720,6011,644-649,65"),
+      rules("lengths=13", "prefixes=00", "luhn=false"),
+      rules("lengths=15-16", "separators="));
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test public void defaults() {
+    Assert.assertEquals("14-16 digits, separated by ' -', passing the Luhn check",
+        rules().toString());
+    Assert.assertEquals(CardRules.DEFAULT.toString(), rules().toString());
+  }
+
+  @Test public void parsesRules() {
+    CardRules rules = rules("lengths = 12-19", "separators=\\ -.", "prefixes=4, 051-055",
+        "luhn=false");
+    Assert.assertEquals(12, rules.minDigits);
+    Assert.assertEquals(19, rules.maxDigits);
+    Assert.assertEquals(" -.", rules.separators);
+    Assert.assertEquals(Arrays.asList("4", "051", "052", "053", "054", "055"), rules.prefixes);
+    Assert.assertFalse(rules.luhn);
+    Assert.assertEquals(36, rules.maxPending());
+    Assert.assertEquals("12-19 digits, separated by ' -.', starting with [4, 051-055], "
+        + "without a Luhn check", rules.toString());
+  }
+
+  @Test public void matches() {
+    CardRules rules = rules("prefixes=4,2221-2720");
+    Assert.assertTrue(rules.matches("4111111111111111"));
+    Assert.assertTrue(rules.matches("2720999999999996"));
+    Assert.assertFalse(rules.matches("2721000000000004"));
+    Assert.assertFalse(rules.matches("5555555555554444"));
+    Assert.assertFalse(rules.matches("4111111111111112"));
+    Assert.assertFalse(rules.matches("4111111111110"));
+  }
+
+  @Test public void rejectsInvalidRules() {
+    String[] invalid = { "lengths=11-16", "lengths=14-20", "lengths=16-14", "lengths=14-15-16",
+        "separators=1", "separators=\\n", "separators=\\u00a0", "separators=--", "prefixes=5-51",
+        "prefixes=1234567", "prefixes=4,,5", "prefixes=-4", "luhn=yes", "colour=blue" };
+    for (String rule : invalid) {
+      try {
+        rules(rule);
+        Assert.fail(rule);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  @Test public void readNamesFile() throws IOException {
+    File file = temporaryFolder.newFile("rules.properties");
+    Files.write("lengths=12-19\nprefixes=4\n".getBytes(TestCase.UTF_8), file);
+    Assert.assertEquals(Arrays.asList("4"), CardRules.read(file).prefixes);
+
+    Files.write("lengths=10-12\n".getBytes(TestCase.UTF_8), file);
+    try {
+      CardRules.read(file);
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertEquals("Invalid rules in " + file + ": Lengths must be within 12-19: 10-12",
+          e.getMessage());
+    }
+  }
+
+  /** Parses rules from lines of a properties file. */
+  static CardRules rules(String... lines) {
+    StringBuilder file = new StringBuilder();
+    for (String line : lines) file.append(line).append('\n');
+    Properties properties = new Properties();
+    try {
+      properties.load(new StringReader(file.toString()));
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return CardRules.parse(properties);
+  }
+}
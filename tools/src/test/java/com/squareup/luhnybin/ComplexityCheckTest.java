@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ComplexityCheckTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final Executor executor = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  @Test public void slope() {
+    long[] sizes = { 1000, 4000, 16000, 64000 };
+    Assert.assertEquals(1.0, ComplexityCheck.slope(sizes, new long[] { 3, 12, 48, 192 }), 1e-9);
+    Assert.assertEquals(2.0, ComplexityCheck.slope(sizes, new long[] { 1, 16, 256, 4096 }), 1e-9);
+  }
+
+  @Test public void fitLeavesOutShortTimes() {
+    ComplexityCheck.Result result = new ComplexityCheck.Result(ComplexityCheck.FAMILIES.get(0));
+    long micros = 1000;
+    result.add(1 << 10, 100 * micros);
+    result.add(1 << 12, 100 * micros);
+    result.add(1 << 14, 1000 * micros);
+    result.add(1 << 16, 8000 * micros);
+    Assert.assertTrue(Double.isNaN(result.slope()));
+    result.add(1 << 18, 64000 * micros);
+    Assert.assertEquals(1.5, result.slope(), 1e-9);
+    Assert.assertTrue(result.superLinear());
+  }
+
+  @Test public void linearMaskerPasses() throws IOException {
+    ComplexityCheck check = new ComplexityCheck(
+        new ComplexityCheck.InProcessRunner(new LuhnMasker()), executor, 1 << 20);
+    Assert.assertEquals(6, check.sizes().size());
+    for (ComplexityCheck.Family family : ComplexityCheck.FAMILIES) {
+      ComplexityCheck.Result result = check.check(family);
+      Assert.assertEquals(6, result.sizes.size());
+      Assert.assertEquals(0, result.gaveUpAt);
+      Assert.assertFalse(family.description, result.superLinear());
+    }
+  }
+
+  @Test public void quadraticMaskerFails() throws IOException {
+    ComplexityCheck check = new ComplexityCheck(
+        new ComplexityCheck.InProcessRunner(new RescanningMasker()), executor, 64 << 20, 1000);
+    ComplexityCheck.Result result = check.check(ComplexityCheck.FAMILIES.get(2));
+    Assert.assertTrue(result.gaveUpAt > 0);
+    Assert.assertTrue(result.times.toString(), result.superLinear());
+  }
+
+  @Test public void wrongOutputFails() throws IOException {
+    ComplexityCheck check = new ComplexityCheck(
+        new ComplexityCheck.InProcessRunner(new Masker() {
+          public void mask(InputStream in, OutputStream out) throws IOException {
+            ByteStreams.copy(in, out);
+          }
+        }), executor, 1 << 10);
+    try {
+      check.check(ComplexityCheck.FAMILIES.get(0));
+      Assert.fail();
+    } catch (Corpus.Mismatch e) {
+      Assert.assertEquals("Unexpected output at byte 0. In a 1 KB line of sequence of zeros.",
+          e.getMessage().replace(" Line 1.", ""));
+      Assert.assertEquals("XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX", e.expected);
+    }
+  }
+
+  @Test public void extraOutputFails() throws IOException {
+    ComplexityCheck check = new ComplexityCheck(
+        new ComplexityCheck.InProcessRunner(new Masker() {
+          public void mask(InputStream in, OutputStream out) throws IOException {
+            ByteStreams.copy(in, out);
+            out.write(0xff);
+          }
+        }), executor, 1 << 10);
+    try {
+      check.check(ComplexityCheck.FAMILIES.get(4));
+      Assert.fail();
+    } catch (Corpus.Mismatch e) {
+      String message = e.getMessage();
+      Assert.assertTrue(message, message.startsWith("Unexpected output at byte 1024."));
+    }
+  }
+
+  @Test public void maskShWithoutNewlines() throws IOException {
+    File directory = temporaryFolder.newFolder("cat");
+    Files.write("exec cat\n".getBytes(TestCase.UTF_8), new File(directory, "mask.sh"));
+    ComplexityCheck.ProcessRunner runner = new ComplexityCheck.ProcessRunner(executor, directory);
+    try {
+      ComplexityCheck check = new ComplexityCheck(runner, executor, 1 << 14);
+      for (int family : new int[] { 2, 4 }) {
+        ComplexityCheck.Result result = check.check(ComplexityCheck.FAMILIES.get(family));
+        Assert.assertEquals(3, result.sizes.size());
+      }
+    } finally {
+      runner.close();
+    }
+  }
+
+  /** Rescans the whole input before writing each byte. */
+  static class RescanningMasker implements Masker {
+    int sink;
+
+    public void mask(InputStream in, OutputStream out) throws IOException {
+      byte[] b = ByteStreams.toByteArray(in);
+      for (int i = 0; i < b.length; i++) {
+        for (int j = 0; j < i; j++) sink += b[j];
+        out.write(b[i]);
+      }
+    }
+  }
+}
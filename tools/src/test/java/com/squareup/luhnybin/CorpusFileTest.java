@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CorpusFileTest {
+
+  private static final long SIZE = 3 * 1024 * 1024;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test public void matchesGeneratedLogs() throws IOException {
+    File file = temporaryFolder.newFile("logs.corpus");
+    CorpusFile.writeLogs(file, 5, SIZE);
+    CorpusFile corpus = CorpusFile.open(file, 100 * 1000);
+    try {
+      byte[] input = ByteStreams.toByteArray(corpus.input());
+      Assert.assertArrayEquals(ByteStreams.toByteArray(new Corpus.Input(5, SIZE)), input);
+      Assert.assertEquals(input.length, corpus.size);
+      Assert.assertEquals(5, corpus.seed);
+      Assert.assertEquals(3, corpus.cases());
+      Assert.assertEquals(0, corpus.offset(0));
+
+      // Masks through several windows, in writes that straddle them.
+      Corpus.Source source = corpus.input();
+      Corpus.Checker verifier = corpus.verifier();
+      new LuhnMasker().mask(source, verifier);
+      verifier.finish(source.bytes());
+      Assert.assertEquals(input.length, verifier.bytes());
+    } finally {
+      corpus.close();
+    }
+  }
+
+  @Test public void cachesByGenerator() throws IOException {
+    File directory = temporaryFolder.newFolder("cache");
+    File stale = new File(directory, "logs-5-1000-0123456789abcdef.corpus");
+    Assert.assertTrue(stale.createNewFile());
+    File other = new File(directory, "logs-6-1000-0123456789abcdef.corpus");
+    Assert.assertTrue(other.createNewFile());
+
+    CorpusFile corpus = CorpusFile.cachedLogs(directory, 5, 1000);
+    corpus.close();
+    File file = CorpusFile.logsFile(directory, 5, 1000);
+    Assert.assertTrue(file.exists());
+    Assert.assertFalse(stale.exists());
+    Assert.assertTrue(other.exists());
+
+    // The second time reads the same file instead of writing it again.
+    Assert.assertTrue(file.setLastModified(1000));
+    CorpusFile.cachedLogs(directory, 5, 1000).close();
+    Assert.assertEquals(1000, file.lastModified());
+    Assert.assertEquals(2, directory.list().length);
+  }
+
+  @Test public void rejectsOtherFiles() throws IOException {
+    File file = temporaryFolder.newFile("junk.corpus");
+    try {
+      CorpusFile.open(file);
+      Assert.fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void mismatchNamesCase() throws IOException {
+    File file = temporaryFolder.newFile("logs.corpus");
+    CorpusFile.writeLogs(file, 5, SIZE);
+    CorpusFile corpus = CorpusFile.open(file);
+    try {
+      // Echo the input unmasked, so the first card number fails.
+      byte[] input = ByteStreams.toByteArray(corpus.input());
+      Corpus.Checker verifier = corpus.verifier();
+      try {
+        verifier.write(input, 0, input.length);
+        Assert.fail();
+      } catch (Corpus.Mismatch e) {
+        Assert.assertTrue(e.getMessage(), e.getMessage().contains("In generated lines 1-"));
+        Assert.assertTrue(e.expected.contains("XXXX"));
+        Assert.assertEquals(e.input, e.actual);
+      }
+    } finally {
+      corpus.close();
+    }
+  }
+
+  @Test public void stopEndsAtLineBoundary() throws IOException {
+    File file = temporaryFolder.newFile("logs.corpus");
+    CorpusFile.writeLogs(file, 1, SIZE);
+    CorpusFile corpus = CorpusFile.open(file);
+    try {
+      Corpus.Source input = corpus.input();
+      byte[] buffer = new byte[1000];
+      Assert.assertEquals(buffer.length, input.read(buffer, 0, buffer.length));
+      input.stop();
+      byte[] rest = ByteStreams.toByteArray(input);
+      Assert.assertTrue(rest.length < Corpus.MAX_LINE);
+      byte[] all = Arrays.copyOf(buffer, buffer.length + rest.length);
+      System.arraycopy(rest, 0, all, buffer.length, rest.length);
+      Assert.assertEquals('\n', all[all.length - 1]);
+
+      // Output that stops where the input did passes.
+      new LuhnMasker().mask(all, 0, all.length);
+      Corpus.Checker verifier = corpus.verifier();
+      verifier.write(all);
+      verifier.finish(input.bytes());
+    } finally {
+      corpus.close();
+    }
+  }
+}
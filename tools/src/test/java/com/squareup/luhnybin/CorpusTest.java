@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CorpusTest {
+
+  private static final long SIZE = 4 * 1024 * 1024;
+
+  @Test public void maskerOutputMatches() throws IOException {
+    Corpus.Input input = new Corpus.Input(42, SIZE);
+    Corpus.Verifier verifier = new Corpus.Verifier(42);
+    new LuhnMasker().mask(input, verifier);
+    verifier.finish(input.bytes());
+    Assert.assertTrue(verifier.bytes() >= SIZE);
+    Assert.assertTrue(verifier.bytes() < SIZE + Corpus.MAX_LINE);
+  }
+
+  @Test public void sameSeedSameLines() throws IOException {
+    Assert.assertArrayEquals(ByteStreams.toByteArray(new Corpus.Input(7, 64 * 1024)),
+        ByteStreams.toByteArray(new Corpus.Input(7, 64 * 1024)));
+  }
+
+  @Test public void linesHaveCardNumbers() {
+    Corpus corpus = new Corpus(0);
+    int masked = 0;
+    for (int i = 0; i < 1000; i++) {
+      corpus.next();
+      Assert.assertEquals('\n', corpus.input[corpus.length - 1]);
+      if (new String(corpus.expected, 0, corpus.length).contains("XXXX")) masked++;
+    }
+    Assert.assertTrue(masked > 100);
+  }
+
+  @Test public void stopEndsAtLineBoundary() throws IOException {
+    Corpus.Input input = new Corpus.Input(1, Long.MAX_VALUE);
+    byte[] buffer = new byte[1000];
+    Assert.assertEquals(buffer.length, input.read(buffer, 0, buffer.length));
+    input.stop();
+    byte[] rest = ByteStreams.toByteArray(input);
+    Assert.assertTrue(rest.length < Corpus.MAX_LINE);
+    Assert.assertEquals('\n', rest.length > 0 ? rest[rest.length - 1] : buffer[buffer.length - 1]);
+  }
+
+  @Test public void unmaskedOutputFails() throws IOException {
+    try {
+      ByteStreams.copy(new Corpus.Input(3, SIZE), new Corpus.Verifier(3));
+      Assert.fail();
+    } catch (Corpus.Mismatch e) {
+      Assert.assertEquals(e.input.replace("\n", ""), e.actual);
+      Assert.assertFalse(e.expected.equals(e.input));
+    }
+  }
+
+  @Test public void truncatedOutputFails() throws IOException {
+    Corpus.Input input = new Corpus.Input(5, SIZE);
+    Corpus.Verifier verifier = new Corpus.Verifier(5);
+    try {
+      new LuhnMasker().mask(truncate(input, SIZE / 2), verifier);
+      verifier.finish(input.bytes());
+      Assert.fail();
+    } catch (Corpus.Mismatch expected) {
+    }
+  }
+
+  private static InputStream truncate(final InputStream in, final long limit) {
+    return new InputStream() {
+      long read;
+
+      @Override public int read() throws IOException {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override public int read(byte[] b, int off, int len) throws IOException {
+        if (read == limit) return -1;
+        int count = in.read(b, off, (int) Math.min(len, limit - read));
+        if (count > 0) read += count;
+        return count;
+      }
+    };
+  }
+}
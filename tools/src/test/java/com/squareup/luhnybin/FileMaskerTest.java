@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.io.Files;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileMaskerTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final LuhnyBinTests tests = new LuhnyBinTests();
+  private byte[] input;
+  private byte[] expected;
+
+  public FileMaskerTest() throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    tests.writeTo(bout);
+    input = bout.toByteArray();
+
+    ByteArrayOutputStream masked = new ByteArrayOutputStream();
+    new LuhnMasker().mask(new ByteArrayInputStream(input), masked);
+    expected = masked.toByteArray();
+  }
+
+  @Test public void maskIntoOutputFile() throws IOException {
+    File in = temporaryFolder.newFile("in.txt");
+    File out = temporaryFolder.newFile("out.txt");
+    Files.write(input, in);
+    Files.write(new byte[input.length * 2], out);
+
+    Assert.assertEquals(input.length, new FileMasker().mask(in, out));
+    assertMasked(Files.toByteArray(out));
+    Assert.assertArrayEquals(input, Files.toByteArray(in));
+  }
+
+  @Test public void maskInPlace() throws IOException {
+    File file = temporaryFolder.newFile("log.txt");
+    Files.write(input, file);
+
+    Assert.assertEquals(input.length, new FileMasker().mask(file));
+    assertMasked(Files.toByteArray(file));
+  }
+
+  /** Uses tiny regions and blocks so card #s straddle every kind of boundary. */
+  @Test public void smallRegions() throws IOException {
+    for (int blockSize : new int[] { 31, 32, 33, 47, 64 }) {
+      for (int blocks = 1; blocks <= 3; blocks++) {
+        File in = temporaryFolder.newFile("in-" + blockSize + "-" + blocks + ".txt");
+        File out = temporaryFolder.newFile("out-" + blockSize + "-" + blocks + ".txt");
+        Files.write(input, in);
+        new FileMasker(blockSize * blocks + 7, blockSize).mask(in, out);
+        assertMasked(Files.toByteArray(out));
+
+        new FileMasker(blockSize * blocks + 7, blockSize).mask(in);
+        assertMasked(Files.toByteArray(in));
+      }
+    }
+  }
+
+  @Test public void emptyFile() throws IOException {
+    File file = temporaryFolder.newFile("empty.txt");
+    Assert.assertEquals(0, new FileMasker().mask(file));
+    Assert.assertEquals(0, file.length());
+  }
+
+  private void assertMasked(byte[] actual) throws IOException {
+    Assert.assertArrayEquals(expected, actual);
+    tests.check(new ByteArrayInputStream(actual), new LuhnMaskerTest.FailingListener());
+  }
+}
@@ -23,4 +23,9 @@ public class FormattingTest {
   @Test public void formatNumber() {
     Assert.assertEquals("1234 5678 9012 3456", LuhnyBinTests.formatNumber("1234567890123456", ' '));
   }
+
+  @Test public void showInvalidUtf8() {
+    byte[] b = { 'a', (byte) 0xff, (byte) 0xe5, (byte) 0x8d, (byte) 0xa1, (byte) 0xc3, '1' };
+    Assert.assertEquals("a\\xff\u5361\\xc31", TestCase.show(b, b.length));
+  }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GzipPipelineTest {
+
+  @Test public void luhnyBinTestsInSmallBlocks() throws IOException {
+    ByteArrayOutputStream suite = new ByteArrayOutputStream();
+    new LuhnyBinTests().writeTo(suite);
+    byte[] input = suite.toByteArray();
+    for (int blockSize : new int[] { 1, 7, 31, 1000 }) {
+      for (int compressors : new int[] { 1, 3 }) {
+        Assert.assertArrayEquals(mask(input), gunzip(pipeline(gzip(input), compressors,
+            blockSize)));
+      }
+    }
+  }
+
+  @Test public void generatedLogs() throws IOException {
+    byte[] input = ByteStreams.toByteArray(new Corpus.Input(0, 4 << 20));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GzipPipeline.Report report = new GzipPipeline(2, 64 * 1024, null)
+        .mask(new ByteArrayInputStream(gzip(input)), out);
+    Assert.assertArrayEquals(mask(input), gunzip(out.toByteArray()));
+    Assert.assertEquals(input.length, report.bytes());
+    Assert.assertEquals(out.size(), report.compressedBytes());
+    Assert.assertEquals(input.length, report.decompress.bytes.get());
+    Assert.assertEquals(input.length, report.mask.bytes.get());
+    Assert.assertEquals(input.length, report.compress.bytes.get());
+  }
+
+  /** Rotated logs are often concatenated gzip files. */
+  @Test public void multiMemberInput() throws IOException {
+    String number = LuhnyBinTests.randomNumber(16);
+    byte[] first = ("a " + number.substring(0, 5)).getBytes("US-ASCII");
+    byte[] second = (number.substring(5) + " b\n").getBytes("US-ASCII");
+    ByteArrayOutputStream input = new ByteArrayOutputStream();
+    input.write(gzip(first));
+    input.write(gzip(second));
+    Assert.assertEquals("a XXXXXXXXXXXXXXXX b\n",
+        new String(gunzip(pipeline(input.toByteArray(), 2, 4)), "US-ASCII"));
+  }
+
+  @Test public void emptyInput() throws IOException {
+    Assert.assertEquals(0, gunzip(pipeline(gzip(new byte[0]), 2, 1000)).length);
+  }
+
+  @Test(timeout = 10000) public void corruptInputFails() throws IOException {
+    byte[] gzipped = gzip(ByteStreams.toByteArray(new Corpus.Input(1, 1 << 20)));
+    byte[] corrupt = Arrays.copyOf(gzipped, gzipped.length);
+    for (int i = gzipped.length / 2; i < gzipped.length / 2 + 64; i++) corrupt[i] ^= 0x55;
+    try {
+      pipeline(corrupt, 2, 1024);
+      Assert.fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  private static byte[] pipeline(byte[] gzipped, int compressors, int blockSize)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new GzipPipeline(compressors, blockSize, null).mask(new ByteArrayInputStream(gzipped), out);
+    return out.toByteArray();
+  }
+
+  private static byte[] mask(byte[] input) {
+    byte[] masked = input.clone();
+    new LuhnMasker().mask(masked, 0, masked.length);
+    return masked;
+  }
+
+  static byte[] gzip(byte[] b) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(b);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  static byte[] gunzip(byte[] b) throws IOException {
+    return ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(b)));
+  }
+}
@@ -15,11 +15,15 @@
  */
 package com.squareup.luhnybin;
 
+import java.nio.charset.Charset;
+import java.util.Random;
 import org.junit.Assert;
 import org.junit.Test;
 
 public class LastDigitTest {
 
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
   @Test public void computeLastDigit() {
     Assert.assertEquals('1', LuhnyBinTests.computeLast("411111111111111"));
     Assert.assertEquals('2', LuhnyBinTests.computeLast("422222222222"));
@@ -28,4 +32,113 @@ public class LastDigitTest {
     Assert.assertEquals('5', LuhnyBinTests.computeLast("356600202036050"));
     Assert.assertEquals('4', LuhnyBinTests.computeLast("555555555555444"));
   }
+
+  /** Compares every entry point with the reference implementation on random digits. */
+  @Test public void checkDigitMatchesReference() {
+    Random random = new Random(0);
+    for (int i = 0; i < 20000; i++) {
+      String allButLast = randomDigits(random, random.nextInt(40));
+      char expected = referenceComputeLast(allButLast);
+      Assert.assertEquals(allButLast, expected, LuhnChecksum.checkDigit(allButLast));
+
+      // Surround the digits with junk to check offsets.
+      String padded = "x-" + allButLast + " y";
+      int off = 2;
+      int len = allButLast.length();
+      Assert.assertEquals(allButLast, expected,
+          LuhnChecksum.checkDigit(padded.toCharArray(), off, len));
+      Assert.assertEquals(allButLast, expected,
+          LuhnChecksum.checkDigit(padded.getBytes(ASCII), off, len));
+      Assert.assertEquals(allButLast, expected,
+          LuhnChecksum.checkDigit(new StringBuilder(allButLast)));
+    }
+  }
+
+  @Test public void completedNumbersAreValid() {
+    Random random = new Random(1);
+    for (int i = 0; i < 20000; i++) {
+      String allButLast = randomDigits(random, random.nextInt(40));
+      char last = referenceComputeLast(allButLast);
+      String valid = allButLast + last;
+      String invalid = allButLast + (char) ('0' + (last - '0' + 1 + random.nextInt(9)) % 10);
+      assertValid(true, valid);
+      assertValid(false, invalid);
+    }
+  }
+
+  @Test public void emptyIsInvalid() {
+    Assert.assertFalse(LuhnChecksum.isValid(""));
+    Assert.assertEquals('0', LuhnChecksum.checkDigit(""));
+  }
+
+  /** Puts a non-digit at every position, including ones the SWAR path handles. */
+  @Test public void rejectsNonDigits() {
+    String digits = randomDigits(new Random(2), 24);
+    for (char c : new char[] { '/', ':', ' ', 'X', '\u0130', '\u0660', '\uff10' }) {
+      for (int i = 0; i < digits.length(); i++) {
+        String s = digits.substring(0, i) + c + digits.substring(i + 1);
+        try {
+          LuhnChecksum.isValid(s);
+          Assert.fail(s);
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+          LuhnChecksum.isValid(s.toCharArray(), 0, s.length());
+          Assert.fail(s);
+        } catch (IllegalArgumentException expected) {
+        }
+        if (c < 0x80) {
+          try {
+            LuhnChecksum.isValid(s.getBytes(ASCII), 0, s.length());
+            Assert.fail(s);
+          } catch (IllegalArgumentException expected) {
+          }
+        }
+      }
+    }
+  }
+
+  @Test public void rejectsNonAsciiBytes() {
+    byte[] b = "4111111111111111".getBytes(ASCII);
+    b[3] = (byte) 0xb1; // '1' with the high bit set.
+    try {
+      LuhnChecksum.isValid(b, 0, b.length);
+      Assert.fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void checksBounds() {
+    try {
+      LuhnChecksum.isValid(new byte[4], 2, 3);
+      Assert.fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+  }
+
+  private static void assertValid(boolean expected, String s) {
+    Assert.assertEquals(s, expected, LuhnChecksum.isValid(s));
+    Assert.assertEquals(s, expected, LuhnChecksum.isValid(s.toCharArray(), 0, s.length()));
+    Assert.assertEquals(s, expected, LuhnChecksum.isValid(s.getBytes(ASCII), 0, s.length()));
+  }
+
+  private static String randomDigits(Random random, int length) {
+    char[] digits = new char[length];
+    for (int i = 0; i < length; i++) digits[i] = (char) ('0' + random.nextInt(10));
+    return new String(digits);
+  }
+
+  /** The original char-at-a-time implementation from LuhnyBinTests. */
+  private static char referenceComputeLast(CharSequence allButLast) {
+    int sum = 0;
+    for (int i = allButLast.length() - 1; i >= 0; i -= 2) {
+      int value = (allButLast.charAt(i) - '0') << 1;
+      sum += value > 9 ? value - 9 : value;
+    }
+    for (int i = allButLast.length() - 2; i >= 0; i -= 2) {
+      sum += allButLast.charAt(i) - '0';
+    }
+    int remainder = sum % 10;
+    return remainder == 0 ? '0' : (char) ((10 - remainder) + '0');
+  }
 }
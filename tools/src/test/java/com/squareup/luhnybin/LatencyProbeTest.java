@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyProbeTest {
+
+  private static final long DEADLINE = TimeUnit.SECONDS.toNanos(5);
+
+  @Test public void timesEachLine() throws Exception {
+    PipedOutputStream toMasker = new PipedOutputStream();
+    final PipedInputStream maskerIn = new PipedInputStream(toMasker);
+    final PipedOutputStream maskerOut = new PipedOutputStream();
+    PipedInputStream fromMasker = new PipedInputStream(maskerOut);
+    Thread masker = new Thread() {
+      @Override public void run() {
+        try {
+          new LuhnMasker().mask(maskerIn, maskerOut);
+          maskerOut.close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    masker.start();
+
+    LuhnyBinTests tests = new LuhnyBinTests();
+    TestTimings timings = new TestTimings(tests, 1);
+    LatencyProbe probe = new LatencyProbe(toMasker, fromMasker, DEADLINE, failOnDeadline());
+    probe.check(tests, timings, new LuhnMaskerTest.FailingListener());
+    toMasker.close();
+    masker.join();
+
+    Assert.assertEquals(tests.count, timings.allTimes().length);
+  }
+
+  @Test public void reportsMissedDeadline() throws Exception {
+    final CountDownLatch missed = new CountDownLatch(1);
+    final PipedOutputStream neverAnswers = new PipedOutputStream();
+    LatencyProbe probe = new LatencyProbe(new ByteArrayOutputStream(),
+        new PipedInputStream(neverAnswers),
+        TimeUnit.MILLISECONDS.toNanos(50), new LatencyProbe.DeadlineListener() {
+          public void missedDeadline(TestCase test, long waitedNanos) {
+            Assert.assertEquals(1, test.index);
+            missed.countDown();
+            try {
+              neverAnswers.close();
+            } catch (IOException e) {
+              throw new AssertionError(e);
+            }
+          }
+        });
+    Thread watchdog = new Thread(probe);
+    watchdog.start();
+
+    LuhnyBinTests tests = new LuhnyBinTests();
+    try {
+      probe.check(tests, new TestTimings(tests, 1), new LuhnMaskerTest.FailingListener());
+      Assert.fail();
+    } catch (IOException expected) {
+    }
+    Assert.assertTrue(missed.await(5, TimeUnit.SECONDS));
+    watchdog.join();
+  }
+
+  private static LatencyProbe.DeadlineListener failOnDeadline() {
+    return new LatencyProbe.DeadlineListener() {
+      public void missedDeadline(TestCase test, long waitedNanos) {
+        Assert.fail("Missed deadline for test #" + test.index);
+      }
+    };
+  }
+}
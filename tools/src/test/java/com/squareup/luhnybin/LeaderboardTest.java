@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.io.Files;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LeaderboardTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final Executor executor = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private File forks;
+
+  @Before public void setUp() throws IOException {
+    forks = temporaryFolder.newFolder("forks");
+  }
+
+  @Test public void ranksPassingImplementationsFirst() throws IOException {
+    implementation("java", "exec '" + System.getProperty("java.home") + "/bin/java' -cp '"
+        + System.getProperty("java.class.path") + "' com.squareup.luhnybin.LuhnMasker");
+    implementation("cat", "exec cat");
+    implementation("quitter", "exec head -c 10");
+    new File(forks, "no-mask-sh").mkdir();
+
+    List<File> implementations = Leaderboard.implementations(forks);
+    Assert.assertEquals(3, implementations.size());
+
+    Options options = Options.parse(new String[] { "--warmup=1", "3" });
+    List<Leaderboard.Entry> entries = new Leaderboard(options, executor)
+        .run(implementations, new PrintStream(new ByteArrayOutputStream()));
+    Assert.assertEquals("java", entries.get(0).name);
+    Assert.assertEquals("passed", entries.get(0).result);
+    Assert.assertEquals(3, entries.get(0).times.length);
+    Assert.assertTrue(entries.get(0).startupMillis > 0);
+    Assert.assertTrue(entries.get(0).throughput() > 0);
+    Assert.assertTrue(entries.get(0).cpuMillis > 0);
+    Assert.assertTrue(entries.get(0).peakRssBytes > 0);
+
+    // The suite starts with a test that any pass-through passes.
+    Assert.assertEquals("cat", entries.get(1).name);
+    Assert.assertEquals("failed test #2", entries.get(1).result);
+    Assert.assertEquals("quitter", entries.get(2).name);
+    Assert.assertEquals("output ended early", entries.get(2).result);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Leaderboard.print(new PrintStream(out, true), entries);
+    String[] lines = new String(out.toByteArray(), TestCase.UTF_8).split("\n");
+    Assert.assertEquals(4, lines.length);
+    Assert.assertTrue(lines[1], lines[1].matches("\\s+1  java\\s+passed .*"));
+    Assert.assertTrue(lines[2], lines[2].matches("\\s+-  cat\\s+failed test #2 .*"));
+  }
+
+  @Test public void givesUpOnStalls() throws IOException {
+    // Exits after the start-up line, but hangs on the second test.
+    implementation("stalls", "read line; echo \"$line\"; read line && exec sleep 60");
+    Options options = Options.parse(new String[0]);
+    Leaderboard.Entry entry = new Leaderboard(options, executor, 500)
+        .run(new File(forks, "stalls"));
+    Assert.assertFalse(entry.passed());
+    Assert.assertEquals("stalled for 0.5s", entry.result);
+  }
+
+  private void implementation(String name, String command) throws IOException {
+    File directory = new File(forks, name);
+    directory.mkdir();
+    Files.write("#!/bin/sh\n" + command + "\n", new File(directory, "mask.sh"), TestCase.UTF_8);
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LogFollowerTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File log;
+  private File output;
+  private File checkpoint;
+  private LogFollower follower;
+
+  @Before public void setUp() throws IOException {
+    File dir = temporaryFolder.newFolder("logs");
+    log = new File(dir, "app.log");
+    output = new File(dir, "app.masked.log");
+    checkpoint = new File(dir, "app.checkpoint");
+    follower = new LogFollower(log, output, checkpoint);
+  }
+
+  @After public void tearDown() throws IOException {
+    follower.close();
+  }
+
+  /**
+   * Appends the tests and some generated logs in random pieces, polling after each one and
+   * restarting from the checkpoint every few. Pieces often end in the middle of a card #.
+   */
+  @Test public void randomAppendsWithRestartsMatchOneShot() throws IOException {
+    byte[] input = input();
+    Random random = new Random(0);
+    for (int start = 0; start < input.length; ) {
+      int end = Math.min(input.length, start + 1 + random.nextInt(2000));
+      append(Arrays.copyOfRange(input, start, end));
+      follower.poll();
+      if (random.nextInt(4) == 0) restart();
+      start = end;
+    }
+    Assert.assertArrayEquals(mask(input), Files.toByteArray(output));
+  }
+
+  /** Restarts between every pair of bytes in card #s that continue across polls. */
+  @Test public void splitsEveryCardNumber() throws IOException {
+    String number = LuhnyBinTests.formatNumber(LuhnyBinTests.randomNumber(16), ' ');
+    String overlapping = LuhnyBinTests.overlappingMatches(40);
+    String input = "a " + number + " b 00" + overlapping + "\n";
+    for (int i = 0; i < input.length(); i++) {
+      append(input.substring(i, i + 1).getBytes("US-ASCII"));
+      follower.poll();
+      restart();
+    }
+    Assert.assertArrayEquals(mask(input.getBytes("US-ASCII")), Files.toByteArray(output));
+  }
+
+  /** Output written after the last checkpoint is dropped and written again. */
+  @Test public void crashAfterWritingOutput() throws IOException {
+    byte[] input = input();
+    int half = input.length / 2;
+    append(Arrays.copyOfRange(input, 0, half - 7));
+    follower.poll();
+    byte[] saved = Files.toByteArray(checkpoint);
+    append(Arrays.copyOfRange(input, half - 7, half));
+    follower.poll();
+    follower.close();
+
+    // Crash before the second checkpoint.
+    Files.write(saved, checkpoint);
+    follower = new LogFollower(log, output, checkpoint);
+    append(Arrays.copyOfRange(input, half, input.length));
+    follower.poll();
+    Assert.assertArrayEquals(mask(input), Files.toByteArray(output));
+  }
+
+  @Test public void followsRenamedLog() throws IOException {
+    String number = LuhnyBinTests.randomNumber(16);
+    append(("old " + number.substring(0, 8)).getBytes("US-ASCII"));
+    follower.poll();
+    append(number.substring(8).getBytes("US-ASCII"));
+    Assert.assertTrue(log.renameTo(new File(log.getPath() + ".1")));
+    append((number + " new\n").getBytes("US-ASCII"));
+    follower.poll();
+
+    // The end of a file ends the number.
+    Assert.assertEquals("old XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX new\n",
+        Files.toString(output, TestCase.UTF_8));
+  }
+
+  @Test public void rotatedWhileStopped() throws IOException {
+    append("first 4111".getBytes("US-ASCII"));
+    follower.poll();
+    follower.close();
+    Assert.assertTrue(log.renameTo(new File(log.getPath() + ".1")));
+    append("1111 1111 1111\n".getBytes("US-ASCII"));
+    follower = new LogFollower(log, output, checkpoint);
+    follower.poll();
+    Assert.assertEquals("first 41111111 1111 1111\n", Files.toString(output, TestCase.UTF_8));
+  }
+
+  /** Restarted mid-rotation, before the new log exists. */
+  @Test public void restartedWhileLogMissing() throws IOException {
+    append("first 4111".getBytes("US-ASCII"));
+    follower.poll();
+    follower.close();
+    Assert.assertTrue(log.renameTo(new File(log.getPath() + ".1")));
+    follower = new LogFollower(log, output, checkpoint);
+    follower.poll();
+    append("1111 1111 1111\n".getBytes("US-ASCII"));
+    follower.poll();
+    Assert.assertEquals("first 41111111 1111 1111\n", Files.toString(output, TestCase.UTF_8));
+  }
+
+  @Test public void truncatedInPlace() throws IOException {
+    append("before 4111 1111 1111 1111\n".getBytes("US-ASCII"));
+    follower.poll();
+    new FileOutputStream(log).close();
+    append("after\n".getBytes("US-ASCII"));
+    follower.poll();
+    Assert.assertEquals("before XXXX XXXX XXXX XXXX\nafter\n",
+        Files.toString(output, TestCase.UTF_8));
+  }
+
+  @Test public void waitsForLog() throws IOException {
+    follower.poll();
+    Assert.assertEquals(0, output.length());
+    append("4111111111111111\n".getBytes("US-ASCII"));
+    follower.poll();
+    Assert.assertEquals("XXXXXXXXXXXXXXXX\n", Files.toString(output, TestCase.UTF_8));
+  }
+
+  private void restart() throws IOException {
+    follower.close();
+    follower = new LogFollower(log, output, checkpoint);
+  }
+
+  private void append(byte[] b) throws IOException {
+    FileOutputStream out = new FileOutputStream(log, true);
+    try {
+      out.write(b);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] input() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new LuhnyBinTests().writeTo(bytes);
+    ByteStreams.copy(new Corpus.Input(0, 256 * 1024), bytes);
+    return bytes.toByteArray();
+  }
+
+  private static byte[] mask(byte[] input) {
+    byte[] masked = input.clone();
+    new LuhnMasker().mask(masked, 0, masked.length);
+    return masked;
+  }
+}
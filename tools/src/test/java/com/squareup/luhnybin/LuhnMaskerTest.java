@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class LuhnMaskerTest {
+
+  @Test public void passesLuhnyBinTests() throws IOException {
+    LuhnyBinTests tests = new LuhnyBinTests();
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    tests.writeTo(bout);
+
+    ByteArrayOutputStream masked = new ByteArrayOutputStream();
+    new LuhnMasker().mask(new ByteArrayInputStream(bout.toByteArray()), masked);
+    tests.check(new ByteArrayInputStream(masked.toByteArray()), new FailingListener());
+  }
+
+  @Test public void passesLuhnyBinTestsOneByteAtATime() throws IOException {
+    LuhnyBinTests tests = new LuhnyBinTests();
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    tests.writeTo(bout);
+
+    ByteArrayOutputStream masked = new ByteArrayOutputStream();
+    new LuhnMasker().mask(new TricklingInputStream(bout.toByteArray()), masked);
+    tests.check(new ByteArrayInputStream(masked.toByteArray()), new FailingListener());
+  }
+
+  @Test public void passesLuhnyBinTestsInPlace() {
+    new LuhnyBinTests().check(new LuhnMasker(), new FailingListener());
+  }
+
+  @Test public void passesLuhnyBinTestsForOtherRules() {
+    for (CardRules rules : CardRulesTest.OTHER_RULES) {
+      new LuhnyBinTests(rules).check(new LuhnMasker(rules), new FailingListener());
+    }
+  }
+
+  @Test public void cardNumberSplitAcrossDirectBuffers() {
+    byte[] input = "card 4111-1111-1111-1111 end\n".getBytes();
+    for (int split = 0; split <= input.length; split++) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(input.length);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      LuhnMasker masker = new LuhnMasker();
+
+      buffer.put(input, 0, split).flip();
+      int done = masker.mask(buffer);
+      drain(buffer, done, out);
+
+      buffer.put(input, split, input.length - split).flip();
+      done = masker.mask(buffer);
+      Assert.assertEquals(buffer.remaining(), done);
+      drain(buffer, done, out);
+
+      Assert.assertEquals("card XXXX-XXXX-XXXX-XXXX end\n", new String(out.toByteArray()));
+    }
+  }
+
+  /** Writes the first {@code count} remaining bytes to out and compacts the rest. */
+  private static void drain(ByteBuffer buffer, int count, ByteArrayOutputStream out) {
+    for (int i = 0; i < count; i++) out.write(buffer.get());
+    buffer.compact();
+  }
+
+  @Test public void heapBufferUsesArrayOffset() {
+    byte[] b = "xx4111111111111111xx".getBytes();
+    ByteBuffer buffer = ByteBuffer.wrap(b, 1, b.length - 2).slice();
+    Assert.assertEquals(buffer.remaining(), new LuhnMasker().mask(buffer));
+    Assert.assertEquals("xxXXXXXXXXXXXXXXXXxx", new String(b));
+  }
+
+  @Test public void maskingDoesntAllocate() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    long thread = Thread.currentThread().getId();
+
+    LuhnyBinTests tests = new LuhnyBinTests();
+    LuhnMasker masker = new LuhnMasker();
+    TestCase.Listener listener = new FailingListener();
+    ByteBuffer direct = ByteBuffer.allocateDirect(4096);
+    for (int i = 0; i < 10000; i++) {
+      tests.check(masker, listener);
+      masker.mask(direct);
+    }
+
+    int calls = 1000;
+    long before = allocations.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < calls; i++) {
+      tests.check(masker, listener);
+      masker.mask(direct);
+    }
+    long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+    Assert.assertEquals("Allocated " + allocated + " bytes", 0, allocated / calls);
+  }
+
+  @Test public void separators() throws IOException {
+    Assert.assertEquals("XXXX XXXX-XXXX XXXX", mask("4111 1111-1111 1111"));
+    Assert.assertEquals("4111  1111 1111 1111", mask("4111  1111 1111 1111"));
+    Assert.assertEquals("-XXXX-XXXX-XXXX-XXXX-", mask("-4111-1111-1111-1111-"));
+  }
+
+  @Test public void pendingBytesAreBounded() {
+    LuhnMasker masker = new LuhnMasker();
+    byte[] b = new byte[LuhnMasker.MAX_PENDING + 1];
+    int count = 0;
+    for (int i = 0; i < 1000; i++) {
+      b[count++] = (byte) (i % 2 == 0 ? '1' + (i / 2) % 9 : '-');
+      int done = masker.mask(b, 0, count);
+      Assert.assertTrue(count - done <= LuhnMasker.MAX_PENDING);
+      count -= done;
+      System.arraycopy(b, done, b, 0, count);
+    }
+  }
+
+  /** Saves and restores the masker's state after every byte of a digit-heavy input. */
+  @Test public void resumesFromSavedState() throws IOException {
+    String input = "x" + LuhnyBinTests.formatNumber(LuhnyBinTests.randomNumber(16), '-') + " 00"
+        + LuhnyBinTests.overlappingMatches(50) + " 12" + LuhnyBinTests.randomNumber(14) + "\n";
+    byte[] b = input.getBytes("US-ASCII");
+    LuhnMasker masker = new LuhnMasker();
+    int start = 0;
+    for (int end = 1; end <= b.length; end++) {
+      start += masker.mask(b, start, end - start);
+      ByteArrayOutputStream state = new ByteArrayOutputStream();
+      masker.writeState(new DataOutputStream(state));
+      masker = new LuhnMasker();
+      masker.readState(new DataInputStream(new ByteArrayInputStream(state.toByteArray())));
+    }
+    Assert.assertEquals(mask(input), new String(b, "US-ASCII"));
+  }
+
+  @Test public void matchesNaiveMasker() throws IOException {
+    Random random = new Random(0);
+    String alphabet = "0123456789012345678901234567890123456789 -x";
+    for (int i = 0; i < 2000; i++) {
+      StringBuilder s = new StringBuilder();
+      int length = random.nextInt(80);
+      for (int j = 0; j < length; j++) {
+        s.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      Assert.assertEquals(s.toString(), naiveMask(s.toString()), mask(s.toString()));
+    }
+  }
+
+  /** Compares the masker with the rules themselves, via {@link LuhnyBinTests#expected}. */
+  @Test public void matchesRulesForOtherRules() throws IOException {
+    Random random = new Random(0);
+    String alphabet = "0123456789012345678901234567890123456789 -./x";
+    for (CardRules rules : CardRulesTest.OTHER_RULES) {
+      LuhnyBinTests tests = new LuhnyBinTests(rules);
+      for (int i = 0; i < 1000; i++) {
+        StringBuilder s = new StringBuilder();
+        int length = random.nextInt(80);
+        for (int j = 0; j < length; j++) {
+          s.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        // Likely prefixes.
+        if (i % 2 == 0) s.insert(0, "x4").insert(random.nextInt(s.length() + 1), "0000");
+        byte[] b = s.toString().getBytes("US-ASCII");
+        new LuhnMasker(rules).mask(b, 0, b.length);
+        Assert.assertEquals(rules + ": " + s, tests.expected(s.toString()),
+            new String(b, "US-ASCII"));
+      }
+    }
+  }
+
+  /**
+   * A 17-digit card # that starts in a 12-digit one and ends after another, split after the
+   * first. The masker must not release the first before it knows.
+   */
+  @Test public void longerCardNumberSpansTwoBlocks() throws IOException {
+    CardRules rules = CardRulesTest.rules("lengths=12-17");
+    String input = "x411599005500 1241049706609 4x";
+    Assert.assertEquals("xXXXXXXXXXXXX XXXXXXXXXXXXX Xx",
+        new LuhnyBinTests(rules).expected(input));
+    for (int split = 0; split <= input.length(); split++) {
+      Assert.assertEquals("split at " + split, new LuhnyBinTests(rules).expected(input),
+          maskInSplits(rules, input, new Random(split), split));
+    }
+  }
+
+  /** Feeds random rules random input in random splits, as a stream would. */
+  @Test public void matchesRandomRulesInRandomSplits() throws IOException {
+    Random random = new Random(0);
+    String[] separators = { "", "\\ ", "\\ -", "-.", "\\ -./" };
+    String[] prefixes = { "", "4", "51-55", "0-2,6" };
+    for (int i = 0; i < 500; i++) {
+      int minDigits = CardRules.MIN_LENGTH + random.nextInt(8);
+      int maxDigits = minDigits + random.nextInt(CardRules.MAX_LENGTH - minDigits + 1);
+      CardRules rules = CardRulesTest.rules("lengths=" + minDigits + "-" + maxDigits,
+          "separators=" + separators[random.nextInt(separators.length)],
+          "prefixes=" + prefixes[random.nextInt(prefixes.length)],
+          "luhn=" + (random.nextInt(4) != 0));
+      // Mostly long runs of digits, where card #s overlap.
+      String alphabet = "01234567890123456789012345678901234567890123456789 -./x";
+      StringBuilder s = new StringBuilder();
+      for (int j = 0, length = random.nextInt(400); j < length; j++) {
+        s.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      Assert.assertEquals(rules + ": " + s, new LuhnyBinTests(rules).expected(s.toString()),
+          maskInSplits(rules, s.toString(), random, 0));
+    }
+  }
+
+  /**
+   * Masks {@code input} with the given rules, passing the first {@code split} bytes and then
+   * random amounts to arrays and direct buffers in turn, and checks the pending bytes.
+   */
+  private static String maskInSplits(CardRules rules, String input, Random random, int split)
+      throws IOException {
+    byte[] in = input.getBytes("US-ASCII");
+    byte[] b = new byte[in.length];
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    LuhnMasker masker = new LuhnMasker(rules);
+    int count = 0;
+    for (int read = 0; read < in.length; ) {
+      int n = read == 0 && split > 0 ? split : Math.min(in.length - read, 1 + random.nextInt(40));
+      System.arraycopy(in, read, b, count, n);
+      read += n;
+      count += n;
+      int done;
+      if (random.nextBoolean()) {
+        done = masker.mask(b, 0, count);
+      } else {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(count);
+        buffer.put(b, 0, count).flip();
+        done = masker.mask(buffer);
+        buffer.get(b, 0, count);
+      }
+      Assert.assertTrue(rules + ": " + input, done >= 0 && count - done <= rules.maxPending());
+      out.write(b, 0, done);
+      count -= done;
+      System.arraycopy(b, done, b, 0, count);
+    }
+    out.write(b, 0, count);
+    return out.toString("US-ASCII");
+  }
+
+  /** Checks every window of 14-16 digits separately. */
+  private static String naiveMask(String s) {
+    char[] masked = s.toCharArray();
+    for (int start = 0; start < s.length(); start++) {
+      if (!Character.isDigit(s.charAt(start))) continue;
+      StringBuilder digits = new StringBuilder();
+      for (int end = start; end < s.length(); end++) {
+        char c = s.charAt(end);
+        if (Character.isDigit(c)) {
+          digits.append(c);
+        } else if (c != ' ' && c != '-' || !Character.isDigit(s.charAt(end - 1))) {
+          break;
+        } else {
+          continue;
+        }
+        int count = digits.length();
+        if (count > LuhnMasker.MAX_DIGITS) break;
+        if (count >= LuhnMasker.MIN_DIGITS && LuhnyBinTests.computeLast(
+            digits.subSequence(0, count - 1)) == digits.charAt(count - 1)) {
+          for (int i = start; i <= end; i++) if (Character.isDigit(masked[i])) masked[i] = 'X';
+        }
+      }
+    }
+    return new String(masked);
+  }
+
+  static String mask(String s) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new LuhnMasker().mask(new ByteArrayInputStream(s.getBytes("US-ASCII")), out);
+    return out.toString("US-ASCII");
+  }
+
+  /** Fails the current test with the same details Main prints. */
+  static class FailingListener implements TestCase.Listener {
+    public void testPassed(TestCase test) {}
+
+    public void testFailed(TestCase test, String actualInput) {
+      Assert.fail(test.description
+          + "\n  Input:           " + Main.showBreaks(test.output)
+          + "\n  Expected result: " + Main.showBreaks(test.expectedInput)
+          + "\n  Actual result:   " + Main.showBreaks(actualInput));
+    }
+  }
+
+  /** Returns one byte per read. */
+  static class TricklingInputStream extends InputStream {
+    private final byte[] bytes;
+    private int index;
+
+    TricklingInputStream(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override public int read() {
+      return index < bytes.length ? bytes[index++] & 0xff : -1;
+    }
+
+    @Override public int read(byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      int c = read();
+      if (c == -1) return -1;
+      b[off] = (byte) c;
+      return 1;
+    }
+  }
+}
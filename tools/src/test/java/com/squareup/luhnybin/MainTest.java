@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MainTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final Executor executor = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  @Test public void loadsMaskerFromServiceLoader() {
+    Assert.assertTrue(Main.loadMasker(null) instanceof LuhnMasker);
+  }
+
+  @Test public void loadsMaskerByName() {
+    Assert.assertTrue(Main.loadMasker(LuhnMasker.class.getName()) instanceof LuhnMasker);
+  }
+
+  @Test public void inProcessTargetPassesEveryIteration() throws IOException {
+    LuhnyBinTests tests = new LuhnyBinTests();
+    Main.Target target = new Main.InProcessTarget(new LuhnMasker());
+    TestTimings timings = new TestTimings(tests, 3);
+    for (int i = 0; i < 3; i++) {
+      tests.check(target.send(tests, timings, i == 2), new LuhnMaskerTest.FailingListener());
+    }
+  }
+
+  @Test public void runIterationsTimesOnlyMeasuredIterations() throws IOException {
+    LuhnyBinTests tests = new LuhnyBinTests();
+    Options options = Options.parse(new String[] { "--warmup=2", "3" });
+    long[] times = Main.runIterations(options, new Main.InProcessTarget(new LuhnMasker()), tests,
+        new TestTimings(tests, options.iterations), new LuhnMaskerTest.FailingListener());
+    Assert.assertEquals(3, times.length);
+    for (long time : times) Assert.assertTrue(time > 0);
+  }
+
+  /** Writes mask.sh one test at a time only when asked to time them. */
+  @Test public void processTargetTimesTestsOnlyWhenAsked() throws IOException {
+    File directory = temporaryFolder.newFolder("cat");
+    Files.write("exec cat\n".getBytes(TestCase.UTF_8), new File(directory, "mask.sh"));
+    LuhnyBinTests tests = new LuhnyBinTests();
+    TestCase.Listener ignoreResults = new TestCase.Listener() {
+      public void testPassed(TestCase test) {}
+
+      public void testFailed(TestCase test, String actualInput) {}
+    };
+    for (boolean timeTests : new boolean[] { false, true }) {
+      Main.ProcessTarget target = new Main.ProcessTarget(executor, directory, timeTests);
+      try {
+        TestTimings timings = new TestTimings(tests, 2);
+        Main.runIterations(Options.parse(new String[] { "2" }), target, tests, timings,
+            ignoreResults);
+        Assert.assertEquals(timeTests, target.timesTests());
+        Assert.assertEquals(timeTests, !timings.stats().isEmpty());
+      } finally {
+        target.destroy();
+      }
+    }
+  }
+
+  @Test public void timeTestsOnlyWithMaskSh() {
+    Assert.assertTrue(Options.parse(new String[] { "--time-tests", "3" }).timeTests);
+    Assert.assertFalse(Options.parse(new String[] { "3" }).timeTests);
+    String[] invalid = { "--in-process", "--parallel", "--latency", "--size=1m",
+        "--leaderboard=dir", "--complexity" };
+    for (String option : invalid) {
+      try {
+        Options.parse(new String[] { "--time-tests", option });
+        Assert.fail(option);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  /** Each count of maskers starts new ones, so --parallel always warms up. */
+  @Test public void parallelWarmsUp() {
+    Assert.assertEquals(0, Options.parse(new String[] { "3" }).warmup);
+    Assert.assertEquals(1, Options.parse(new String[] { "--parallel=2", "3" }).warmup);
+    Assert.assertEquals(4, Options.parse(new String[] { "--parallel=2", "--warmup=4" }).warmup);
+  }
+
+  @Test public void seedAndDeadlineOnlyInTheirModes() {
+    Assert.assertEquals(7, Options.parse(new String[] { "--seed=7", "--size=1m" }).seed);
+    Assert.assertEquals(500, Options.parse(new String[] { "--latency", "--deadline=500ms" })
+        .deadlineMillis);
+    String[][] invalid = { { "--seed=7" }, { "--seed=7", "--latency" }, { "--deadline=1s" },
+        { "--deadline=1s", "--size=1m" } };
+    for (String[] args : invalid) {
+      try {
+        Options.parse(args);
+        Assert.fail(Arrays.toString(args));
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  /** --complexity also runs against mask.sh, so only its real conflicts are named. */
+  @Test public void complexityConflicts() {
+    Assert.assertTrue(Options.parse(new String[] { "--complexity" }).complexity > 0);
+    try {
+      Options.parse(new String[] { "--complexity", "--report=r.json" });
+      Assert.fail();
+    } catch (IllegalArgumentException expected) {
+      Assert.assertFalse(expected.getMessage().contains("--in-process"));
+      Assert.assertTrue(expected.getMessage().contains("--report"));
+    }
+  }
+
+  @Test public void reportOnlyWhenRunningTheTests() {
+    Assert.assertNotNull(Options.parse(new String[] { "--report=r.json", "3" }).report);
+    String[] invalid = { "--parallel", "--latency", "--size=1m", "--duration=1s",
+        "--leaderboard=dir" };
+    for (String option : invalid) {
+      try {
+        Options.parse(new String[] { "--report=r.json", option });
+        Assert.fail(option);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import javax.management.ObjectName;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MaskerMetricsTest {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private final MaskerMetrics metrics = new MaskerMetrics();
+
+  @Test public void countsOneCardNumber() {
+    mask(new LuhnMasker(metrics), "x 56613959932537\n");
+    Assert.assertEquals(17, metrics.getBytesScanned());
+    Assert.assertEquals(14, metrics.getDigitsExamined());
+    Assert.assertEquals(1, metrics.getCandidateWindows());
+    Assert.assertEquals(1, metrics.getMatches14());
+    Assert.assertEquals(0, metrics.getMatches15() + metrics.getMatches16());
+    Assert.assertEquals(14, metrics.getMaskedBytes());
+  }
+
+  @Test public void countsWindowsInLongRuns() {
+    // A run of n >= 16 digits has n - 13 14-digit windows, n - 14 15-digit and n - 15 16-digit.
+    mask(new LuhnMasker(metrics), "0000000000000000000000000000000000000000\n");
+    Assert.assertEquals(40, metrics.getDigitsExamined());
+    Assert.assertEquals(27 + 26 + 25, metrics.getCandidateWindows());
+    Assert.assertEquals(40, metrics.getMaskedBytes());
+
+    // All zeros pass, so each digit from the 16th on ends a 16-digit card #.
+    Assert.assertEquals(1, metrics.getMatches14());
+    Assert.assertEquals(1, metrics.getMatches15());
+    Assert.assertEquals(25, metrics.getMatches16());
+  }
+
+  @Test public void sameCountsOneByteAtATime() {
+    String input = suite();
+    MaskerMetrics whole = new MaskerMetrics();
+    mask(new LuhnMasker(whole), input);
+
+    // Runs of digits span calls; make sure we don't count them twice.
+    LuhnMasker masker = new LuhnMasker(metrics);
+    byte[] b = input.getBytes(ASCII);
+    int start = 0;
+    for (int end = 1; end <= b.length; end++) start += masker.mask(b, start, end - start);
+    masker.reset();
+
+    Assert.assertEquals(whole.getBytesScanned(), metrics.getBytesScanned());
+    Assert.assertEquals(whole.getDigitsExamined(), metrics.getDigitsExamined());
+    Assert.assertEquals(whole.getCandidateWindows(), metrics.getCandidateWindows());
+    for (int length = LuhnMasker.MIN_DIGITS; length <= LuhnMasker.MAX_DIGITS; length++) {
+      Assert.assertEquals(whole.matches(length), metrics.matches(length));
+    }
+    Assert.assertEquals(whole.getMaskedBytes(), metrics.getMaskedBytes());
+  }
+
+  @Test public void sharedAcrossThreads() throws Exception {
+    final String input = suite();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override public void run() {
+          LuhnMasker masker = new LuhnMasker(metrics);
+          for (int j = 0; j < 100; j++) mask(masker, input);
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) thread.join();
+    Assert.assertEquals(400L * input.length(), metrics.getBytesScanned());
+  }
+
+  @Test public void exposedThroughJmx() throws Exception {
+    mask(new LuhnMasker(metrics), "x 56613959932537\n");
+    metrics.register("MaskerMetricsTest");
+    ObjectName name = new ObjectName(
+        "com.squareup.luhnybin:type=MaskerMetrics,name=MaskerMetricsTest");
+    try {
+      Assert.assertEquals(14L,
+          ManagementFactory.getPlatformMBeanServer().getAttribute(name, "MaskedBytes"));
+    } finally {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+  }
+
+  @Test public void exposesEveryLengthThroughJmx() throws Exception {
+    CardRules rules = CardRulesTest.rules("lengths=12-19");
+    mask(new LuhnMasker(rules, metrics), "x 411111111117 x 2879056552151002423\n");
+    metrics.register("MaskerMetricsTest");
+    ObjectName name = new ObjectName(
+        "com.squareup.luhnybin:type=MaskerMetrics,name=MaskerMetricsTest");
+    try {
+      for (int length = CardRules.MIN_LENGTH; length <= CardRules.MAX_LENGTH; length++) {
+        Assert.assertEquals("matches of " + length, metrics.matches(length),
+            ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Matches" + length));
+      }
+      Assert.assertEquals(1L,
+          ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Matches12"));
+      Assert.assertEquals(1L,
+          ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Matches19"));
+    } finally {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+  }
+
+  @Test public void statsLine() {
+    mask(new LuhnMasker(metrics), "x 56613959932537\n");
+    Assert.assertEquals("0.0 MB scanned (1.5 MB/s), 14 digits, 1 windows, "
+        + "matches 14/15/16: 1/0/0, 14 bytes masked", metrics.statsLine(1.5));
+  }
+
+  private static void mask(LuhnMasker masker, String input) {
+    byte[] b = input.getBytes(ASCII);
+    masker.mask(b, 0, b.length);
+    masker.reset();
+  }
+
+  private static String suite() {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try {
+      new LuhnyBinTests().writeTo(bout);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return new String(bout.toByteArray(), ASCII);
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MaskingDaemonTest {
+
+  private static final int STREAMS = 2000;
+  private static final int CLIENT_THREADS = 20;
+
+  private final MaskerMetrics metrics = new MaskerMetrics();
+  private MaskingDaemon daemon;
+  private final ExecutorService clients = Executors.newCachedThreadPool();
+  private final List<Socket> sockets = new ArrayList<Socket>();
+
+  @Before public void setUp() throws IOException {
+    daemon = new MaskingDaemon(0, 2, metrics);
+    daemon.start();
+  }
+
+  @After public void tearDown() throws IOException {
+    for (Socket socket : sockets) socket.close();
+    clients.shutdownNow();
+    daemon.close();
+  }
+
+  /**
+   * Opens thousands of connections, then has each client thread send the tests through its share
+   * one line at a time, round robin. Every stream is mid-suite at once, so a masker shared between
+   * connections would fail. Times each round trip.
+   */
+  @Test public void thousandsOfConcurrentStreams() throws Exception {
+    for (int i = 0; i < STREAMS; i++) sockets.add(connect());
+
+    final LuhnyBinTests tests = new LuhnyBinTests();
+    List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+    for (int t = 0; t < CLIENT_THREADS; t++) {
+      final List<Socket> share = sockets.subList(t * STREAMS / CLIENT_THREADS,
+          (t + 1) * STREAMS / CLIENT_THREADS);
+      results.add(clients.submit(new Callable<long[]>() {
+        public long[] call() throws IOException {
+          long[] times = new long[tests.count * share.size()];
+          int count = 0;
+          for (TestCase test : tests.testCases()) {
+            for (Socket socket : share) {
+              long start = System.nanoTime();
+              OutputStream out = socket.getOutputStream();
+              test.writeTo(out);
+              out.flush();
+              test.check(socket.getInputStream(), new LuhnMaskerTest.FailingListener());
+              times[count++] = (System.nanoTime() - start) / 1000;
+            }
+          }
+          for (Socket socket : share) {
+            socket.shutdownOutput();
+            Assert.assertEquals(-1, socket.getInputStream().read());
+          }
+          return times;
+        }
+      }));
+    }
+
+    long[] times = new long[tests.count * STREAMS];
+    int count = 0;
+    for (Future<long[]> result : results) {
+      long[] threadTimes = result.get(5, TimeUnit.MINUTES);
+      System.arraycopy(threadTimes, 0, times, count, threadTimes.length);
+      count += threadTimes.length;
+    }
+    // Generous, since the clients share the machine with the daemon.
+    Stats stats = new Stats(times);
+    Assert.assertTrue("Median " + stats.median() + "us", stats.median() < 50000);
+    Assert.assertTrue("p99 " + stats.percentile(99) + "us", stats.percentile(99) < 500000);
+  }
+
+  /** Streams generated logs through a few connections in random-sized writes. */
+  @Test public void generatedLogsInPieces() throws Exception {
+    List<Future<Void>> results = new ArrayList<Future<Void>>();
+    final AtomicLong total = new AtomicLong();
+    for (int i = 0; i < 8; i++) {
+      final long seed = i;
+      final Socket socket = connect();
+      sockets.add(socket);
+      final Future<Long> sent = clients.submit(new Callable<Long>() {
+        public Long call() throws IOException {
+          Random random = new Random(seed);
+          Corpus.Input in = new Corpus.Input(seed, 1 << 20);
+          OutputStream out = socket.getOutputStream();
+          byte[] buffer = new byte[4096];
+          int read;
+          while ((read = in.read(buffer, 0, 1 + random.nextInt(buffer.length))) != -1) {
+            out.write(buffer, 0, read);
+          }
+          socket.shutdownOutput();
+          return in.bytes();
+        }
+      });
+      results.add(clients.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          Corpus.Verifier verifier = new Corpus.Verifier(seed);
+          Main.copy(socket.getInputStream(), verifier);
+          verifier.finish(sent.get());
+          total.addAndGet(sent.get());
+          Assert.assertTrue(verifier.bytes() >= 1 << 20);
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> result : results) result.get(5, TimeUnit.MINUTES);
+    Assert.assertEquals(total.get(), metrics.getBytesScanned());
+    Assert.assertTrue(metrics.getMaskedBytes() > 0);
+  }
+
+  /** A client that stops reading holds on to its buffer but doesn't stall anyone else. */
+  @Test public void slowReaderDoesntBlockOthers() throws Exception {
+    Socket slow = connect();
+    sockets.add(slow);
+    final OutputStream slowOut = slow.getOutputStream();
+    clients.submit(new Callable<Void>() {
+      public Void call() throws IOException {
+        byte[] line = "4111 1111 1111 1111\n".getBytes("US-ASCII");
+        while (true) slowOut.write(line);
+      }
+    });
+
+    Socket fast = connect();
+    sockets.add(fast);
+    LuhnyBinTests tests = new LuhnyBinTests();
+    tests.writeTo(fast.getOutputStream());
+    fast.shutdownOutput();
+    tests.check(fast.getInputStream(), new LuhnMaskerTest.FailingListener());
+    Assert.assertEquals(-1, fast.getInputStream().read());
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.port());
+    socket.setTcpNoDelay(true);
+    return socket;
+  }
+}
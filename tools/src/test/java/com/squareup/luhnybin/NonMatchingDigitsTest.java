@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NonMatchingDigitsTest {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /** Checks every window against the reference Luhn implementation, across uneven fills. */
+  @Test public void noWindowPassesLuhnCheck() {
+    NonMatchingDigits generator = new NonMatchingDigits(1);
+    byte[] digits = new byte[100000];
+    Random random = new Random(1);
+    for (int off = 0; off < digits.length; ) {
+      int len = Math.min(1 + random.nextInt(37), digits.length - off);
+      generator.fill(digits, off, len);
+      off += len;
+    }
+
+    String s = new String(digits, ASCII);
+    for (int end = LuhnMasker.MIN_DIGITS; end <= s.length(); end++) {
+      for (int length = LuhnMasker.MIN_DIGITS; length <= LuhnMasker.MAX_DIGITS; length++) {
+        if (length > end) break;
+        String window = s.substring(end - length, end);
+        Assert.assertFalse(window, LuhnyBinTests.computeLast(window.substring(0, length - 1))
+            == window.charAt(length - 1));
+      }
+    }
+  }
+
+  @Test public void maskerFindsNothing() {
+    NonMatchingDigits generator = new NonMatchingDigits(2);
+    byte[] digits = new byte[16 * 1024 * 1024];
+    generator.fill(digits, 0, digits.length);
+    byte[] masked = digits.clone();
+    LuhnMasker masker = new LuhnMasker();
+    masker.mask(masked, 0, masked.length);
+    Assert.assertArrayEquals(digits, masked);
+  }
+
+  @Test public void resetStartsNewRun() {
+    NonMatchingDigits generator = new NonMatchingDigits(3);
+    LuhnMasker masker = new LuhnMasker();
+    byte[] digits = new byte[LuhnMasker.MAX_DIGITS];
+    for (int i = 0; i < 1000; i++) {
+      generator.reset();
+      generator.fill(digits, 0, digits.length);
+      byte[] masked = digits.clone();
+      masker.mask(masked, 0, masked.length);
+      masker.reset();
+      Assert.assertArrayEquals(digits, masked);
+    }
+  }
+
+  @Test public void sameSeedSameDigits() {
+    byte[] a = new byte[10000];
+    byte[] b = new byte[10000];
+    new NonMatchingDigits(4).fill(a, 0, a.length);
+    new NonMatchingDigits(4).fill(b, 0, b.length);
+    Assert.assertArrayEquals(a, b);
+    new NonMatchingDigits(5).fill(b, 0, b.length);
+    Assert.assertFalse(Arrays.equals(a, b));
+  }
+
+  @Test public void usesEveryDigit() {
+    byte[] digits = new byte[1000000];
+    new NonMatchingDigits(6).fill(digits, 0, digits.length);
+    int[] counts = new int[10];
+    for (byte digit : digits) counts[digit - '0']++;
+    for (int count : counts) {
+      Assert.assertTrue(Arrays.toString(counts), count > digits.length / 20);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelMaskerTest {
+
+  private static final int CHUNK_SIZE = 64;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final ForkJoinPool pool = new ForkJoinPool(4);
+  private int files;
+
+  @After public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Test public void luhnyBinTests() throws IOException {
+    LuhnyBinTests tests = new LuhnyBinTests();
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    tests.writeTo(bout);
+    String input = bout.toString("US-ASCII");
+
+    for (int chunkSize : new int[] { 1, 7, 31, 64, 1000, 1 << 20 }) {
+      Assert.assertEquals(LuhnMaskerTest.mask(input), parallelMask(input, chunkSize));
+    }
+  }
+
+  @Test public void cardNumbersAcrossEveryBoundaryOffset() throws IOException {
+    String[] numbers = {
+        LuhnyBinTests.randomNumber(14),
+        LuhnyBinTests.randomNumber(15),
+        LuhnyBinTests.randomNumber(16),
+        LuhnyBinTests.formatNumber(LuhnyBinTests.randomNumber(16), ' '),
+        LuhnyBinTests.formatNumber(LuhnyBinTests.randomNumber(16), '-'),
+        LuhnyBinTests.overlappingMatches(2 * CHUNK_SIZE),
+    };
+    for (String number : numbers) {
+      for (int offset = 0; offset <= number.length(); offset++) {
+        // Put the boundary between the second and third chunks offset characters into the number.
+        String input = Strings.repeat("x", 2 * CHUNK_SIZE - offset) + number + "\n"
+            + Strings.repeat("y", CHUNK_SIZE);
+        String masked = parallelMask(input, CHUNK_SIZE);
+        Assert.assertEquals(LuhnMaskerTest.mask(input), masked);
+        Assert.assertFalse(masked, masked.matches("(?s).*\\d.*"));
+      }
+    }
+  }
+
+  @Test public void cantMaskInPlace() throws IOException {
+    File file = temporaryFolder.newFile("log.txt");
+    try {
+      new ParallelMasker(pool, CHUNK_SIZE).mask(file, file);
+      Assert.fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private String parallelMask(String input, int chunkSize) throws IOException {
+    File in = temporaryFolder.newFile("in-" + files);
+    File out = temporaryFolder.newFile("out-" + files++);
+    Files.write(input.getBytes("US-ASCII"), in);
+    new ParallelMasker(pool, chunkSize).mask(in, out);
+    return new String(Files.toByteArray(out), "US-ASCII");
+  }
+}
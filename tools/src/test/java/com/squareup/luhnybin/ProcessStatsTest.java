@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ProcessStatsTest {
+
+  @Test public void findsPid() throws Exception {
+    Process process = new ProcessBuilder("sh", "-c", "echo $$").start();
+    String echoed = new String(ByteStreams.toByteArray(process.getInputStream()),
+        TestCase.UTF_8).trim();
+    process.waitFor();
+    Assert.assertEquals(Long.parseLong(echoed), ProcessStats.pid(process));
+  }
+
+  /** The work happens in a grandchild, like a mask.sh that doesn't exec. */
+  @Test public void countsDescendants() throws Exception {
+    Process process = new ProcessBuilder("sh", "-c",
+        "sh -c 'i=0; while [ $i -lt 300000 ]; do i=$((i+1)); done' & wait").start();
+    ProcessStats stats = new ProcessStats(process);
+    Assume.assumeTrue(stats.supported());
+    while (!exited(process)) {
+      stats.sample();
+      Thread.sleep(10);
+    }
+
+    Assert.assertTrue(stats.processes() >= 2);
+    Assert.assertTrue(stats.userMillis() + stats.systemMillis() > 50);
+    Assert.assertTrue(stats.peakRssBytes() > 0);
+    Assert.assertTrue(stats.voluntarySwitches() + stats.involuntarySwitches() > 0);
+  }
+
+  /** Samples miss everything after the last one, so the total comes from reaping it. */
+  @Test public void countsCpuTimeAfterLastSample() throws Exception {
+    Process process = new ProcessBuilder("sh", "-c",
+        "sh -c 'i=0; while [ $i -lt 300000 ]; do i=$((i+1)); done' & wait").start();
+    ProcessStats stats = new ProcessStats(process);
+    Assume.assumeTrue(stats.supported());
+    stats.sample();
+    Assert.assertTrue(ProcessStats.awaitExit(process, 60 * 1000));
+    Assert.assertTrue(stats.userMillis() + stats.systemMillis() < 50);
+
+    stats.exited();
+    Assert.assertTrue(stats.userMillis() + stats.systemMillis() > 50);
+  }
+
+  @Test public void timesFirstByte() throws IOException, InterruptedException {
+    Process process = new ProcessBuilder("sh", "-c", "sleep 0.3; echo masked").start();
+    ProcessStats stats = new ProcessStats(process);
+    InputStream in = stats.timeFirstByte(process.getInputStream());
+    Assert.assertEquals(-1, stats.firstByteMillis());
+    Assert.assertEquals('m', in.read());
+    Assert.assertTrue(stats.firstByteMillis() >= 300);
+    long firstByte = stats.firstByteMillis();
+    ByteStreams.toByteArray(in);
+    process.waitFor();
+    Assert.assertEquals(firstByte, stats.firstByteMillis());
+  }
+
+  private static boolean exited(Process process) {
+    try {
+      process.exitValue();
+      return true;
+    } catch (IllegalThreadStateException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the &quot;License&quot;);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.luhnybin;
+
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StatsTest {
+
+  @Test public void percentiles() {
+    long[] samples = new long[1000];
+    for (int i = 0; i < samples.length; i++) samples[i] = samples.length - i;
+    Stats stats = new Stats(samples);
+    Assert.assertEquals(1, stats.min());
+    Assert.assertEquals(500, stats.median());
+    Assert.assertEquals(900, stats.percentile(90));
+    Assert.assertEquals(990, stats.percentile(99));
+    Assert.assertEquals(999, stats.percentile(99.9));
+    Assert.assertEquals(1000, stats.max());
+    Assert.assertEquals(500.5, stats.mean(), 0.001);
+  }
+
+  @Test public void standardDeviation() {
+    Stats stats = new Stats(new long[] { 2, 4, 4, 4, 5, 5, 7, 9 });
+    Assert.assertEquals(5.0, stats.mean(), 0.001);
+    Assert.assertEquals(2.0, stats.standardDeviation(), 0.001);
+  }
+
+  @Test public void singleSample() {
+    Stats stats = new Stats(new long[] { 42 });
+    Assert.assertEquals(42, stats.percentile(99.9));
+    Assert.assertEquals(0.0, stats.standardDeviation(), 0.001);
+  }
+
+  @Test public void histogramBucketsAreLogLinear() {
+    List<Stats.Bucket> histogram = new Stats(new long[] { 0, 3, 4, 5, 100, 101, 127, 128 })
+        .histogram();
+    Assert.assertEquals(7, histogram.size());
+    assertBucket(histogram.get(0), 0, 1, 1);
+    assertBucket(histogram.get(1), 3, 4, 1);
+    assertBucket(histogram.get(2), 4, 5, 1);
+    assertBucket(histogram.get(3), 5, 6, 1);
+    assertBucket(histogram.get(4), 96, 112, 2);
+    assertBucket(histogram.get(5), 112, 128, 1);
+    assertBucket(histogram.get(6), 128, 160, 1);
+  }
+
+  @Test public void mannWhitneySeesShift() {
+    long[] before = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+    long[] after = { 11, 12, 13, 14, 15, 16, 17, 18, 19, 20 };
+    // U = 100, mean 50, sd 13.23; z = 3.74.
+    Assert.assertEquals(9.1e-5, Stats.mannWhitney(before, after), 1e-5);
+    Assert.assertEquals(1.0, Stats.mannWhitney(after, before), 1e-3);
+  }
+
+  @Test public void mannWhitneyIgnoresOutliers() {
+    long[] before = { 10, 11, 12, 13, 14, 15, 16, 17, 18, 19 };
+    long[] after = { 10, 11, 12, 13, 14, 15, 16, 17, 18, 1000000 };
+    Assert.assertTrue(Stats.mannWhitney(before, after) > 0.3);
+  }
+
+  @Test public void mannWhitneyWithTies() {
+    long[] same = { 5, 5, 5, 5, 5, 5, 5, 5 };
+    Assert.assertEquals(0.5, Stats.mannWhitney(same, same), 1e-9);
+    long[] slower = { 5, 5, 6, 6, 6, 6, 6, 6 };
+    Assert.assertTrue(Stats.mannWhitney(same, slower) < 0.01);
+  }
+
+  private static void assertBucket(Stats.Bucket bucket, long from, long to, int count) {
+    Assert.assertEquals(from, bucket.from);
+    Assert.assertEquals(to, bucket.to);
+    Assert.assertEquals(count, bucket.count);
+  }
+}